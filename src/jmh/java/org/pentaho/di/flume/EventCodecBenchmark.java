@@ -0,0 +1,91 @@
+package org.pentaho.di.flume;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBinary;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+/**
+ * Measures the per event conversions of the sink and source, without running any transformation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventCodecBenchmark {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Param({"64", "1024"})
+    public int bodySize;
+
+    @Param({"String", "Binary"})
+    public String bodyType;
+
+    private EventRowDecoder decoder;
+
+    private RowEventEncoder encoder;
+
+    private Event event;
+
+    private Object[] row;
+
+    @Setup
+    public void setUp() throws KettleException {
+        RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString("host"));
+
+        if (bodyType.equals("Binary")) {
+            rowMeta.addValueMeta(new ValueMetaBinary(EventRowDecoder.INJECTOR_BODY_FIELD_NAME));
+        } else {
+            rowMeta.addValueMeta(new ValueMetaString(EventRowDecoder.INJECTOR_BODY_FIELD_NAME));
+        }
+
+        Map<String, String> headerFields = Collections.singletonMap("host", "host");
+
+        decoder = new EventRowDecoder(rowMeta, UTF8, headerFields);
+        encoder = new RowEventEncoder(rowMeta, RowEventEncoder.OUTPUT_BODY_FIELD_NAME, UTF8, headerFields, null);
+
+        byte[] body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("host", "localhost");
+
+        event = EventBuilder.withBody(body, headers);
+        row = decoder.decode(event);
+    }
+
+    @Benchmark
+    public Object[] decode() throws KettleException {
+        return decoder.decode(event);
+    }
+
+    @Benchmark
+    public Event encode() throws KettleException {
+        return encoder.encode(row);
+    }
+}
@@ -0,0 +1,99 @@
+package org.pentaho.di.flume;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.flume.Channel;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.EventDeliveryException;
+import org.apache.flume.Sink;
+import org.apache.flume.channel.PseudoTxnMemoryChannel;
+import org.apache.flume.conf.Configurables;
+import org.apache.flume.event.EventBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures PentahoKettleSink.process() with the bundled sink transformation, one operation being one batch put in
+ * the channel and consumed by the sink.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PentahoKettleSinkBenchmark {
+
+    private static String SINK_TRANS_NAME = "/flume_log_sink.ktr";
+
+    @Param({"blocking", "nonblocking"})
+    public String executionType;
+
+    @Param({"64", "1024"})
+    public int bodySize;
+
+    @Param({"1", "100"})
+    public int batchSize;
+
+    private Channel channel;
+
+    private PentahoKettleSink sink;
+
+    private Event[] batch;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Context channelContext = new Context();
+        channelContext.put("capacity", Integer.toString(batchSize));
+
+        channel = new PseudoTxnMemoryChannel();
+        Configurables.configure(channel, channelContext);
+
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, getClass().getResource(SINK_TRANS_NAME).toExternalForm());
+        context.put(PentahoKettleSink.SINK_EXECUTION_TYPE, executionType);
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_LOG_LEVEL, "ERROR");
+        context.put(PentahoKettleSink.SINK_BATCH_SIZE, Integer.toString(batchSize));
+
+        sink = new PentahoKettleSink();
+        Configurables.configure(sink, context);
+        sink.setChannel(channel);
+        sink.start();
+
+        byte[] body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+
+        batch = new Event[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            batch[i] = EventBuilder.withBody(body);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sink.stop();
+    }
+
+    @Benchmark
+    public Sink.Status processBatch() throws EventDeliveryException {
+        for (Event event : batch) {
+            channel.put(event);
+        }
+
+        return sink.process();
+    }
+}
@@ -0,0 +1,116 @@
+package org.pentaho.di.flume;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.flume.Channel;
+import org.apache.flume.ChannelSelector;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.channel.ReplicatingChannelSelector;
+import org.apache.flume.conf.Configurables;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the events emitted by PentahoKettleSource running the unthrottled sequence transformation, by draining
+ * the memory channel it delivers to. One operation is one drained event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PentahoKettleSourceBenchmark {
+
+    private static final int DRAIN_SIZE = 1000;
+
+    @Param({"nonblocking"})
+    public String executionType;
+
+    @Param({"1", "100"})
+    public int batchSize;
+
+    private Channel channel;
+
+    private PentahoKettleSource source;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Context channelContext = new Context();
+        channelContext.put("capacity", "100000");
+        channelContext.put("transactionCapacity", Integer.toString(Math.max(DRAIN_SIZE, batchSize)));
+        channelContext.put("keep-alive", "0");
+
+        channel = new MemoryChannel();
+        Configurables.configure(channel, channelContext);
+
+        List<Channel> channels = new ArrayList<Channel>();
+        channels.add(channel);
+
+        ChannelSelector rcs = new ReplicatingChannelSelector();
+        rcs.setChannels(channels);
+
+        Context context = new Context();
+        context.put(PentahoKettleSource.SOURCE_TRANS_PATH, getClass().getResource("/flume_unthrottled_source.ktr")
+                .toExternalForm());
+        context.put(PentahoKettleSource.SOURCE_EXECUTION_TYPE, executionType);
+        context.put(PentahoKettleSource.SOURCE_OUTPUT_NAME, "output");
+        context.put(PentahoKettleSource.SOURCE_LOG_LEVEL, "ERROR");
+        context.put(PentahoKettleSource.SOURCE_BATCH_SIZE, Integer.toString(batchSize));
+
+        source = new PentahoKettleSource();
+        source.setChannelProcessor(new ChannelProcessor(rcs));
+        Configurables.configure(source, context);
+        source.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        source.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DRAIN_SIZE)
+    public int drain() {
+        int drained = 0;
+
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+
+        try {
+            while (drained < DRAIN_SIZE) {
+                Event event = channel.take();
+
+                if (event != null) {
+                    drained++;
+                } else {
+                    Thread.yield();
+                }
+            }
+
+            txn.commit();
+        } finally {
+            txn.close();
+        }
+
+        return drained;
+    }
+}
@@ -0,0 +1,458 @@
+package org.pentaho.di.flume;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.flume.Channel;
+import org.apache.flume.ChannelSelector;
+import org.apache.flume.Context;
+import org.apache.flume.Sink;
+import org.apache.flume.SinkRunner;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.channel.DefaultChannelFactory;
+import org.apache.flume.channel.ReplicatingChannelSelector;
+import org.apache.flume.conf.Configurables;
+import org.apache.flume.sink.DefaultSinkProcessor;
+
+/**
+ * Runs a whole source, channel and sink pipeline in-process for a fixed duration and reports the sustained
+ * throughput, the latencies recorded by the sink and the GC activity.
+ * <p/>
+ * The events come either from synthetic traffic at a fixed rate or from a {@link PentahoKettleSource} running its
+ * transformation as fast as the channel takes the events. The channel is a memory or a file channel and the sink a
+ * {@link PentahoKettleSink} driven by a sink runner, like in an agent.
+ * <p/>
+ * The configuration is a properties file, given as first argument, followed by key=value overrides. The keys starting
+ * with "sink" and "source" configure the Kettle components, the keys starting with "channel." the channel, see
+ * src/load/resources/load.properties.
+ */
+public class LoadHarness {
+
+    private static final String SOURCE_NAME = "loadSource";
+
+    private static final String CHANNEL_NAME = "loadChannel";
+
+    private static final String SINK_NAME = "loadSink";
+
+    // Longest wait for the sink to drain the channel once the traffic stopped
+    private static final long DRAIN_TIMEOUT = 30000L;
+
+    // The configuration
+    private final Properties config;
+
+    // Report lines are printed and written to the report file
+    private final PrintWriter report;
+
+    // Intervals measured after the warm up
+    private final List<Interval> intervals = new ArrayList<Interval>();
+
+    private Channel channel;
+
+    private SyntheticTraffic traffic;
+
+    private List<Thread> trafficThreads;
+
+    private PentahoKettleSource source;
+
+    private SinkRunner sinkRunner;
+
+    public LoadHarness(Properties config, PrintWriter report) {
+        this.config = config;
+        this.report = report;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties config = new Properties();
+
+        if (args.length > 0 && !args[0].contains("=")) {
+            InputStream in = new FileInputStream(args[0]);
+            try {
+                config.load(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+
+            if (separator > 0) {
+                config.setProperty(arg.substring(0, separator), arg.substring(separator + 1));
+            }
+        }
+
+        File reportFile = new File(config.getProperty("load.reportFile", "target/load-report.txt"));
+        reportFile.getAbsoluteFile().getParentFile().mkdirs();
+
+        PrintWriter report = new PrintWriter(new FileWriter(reportFile));
+
+        try {
+            new LoadHarness(config, report).run();
+        } finally {
+            report.close();
+        }
+
+        System.out.println("Report written to " + reportFile.getAbsolutePath());
+        System.exit(0);
+    }
+
+    /**
+     * Starts the pipeline, reports every interval until the end of the run, then drains and stops it.
+     */
+    public void run() throws Exception {
+        long duration = Long.parseLong(config.getProperty("load.durationSec", "60")) * 1000;
+        long warmup = Long.parseLong(config.getProperty("load.warmupSec", "10")) * 1000;
+        long reportInterval = Long.parseLong(config.getProperty("load.reportIntervalMs", "5000"));
+
+        print("Configuration:");
+        for (Map.Entry<Object, Object> entry : new TreeMap<Object, Object>(config).entrySet()) {
+            print("  " + entry.getKey() + " = " + entry.getValue());
+        }
+        print("");
+
+        startChannel();
+        startSink(reportInterval);
+        startTraffic();
+
+        print(String.format("%8s %10s %10s %8s %10s %10s %10s %10s %8s %8s", "elapsed", "in/s", "out/s", "fill%",
+                "ch-p50us", "ch-p99us", "ch-p999us", "e2e-p99us", "gc-ms", "heap-MB"));
+
+        long start = System.currentTimeMillis();
+        Interval previous = sample(start);
+
+        while (previous.time - start < duration) {
+            Thread.sleep(Math.min(reportInterval, start + duration - previous.time));
+
+            Interval current = sample(System.currentTimeMillis());
+            current.since(previous);
+
+            print(String.format("%8.1f %10.0f %10.0f %8.1f %10.0f %10.0f %10.0f %10.0f %8d %8d",
+                    (current.time - start) / 1000.0, current.inRate, current.outRate, current.channelFill,
+                    current.channelP50, current.channelP99, current.channelP999, current.endToEndP99,
+                    current.gcTimeDelta, current.heapUsed >> 20));
+
+            if (current.time - start > warmup) {
+                intervals.add(current);
+            }
+
+            previous = current;
+        }
+
+        stopTraffic();
+        drain();
+        summarize(warmup);
+
+        sinkRunner.stop();
+        channel.stop();
+    }
+
+    private void startChannel() throws IOException {
+        String type = config.getProperty("load.channel", "memory");
+        Context context = new Context(subProperties("channel."));
+
+        if (type.equals("memory")) {
+            setDefault(context, "capacity", "100000");
+            setDefault(context, "transactionCapacity", "1000");
+        } else if (type.equals("file")) {
+            File directory = File.createTempFile("load-channel", "");
+            directory.delete();
+            setDefault(context, "checkpointDir", new File(directory, "checkpoint").getAbsolutePath());
+            setDefault(context, "dataDirs", new File(directory, "data").getAbsolutePath());
+        }
+
+        channel = new DefaultChannelFactory().create(CHANNEL_NAME, type);
+        Configurables.configure(channel, context);
+        channel.start();
+    }
+
+    private void startSink(long reportInterval) {
+        Context context = new Context(prefixedProperties("sink"));
+        setDefault(context, PentahoKettleSink.SINK_TRANS_PATH,
+                LoadHarness.class.getResource("/flume_log_sink.ktr").toExternalForm());
+        setDefault(context, PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        setDefault(context, PentahoKettleSink.SINK_LOG_LEVEL, "ERROR");
+        setDefault(context, PentahoKettleSink.SINK_BATCH_SIZE, "100");
+        setDefault(context, PentahoKettleSink.SINK_LATENCY_TRACKING, "true");
+        setDefault(context, PentahoKettleSink.SINK_LATENCY_LOG_INTERVAL, Long.toString(reportInterval));
+
+        PentahoKettleSink sink = new PentahoKettleSink();
+        sink.setName(SINK_NAME);
+        Configurables.configure(sink, context);
+        sink.setChannel(channel);
+
+        DefaultSinkProcessor processor = new DefaultSinkProcessor();
+        processor.setSinks(Collections.<Sink>singletonList(sink));
+
+        sinkRunner = new SinkRunner(processor);
+        sinkRunner.start();
+    }
+
+    private void startTraffic() {
+        List<Channel> channels = new ArrayList<Channel>();
+        channels.add(channel);
+
+        ChannelSelector selector = new ReplicatingChannelSelector();
+        selector.setChannels(channels);
+        ChannelProcessor channelProcessor = new ChannelProcessor(selector);
+
+        if (config.getProperty("load.source", "generator").equals("kettle")) {
+            Context context = new Context(prefixedProperties("source"));
+            setDefault(context, PentahoKettleSource.SOURCE_TRANS_PATH,
+                    LoadHarness.class.getResource("/flume_unthrottled_source.ktr").toExternalForm());
+            setDefault(context, PentahoKettleSource.SOURCE_OUTPUT_NAME, "output");
+            setDefault(context, PentahoKettleSource.SOURCE_LOG_LEVEL, "ERROR");
+            setDefault(context, PentahoKettleSource.SOURCE_BATCH_SIZE, "100");
+            setDefault(context, PentahoKettleSource.SOURCE_ORIGIN_TIMESTAMP, "true");
+
+            source = new PentahoKettleSource();
+            source.setName(SOURCE_NAME);
+            source.setChannelProcessor(channelProcessor);
+            Configurables.configure(source, context);
+            source.start();
+        } else {
+            int threads = Integer.parseInt(config.getProperty("load.generatorThreads", "1"));
+            long rate = Long.parseLong(config.getProperty("load.rate", "10000"));
+
+            traffic = new SyntheticTraffic(channelProcessor, rate / threads,
+                    Integer.parseInt(config.getProperty("load.generatorBatchSize", "100")),
+                    config.getProperty("load.bodySizes", "256"));
+            trafficThreads = new ArrayList<Thread>();
+
+            for (int i = 0; i < threads; i++) {
+                Thread thread = new Thread(traffic, "load-traffic-" + i);
+                thread.setDaemon(true);
+                thread.start();
+                trafficThreads.add(thread);
+            }
+        }
+    }
+
+    private void stopTraffic() throws InterruptedException {
+        if (source != null) {
+            source.stop();
+        } else {
+            traffic.stop();
+
+            for (Thread thread : trafficThreads) {
+                thread.join();
+            }
+        }
+    }
+
+    /**
+     * Lets the sink take the events left in the channel.
+     */
+    private void drain() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+
+        while (attribute("org.apache.flume.channel:type=" + CHANNEL_NAME, "ChannelSize") > 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+    }
+
+    private void summarize(long warmup) {
+        print("");
+
+        if (intervals.isEmpty()) {
+            print("No interval measured after the " + warmup / 1000 + " s warm up.");
+            return;
+        }
+
+        Interval first = intervals.get(0);
+        Interval last = intervals.get(intervals.size() - 1);
+        double seconds = (last.time - first.time + first.elapsed) / 1000.0;
+
+        long in = 0;
+        long out = 0;
+        long gcTime = 0;
+        long gcCount = 0;
+        long maxHeap = 0;
+        double channelP99 = 0;
+        double channelP999 = 0;
+        double endToEndP99 = 0;
+        List<Double> channelP50s = new ArrayList<Double>();
+
+        for (Interval interval : intervals) {
+            in += interval.inDelta;
+            out += interval.outDelta;
+            gcTime += interval.gcTimeDelta;
+            gcCount += interval.gcCountDelta;
+            maxHeap = Math.max(maxHeap, interval.heapUsed);
+            channelP99 = Math.max(channelP99, interval.channelP99);
+            channelP999 = Math.max(channelP999, interval.channelP999);
+            endToEndP99 = Math.max(endToEndP99, interval.endToEndP99);
+            channelP50s.add(interval.channelP50);
+        }
+
+        Collections.sort(channelP50s);
+
+        print(String.format("Summary over %.1f s after a %d s warm up:", seconds, warmup / 1000));
+        print(String.format("  events in:           %d (%.0f/s)", in, in / seconds));
+        print(String.format("  events out:          %d (%.0f/s)", out, out / seconds));
+
+        if (traffic != null) {
+            print(String.format("  refused batches:     %d", traffic.getRefused()));
+        }
+
+        print(String.format("  channel latency:     p50 %.0f us (median interval), p99 %.0f us, p999 %.0f us"
+                + " (worst interval)", channelP50s.get(channelP50s.size() / 2), channelP99, channelP999));
+        print(String.format("  end to end p99:      %.0f us (worst interval)", endToEndP99));
+        print(String.format("  gc:                  %d collections, %d ms (%.2f%% of the time)", gcCount, gcTime,
+                gcTime / (seconds * 10)));
+        print(String.format("  max heap used:       %d MB", maxHeap >> 20));
+        print(String.format("  rows in error:       %d transformation errors, %d rolled back batches",
+                attribute("org.apache.flume.other:type=" + SINK_NAME, "TransErrorCount"),
+                attribute("org.apache.flume.other:type=" + SINK_NAME, "BatchRollbackCount")));
+    }
+
+    private Interval sample(long time) {
+        Interval interval = new Interval();
+        interval.time = time;
+
+        interval.in = traffic != null ? traffic.getGenerated()
+                : attribute("org.apache.flume.source:type=" + SOURCE_NAME, "EventAcceptedCount");
+        interval.out = attribute("org.apache.flume.sink:type=" + SINK_NAME, "EventDrainSuccessCount");
+        interval.channelFill = doubleAttribute("org.apache.flume.channel:type=" + CHANNEL_NAME,
+                "ChannelFillPercentage");
+
+        String latency = "org.pentaho.di.flume:type=LatencyTracker,name=" + ObjectName.quote(SINK_NAME);
+        interval.channelP50 = doubleAttribute(latency, "ChannelLatencyP50Us");
+        interval.channelP99 = doubleAttribute(latency, "ChannelLatencyP99Us");
+        interval.channelP999 = doubleAttribute(latency, "ChannelLatencyP999Us");
+        interval.endToEndP99 = doubleAttribute(latency, "EndToEndLatencyP99Us");
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            interval.gcCount += Math.max(0, gc.getCollectionCount());
+            interval.gcTime += Math.max(0, gc.getCollectionTime());
+        }
+
+        interval.heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+        return interval;
+    }
+
+    private long attribute(String name, String attribute) {
+        Object value = read(name, attribute);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private double doubleAttribute(String name, String attribute) {
+        Object value = read(name, attribute);
+        return value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+
+    private Object read(String name, String attribute) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            ObjectName objectName = new ObjectName(name);
+            return server.isRegistered(objectName) ? server.getAttribute(objectName, attribute) : null;
+        } catch (JMException e) {
+            return null;
+        }
+    }
+
+    private Map<String, String> prefixedProperties(String prefix) {
+        Map<String, String> properties = new HashMap<String, String>();
+
+        for (String key : config.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                properties.put(key, config.getProperty(key));
+            }
+        }
+
+        return properties;
+    }
+
+    private Map<String, String> subProperties(String prefix) {
+        Map<String, String> properties = new HashMap<String, String>();
+
+        for (Map.Entry<String, String> entry : prefixedProperties(prefix).entrySet()) {
+            properties.put(entry.getKey().substring(prefix.length()), entry.getValue());
+        }
+
+        return properties;
+    }
+
+    private static void setDefault(Context context, String key, String value) {
+        if (context.getString(key) == null) {
+            context.put(key, value);
+        }
+    }
+
+    private void print(String line) {
+        System.out.println(line);
+        report.println(line);
+        report.flush();
+    }
+
+    /**
+     * The counters read at the end of a report interval.
+     */
+    private static class Interval {
+
+        private long time;
+
+        private long elapsed;
+
+        private long in;
+
+        private long out;
+
+        private long inDelta;
+
+        private long outDelta;
+
+        private double inRate;
+
+        private double outRate;
+
+        private double channelFill;
+
+        private double channelP50;
+
+        private double channelP99;
+
+        private double channelP999;
+
+        private double endToEndP99;
+
+        private long gcCount;
+
+        private long gcTime;
+
+        private long gcCountDelta;
+
+        private long gcTimeDelta;
+
+        private long heapUsed;
+
+        private void since(Interval previous) {
+            elapsed = Math.max(1, time - previous.time);
+            inDelta = in - previous.in;
+            outDelta = out - previous.out;
+            inRate = inDelta * 1000.0 / elapsed;
+            outRate = outDelta * 1000.0 / elapsed;
+            gcCountDelta = gcCount - previous.gcCount;
+            gcTimeDelta = gcTime - previous.gcTime;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.pentaho.di.flume;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.flume.ChannelException;
+import org.apache.flume.Event;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.event.EventBuilder;
+
+/**
+ * Puts synthetic events into a channel at a fixed rate, in batches, with body sizes drawn from a weighted
+ * distribution. Every event is stamped with the time it was scheduled, not the time it was put, so a channel that
+ * holds the generator back shows up in the latencies instead of slowing the schedule down.
+ */
+public class SyntheticTraffic implements Runnable {
+
+    // Pause before retrying a batch the channel refused
+    private static final long REFUSED_PAUSE = 10L;
+
+    // Where the events are put
+    private final ChannelProcessor channelProcessor;
+
+    // Target rate in events per second, 0 puts events as fast as the channel takes them
+    private final long rate;
+
+    // Number of events put at once
+    private final int batchSize;
+
+    // Body sizes and their cumulative weights
+    private final int[] sizes;
+
+    private final double[] cumulativeWeights;
+
+    // Events accepted by the channel
+    private final AtomicLong generated = new AtomicLong();
+
+    // Batches refused by the full channel
+    private final AtomicLong refused = new AtomicLong();
+
+    // Cleared to stop the generator
+    private volatile boolean running = true;
+
+    /**
+     * @param channelProcessor where the events are put
+     * @param rate             the target rate in events per second, 0 for no limit
+     * @param batchSize        the number of events put at once
+     * @param bodySizes        the body size distribution, as size:weight pairs separated by commas
+     */
+    public SyntheticTraffic(ChannelProcessor channelProcessor, long rate, int batchSize, String bodySizes) {
+        this.channelProcessor = channelProcessor;
+        this.rate = rate;
+        this.batchSize = batchSize;
+
+        String[] entries = bodySizes.split(",");
+        sizes = new int[entries.length];
+        cumulativeWeights = new double[entries.length];
+
+        double total = 0;
+
+        for (int i = 0; i < entries.length; i++) {
+            String[] entry = entries[i].trim().split(":");
+            sizes[i] = Integer.parseInt(entry[0].trim());
+            total += entry.length > 1 ? Double.parseDouble(entry[1].trim()) : 1;
+            cumulativeWeights[i] = total;
+        }
+
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            cumulativeWeights[i] /= total;
+        }
+    }
+
+    @Override
+    public void run() {
+        Random random = new Random();
+        Map<Integer, byte[]> bodies = new HashMap<Integer, byte[]>();
+        long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(batchSize) / rate : 0;
+        long nextBatch = System.nanoTime();
+
+        while (running) {
+            if (intervalNanos > 0) {
+                long wait = nextBatch - System.nanoTime();
+
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            // The intended time, a late batch keeps its place in the schedule
+            long scheduled = LatencyTracker.now() - Math.max(0, System.nanoTime() - nextBatch);
+            List<Event> batch = new ArrayList<Event>(batchSize);
+
+            for (int i = 0; i < batchSize; i++) {
+                int size = nextSize(random);
+                byte[] body = bodies.get(size);
+
+                if (body == null) {
+                    body = new byte[size];
+                    Arrays.fill(body, (byte) 'x');
+                    bodies.put(size, body);
+                }
+
+                Map<String, String> headers = new HashMap<String, String>();
+                headers.put(LatencyTracker.ORIGIN_HEADER, Long.toString(scheduled));
+
+                batch.add(EventBuilder.withBody(body, headers));
+            }
+
+            while (running) {
+                try {
+                    channelProcessor.processEventBatch(batch);
+                    generated.addAndGet(batch.size());
+                    break;
+                } catch (ChannelException e) {
+                    refused.incrementAndGet();
+
+                    try {
+                        Thread.sleep(REFUSED_PAUSE);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+
+            nextBatch += intervalNanos;
+        }
+    }
+
+    /**
+     * Stops generating after the current batch.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * @return the number of events accepted by the channel
+     */
+    public long getGenerated() {
+        return generated.get();
+    }
+
+    /**
+     * @return the number of batches refused by the full channel
+     */
+    public long getRefused() {
+        return refused.get();
+    }
+
+    private int nextSize(Random random) {
+        double draw = random.nextDouble();
+
+        for (int i = 0; i < sizes.length; i++) {
+            if (draw < cumulativeWeights[i]) {
+                return sizes[i];
+            }
+        }
+
+        return sizes[sizes.length - 1];
+    }
+}
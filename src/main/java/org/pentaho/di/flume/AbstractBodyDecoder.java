@@ -0,0 +1,141 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+
+import org.apache.flume.Context;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+/**
+ * Resolves the "fields" property of the body decoders, a comma separated list of injector field names, and converts
+ * the decoded text values to the type of their field.
+ */
+public abstract class AbstractBodyDecoder implements BodyDecoder {
+
+    // Constants for the operation
+    public static final String FIELDS = "fields";
+
+    // The charset of the text bodies
+    protected Charset charset;
+
+    // Names of the decoded fields, in the configured order
+    protected String[] fieldNames;
+
+    // Indexes of the decoded fields in the injector row, -1 for skipped entries
+    protected int[] fieldIndexes;
+
+    // Kettle types of the decoded fields
+    protected int[] fieldTypes;
+
+    // Metadata of the decoded fields, used for the conversions without a fast path
+    private ValueMetaInterface[] fieldValueMetas;
+
+    // Metadata describing the decoded text values, used as the source of the conversions
+    private final ValueMetaInterface textMeta = new ValueMetaString("body");
+
+    @Override
+    public void configure(Context context, RowMetaInterface injectorRowMeta, Charset charset) throws KettleException {
+        this.charset = charset;
+
+        String fields = context.getString(FIELDS);
+
+        if (fields == null) {
+            throw new KettleException("Please configure the sinkBodyDecoder.fields variable.");
+        }
+
+        this.fieldNames = fields.split(",", -1);
+        this.fieldIndexes = new int[fieldNames.length];
+        this.fieldTypes = new int[fieldNames.length];
+        this.fieldValueMetas = new ValueMetaInterface[fieldNames.length];
+
+        for (int i = 0; i < fieldNames.length; i++) {
+            fieldNames[i] = fieldNames[i].trim();
+
+            if (fieldNames[i].isEmpty()) {
+                fieldIndexes[i] = -1;
+                continue;
+            }
+
+            fieldIndexes[i] = injectorRowMeta.indexOfValue(fieldNames[i]);
+
+            if (fieldIndexes[i] < 0) {
+                throw new KettleException("Couldn't find field " + fieldNames[i] + " in the injector step.");
+            }
+
+            fieldValueMetas[i] = injectorRowMeta.getValueMeta(fieldIndexes[i]);
+            fieldTypes[i] = fieldValueMetas[i].getType();
+        }
+    }
+
+    /**
+     * Converts a decoded text value to the type of its field.
+     *
+     * @param field the position of the field in the configured list
+     * @param text  the decoded value
+     * @return the typed value
+     * @throws KettleValueException if the value can't be converted
+     */
+    protected Object toValue(int field, String text) throws KettleValueException {
+        try {
+            switch (fieldTypes[field]) {
+                case ValueMetaInterface.TYPE_STRING:
+                    return text;
+                case ValueMetaInterface.TYPE_INTEGER:
+                    return Long.valueOf(text.trim());
+                case ValueMetaInterface.TYPE_NUMBER:
+                    return Double.valueOf(text.trim());
+                case ValueMetaInterface.TYPE_BIGNUMBER:
+                    return new BigDecimal(text.trim());
+                case ValueMetaInterface.TYPE_BOOLEAN:
+                    return toBoolean(field, text.trim());
+                case ValueMetaInterface.TYPE_BINARY:
+                    return text.getBytes(charset);
+                default:
+                    return fieldValueMetas[field].convertData(textMeta, text);
+            }
+        } catch (NumberFormatException e) {
+            throw new KettleValueException("Unable to convert value " + text + " of field " + fieldNames[field], e);
+        }
+    }
+
+    /**
+     * Accepts true/false, Y/N and 1/0, any other value is corrupt input rather than false.
+     */
+    private Boolean toBoolean(int field, String text) throws KettleValueException {
+        if ("true".equalsIgnoreCase(text) || "Y".equalsIgnoreCase(text) || "1".equals(text)) {
+            return Boolean.TRUE;
+        } else if ("false".equalsIgnoreCase(text) || "N".equalsIgnoreCase(text) || "0".equals(text)) {
+            return Boolean.FALSE;
+        }
+
+        throw new KettleValueException("Unable to convert value " + text + " of field " + fieldNames[field]
+                + " to a boolean.");
+    }
+}
@@ -0,0 +1,343 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.flume.Context;
+import org.apache.flume.conf.Configurable;
+import org.apache.flume.instrumentation.SourceCounter;
+import org.apache.flume.source.AbstractSource;
+import org.apache.log4j.Logger;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogLevel;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepInterface;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Configuration and transformation handling shared by the Flume sources that generate their events with a kettle
+ * transformation.
+ */
+public abstract class AbstractKettleSource extends AbstractSource implements Configurable {
+
+    // The logger
+    private static final Logger logger = Logger.getLogger(AbstractKettleSource.class);
+
+    // Constants for the operation
+    public static final String SOURCE_TRANS_PATH = "sourceTransPath";
+
+    public static final String SOURCE_OUTPUT_NAME = "sourceOutputName";
+
+    public static final String SOURCE_LOG_LEVEL = "sourceLogLevel";
+
+    public static final String SOURCE_BATCH_SIZE = "sourceBatchSize";
+
+    public static final String SOURCE_BODY_FIELD = "sourceBodyField";
+
+    public static final String SOURCE_CHARSET = "sourceCharset";
+
+    public static final String SOURCE_HEADER_FIELDS = "sourceHeaderFields.";
+
+    public static final String SOURCE_TIMESTAMP_HEADER = "sourceTimestampHeader";
+
+    public static final String SOURCE_RELOAD_CHECK = "sourceReloadCheckMs";
+
+    public static final String SOURCE_PACK_ROWS = "sourcePackRows";
+
+    public static final String SOURCE_PACK_CODEC = "sourcePackCodec";
+
+    public static final String SOURCE_ORIGIN_TIMESTAMP = "sourceOriginTimestamp";
+
+    public static final String SOURCE_PROFILE_INTERVAL = "sourceProfileIntervalMs";
+
+    public static final String SOURCE_PROFILE_LOG = "sourceProfileLog";
+
+    private static final String DEFAULT_SOURCE_LOG_LEVEL = "BASIC";
+
+    private static final long DEFAULT_SOURCE_RELOAD_CHECK = 0L;
+
+    private static final int DEFAULT_SOURCE_PACK_ROWS = 0;
+
+    private static final long DEFAULT_SOURCE_PROFILE_INTERVAL = 0L;
+
+    // Path to find the PDI transformation
+    protected String sourceTransPath;
+
+    // Name of the step used to inject events
+    protected String sourceOutputName;
+
+    // The logging level for the PDI execution
+    protected String sourceLogLevel;
+
+    // Number of events delivered to the channel at once
+    protected int sourceBatchSize;
+
+    // Name of the output field holding the event body
+    protected String sourceBodyField;
+
+    // The charset used to encode non binary event bodies
+    protected Charset sourceCharset;
+
+    // Event headers filled from output fields
+    protected Map<String, String> sourceHeaderFields;
+
+    // Name of the header receiving the event creation time
+    protected String sourceTimestampHeader;
+
+    // Time between two checks of the transformation file for changes, 0 disables the hot reload
+    protected long sourceReloadCheck;
+
+    // Number of output rows packed into a single event, 0 sends every row as its own event
+    protected int sourcePackRows;
+
+    // Compression of the row packs, none or deflate
+    protected String sourcePackCodec;
+
+    // Whether the events carry the origin timestamp used by the sink latency tracking
+    protected boolean sourceOriginTimestamp;
+
+    // Time between two samples of the transformation steps, 0 disables the step profiler
+    protected long sourceProfileInterval;
+
+    // Whether the step samples are logged as JSON
+    protected boolean sourceProfileLog;
+
+    // Runtime step profiler, only used when profiling
+    private StepProfiler stepProfiler;
+
+    // Runtime watcher of the transformation file, only used when hot reloading
+    private TransformationWatcher transformationWatcher;
+
+    // Standard Flume source metrics
+    protected SourceCounter sourceCounter;
+
+    // Kettle specific metrics
+    protected KettleCounter kettleCounter;
+
+    // Lazy env init
+    private PentahoKettleEnvironment env = PentahoKettleEnvironment.INSTANCE;
+
+    /**
+     * @return the batch size used when the source doesn't configure one
+     */
+    protected abstract int getDefaultBatchSize();
+
+    /**
+     * Called from the watcher thread when the transformation file changed, to load the new transformation and
+     * replace the running one.
+     *
+     * @throws KettleException if the new transformation can't be loaded, the running one is kept
+     */
+    protected abstract void reloadTransformation() throws KettleException;
+
+    @Override
+    public void configure(Context context) {
+        this.sourceTransPath = context.getString(SOURCE_TRANS_PATH);
+        Preconditions.checkNotNull(this.sourceTransPath, "Please configure the sourceTransPath variable.");
+
+        this.sourceOutputName = context.getString(SOURCE_OUTPUT_NAME);
+        Preconditions.checkNotNull(this.sourceOutputName, "Please configure the sourceOutputName variable.");
+
+        this.sourceLogLevel = (String) ObjectUtils.defaultIfNull(context.getString(SOURCE_LOG_LEVEL),
+                DEFAULT_SOURCE_LOG_LEVEL);
+
+        this.sourceBatchSize = context.getInteger(SOURCE_BATCH_SIZE, getDefaultBatchSize());
+        Preconditions.checkArgument(this.sourceBatchSize > 0, "The sourceBatchSize must be greater than zero.");
+
+        this.sourceBodyField = context.getString(SOURCE_BODY_FIELD, RowEventEncoder.OUTPUT_BODY_FIELD_NAME);
+
+        String charsetName = context.getString(SOURCE_CHARSET);
+        this.sourceCharset = charsetName != null ? Charset.forName(charsetName) : Charset.defaultCharset();
+
+        this.sourceHeaderFields = context.getSubProperties(SOURCE_HEADER_FIELDS);
+
+        this.sourceTimestampHeader = context.getString(SOURCE_TIMESTAMP_HEADER);
+
+        this.sourceReloadCheck = context.getLong(SOURCE_RELOAD_CHECK, DEFAULT_SOURCE_RELOAD_CHECK);
+        Preconditions.checkArgument(this.sourceReloadCheck >= 0, "The sourceReloadCheckMs can't be negative.");
+
+        this.sourcePackRows = context.getInteger(SOURCE_PACK_ROWS, DEFAULT_SOURCE_PACK_ROWS);
+        Preconditions.checkArgument(this.sourcePackRows >= 0, "The sourcePackRows can't be negative.");
+
+        this.sourcePackCodec = context.getString(SOURCE_PACK_CODEC, RowPacker.CODEC_NONE);
+        Preconditions.checkArgument(RowPacker.CODEC_NONE.equals(this.sourcePackCodec)
+                || RowPacker.CODEC_DEFLATE.equals(this.sourcePackCodec),
+                "The sourcePackCodec must be none or deflate.");
+
+        this.sourceOriginTimestamp = context.getBoolean(SOURCE_ORIGIN_TIMESTAMP, false);
+
+        this.sourceProfileInterval = context.getLong(SOURCE_PROFILE_INTERVAL, DEFAULT_SOURCE_PROFILE_INTERVAL);
+        Preconditions.checkArgument(this.sourceProfileInterval >= 0, "The sourceProfileIntervalMs can't be negative.");
+
+        this.sourceProfileLog = context.getBoolean(SOURCE_PROFILE_LOG, false);
+
+        if (sourceCounter == null) {
+            sourceCounter = new SourceCounter(getName());
+        }
+
+        if (kettleCounter == null) {
+            kettleCounter = new KettleCounter(getName());
+        }
+    }
+
+    /**
+     * Loads and prepares the source transformation.
+     *
+     * @param executionType blocking (single threaded) vs nonblocking execution
+     * @return the prepared transformation, its threads not started yet
+     * @throws KettleException if the transformation can't be loaded or prepared
+     */
+    protected Trans prepareTransformation(TransExecutionType executionType) throws KettleException {
+        TransMeta transMeta = TransMetaCache.INSTANCE.getTransMeta(this.sourceTransPath);
+
+        // If running in blocking mode, make sure the transformation type is single threaded
+        if (executionType == TransExecutionType.BLOCKING) {
+            transMeta.setTransformationType(TransMeta.TransformationType.SingleThreaded);
+            transMeta.setUsingThreadPriorityManagment(false);
+        }
+
+        Trans trans = new Trans(transMeta);
+        trans.prepareExecution(null);
+        trans.setLogLevel(LogLevel.valueOf(this.sourceLogLevel));
+
+        logger.debug("Loaded source transformation from: " + this.sourceTransPath);
+
+        return trans;
+    }
+
+    /**
+     * Finds the output step of a prepared transformation.
+     *
+     * @param trans the prepared transformation
+     * @return the output step
+     */
+    protected StepInterface findOutputStep(Trans trans) {
+        StepInterface outputStep = trans.getStepInterface(this.sourceOutputName, 0);
+
+        Preconditions.checkNotNull(outputStep, "Couldn't find Output step with name: " + this.sourceOutputName);
+
+        return outputStep;
+    }
+
+    /**
+     * Builds the row to event converter for the rows of the output step.
+     *
+     * @param trans      the prepared transformation
+     * @param outputStep its output step
+     * @return the converter
+     * @throws KettleException if the output rows can't be converted into events
+     */
+    protected RowEventEncoder createEncoder(Trans trans, StepInterface outputStep) throws KettleException {
+        return new RowEventEncoder(trans.getTransMeta().getStepFields(outputStep.getStepMeta()), sourceBodyField,
+                sourceCharset, sourceHeaderFields, sourceTimestampHeader, sourceOriginTimestamp);
+    }
+
+    /**
+     * Builds the packer of the rows of the output step, if packing is enabled.
+     *
+     * @param trans       the prepared transformation
+     * @param outputStep  its output step
+     * @param packTimeout the maximum age of a packed row in milliseconds, 0 means no time limit
+     * @param handler     receives the complete packs
+     * @return the packer, not started, or null if packing is disabled
+     * @throws KettleException if the output row metadata can't be read
+     */
+    protected RowPacker createPacker(Trans trans, StepInterface outputStep, long packTimeout,
+                                     RowPacker.PackHandler handler) throws KettleException {
+        if (sourcePackRows <= 0) {
+            return null;
+        }
+
+        return new RowPacker(trans.getTransMeta().getStepFields(outputStep.getStepMeta()), sourcePackRows,
+                sourcePackCodec, sourceTimestampHeader, sourceOriginTimestamp, packTimeout, handler);
+    }
+
+    /**
+     * Starts watching the transformation file, if the hot reload is enabled.
+     *
+     * @throws KettleException if the file can't be read
+     */
+    protected void startTransformationWatcher() throws KettleException {
+        if (sourceReloadCheck > 0) {
+            transformationWatcher = new TransformationWatcher(sourceTransPath, sourceReloadCheck,
+                    new TransformationWatcher.Listener() {
+                        @Override
+                        public void transformationChanged(String path) throws KettleException {
+                            reloadTransformation();
+                        }
+                    });
+            transformationWatcher.start(getName());
+        }
+    }
+
+    /**
+     * Stops watching the transformation file, waiting for a reload in progress.
+     */
+    protected void stopTransformationWatcher() {
+        if (transformationWatcher != null) {
+            transformationWatcher.stop();
+            transformationWatcher = null;
+        }
+    }
+
+    /**
+     * Starts sampling the steps of the running transformation, if the step profiler is enabled.
+     *
+     * @param trans the running transformation
+     */
+    protected void startStepProfiler(Trans trans) {
+        if (sourceProfileInterval > 0) {
+            stepProfiler = new StepProfiler(getName(), sourceProfileInterval, sourceProfileLog);
+            stepProfiler.setTransformations(Collections.singletonList(trans));
+            stepProfiler.start();
+        }
+    }
+
+    /**
+     * Samples the steps of a reloaded transformation from now on.
+     *
+     * @param trans the new running transformation
+     */
+    protected void profileTransformation(Trans trans) {
+        if (stepProfiler != null) {
+            stepProfiler.setTransformations(Collections.singletonList(trans));
+        }
+    }
+
+    /**
+     * Stops the step profiler.
+     */
+    protected void stopStepProfiler() {
+        if (stepProfiler != null) {
+            stepProfiler.stop();
+            stepProfiler = null;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+/**
+ * Tracks which injected rows have cleared the sink transformation.
+ * <p/>
+ * Every injected row gets a sequence number. A row reaching the terminal step either acknowledges the next
+ * sequence number, when rows are counted, or every sequence number up to the one it carries, when the rows
+ * hold their sequence in a field. Batch owners wait until all the rows of their batch are acknowledged.
+ */
+public class AckTracker {
+
+    // Number of rows injected so far, also the sequence of the next injected row
+    private long injected = 0;
+
+    // Number of rows that cleared the transformation
+    private long acknowledged = 0;
+
+    // Lowest acknowledgement a waiting thread needs to wake up
+    private long nextWakeUp = Long.MAX_VALUE;
+
+    // True when no more acknowledgements can arrive
+    private boolean failed = false;
+
+    /**
+     * @return the sequence number assigned to the next injected row
+     */
+    public synchronized long nextSequence() {
+        return injected++;
+    }
+
+    /**
+     * @return the number of rows injected so far
+     */
+    public synchronized long getInjected() {
+        return injected;
+    }
+
+    /**
+     * @return the number of rows acknowledged so far
+     */
+    public synchronized long getAcknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     * Acknowledges the oldest unacknowledged row.
+     */
+    public synchronized void acknowledge() {
+        acknowledged++;
+        wakeUpWaiters();
+    }
+
+    /**
+     * Acknowledges every row up to and including the given sequence.
+     *
+     * @param sequence the sequence of a row that cleared the transformation
+     */
+    public synchronized void acknowledge(long sequence) {
+        if (sequence >= acknowledged) {
+            acknowledged = sequence + 1;
+            wakeUpWaiters();
+        }
+    }
+
+    /**
+     * Releases all the waiting threads without acknowledging their rows, for instance when the transformation
+     * stopped.
+     */
+    public synchronized void fail() {
+        failed = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the given number of rows is acknowledged.
+     *
+     * @param count   the number of rows that must be acknowledged
+     * @param timeout the maximum time to wait in milliseconds
+     * @return true if the rows were acknowledged, false on timeout or failure
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized boolean awaitAcknowledged(long count, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (acknowledged < count && !failed) {
+            long remaining = deadline - System.currentTimeMillis();
+
+            if (remaining <= 0) {
+                return false;
+            }
+
+            nextWakeUp = Math.min(nextWakeUp, count);
+            wait(remaining);
+        }
+
+        return acknowledged >= count;
+    }
+
+    private void wakeUpWaiters() {
+        if (acknowledged >= nextWakeUp) {
+            nextWakeUp = Long.MAX_VALUE;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.flume.ChannelException;
+import org.apache.flume.Event;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.instrumentation.SourceCounter;
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Decouples the source transformation from the channel: the output step only hands the events over to a bounded
+ * queue, and dedicated threads drain it in batches into the channel, retrying with an exponential back-off while
+ * the channel refuses them. The transformation only blocks when the queue is full. With a channel spill the refused
+ * batches are spilled to disk, and only retried when the spill store is full.
+ * <p/>
+ * With more than one delivery thread the events of different batches may reach the channel out of order.
+ * <p/>
+ * The hand-off is an {@link ArrayBlockingQueue} rather than a lock-free ring buffer: the producer has to block when
+ * the queue is full and the delivery threads have to wait for events, which a blocking queue provides without a
+ * separate wait strategy, and its single lock is not contended next to the cost of a channel transaction.
+ */
+public class AsyncEventDelivery {
+
+    // The logger
+    private static final Logger logger = Logger.getLogger(AsyncEventDelivery.class);
+
+    // Where the batches are delivered
+    private final ChannelProcessor channelProcessor;
+
+    // Standard Flume source metrics
+    private final SourceCounter sourceCounter;
+
+    // Kettle specific metrics
+    private final KettleCounter kettleCounter;
+
+    // Where the refused batches go, null if not spilling
+    private final ChannelSpill channelSpill;
+
+    // Events waiting to be delivered
+    private final BlockingQueue<Event> queue;
+
+    // Maximum number of events delivered at once
+    private final int batchSize;
+
+    // Maximum time a delivery thread waits for new events
+    private final long pollTimeout;
+
+    // First back-off after a failed delivery
+    private final long retryInterval;
+
+    // Longest back-off between retries
+    private final long maxRetryInterval;
+
+    // Number of delivery threads
+    private final int threads;
+
+    // Runtime delivery threads
+    private ExecutorService deliveryThreads;
+
+    // False once no more events are accepted
+    private volatile boolean accepting;
+
+    // False once no more events will be added
+    private volatile boolean running;
+
+    public AsyncEventDelivery(ChannelProcessor channelProcessor, SourceCounter sourceCounter,
+                              KettleCounter kettleCounter, ChannelSpill channelSpill, int queueSize, int batchSize,
+                              long pollTimeout, long retryInterval, long maxRetryInterval, int threads) {
+        this.channelProcessor = channelProcessor;
+        this.sourceCounter = sourceCounter;
+        this.kettleCounter = kettleCounter;
+        this.channelSpill = channelSpill;
+        this.queue = new ArrayBlockingQueue<Event>(queueSize);
+        this.batchSize = batchSize;
+        this.pollTimeout = pollTimeout;
+        this.retryInterval = retryInterval;
+        this.maxRetryInterval = maxRetryInterval;
+        this.threads = threads;
+    }
+
+    /**
+     * Starts the delivery threads.
+     *
+     * @param name the name used for the delivery threads
+     */
+    public void start(String name) {
+        accepting = true;
+        running = true;
+        deliveryThreads = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat(name + "-delivery-%d").setDaemon(true).build());
+
+        for (int i = 0; i < threads; i++) {
+            deliveryThreads.execute(new Deliverer());
+        }
+    }
+
+    /**
+     * Delivers the queued events and stops the delivery threads, the events still queued after the timeout are
+     * lost.
+     *
+     * @param timeout the maximum time to wait for the queue to be drained, in milliseconds
+     */
+    public void stop(long timeout) {
+        accepting = false;
+        running = false;
+        deliveryThreads.shutdown();
+
+        try {
+            if (!deliveryThreads.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                deliveryThreads.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            deliveryThreads.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        if (!queue.isEmpty()) {
+            logger.error("Stopped with " + queue.size() + " undelivered events.");
+        }
+    }
+
+    /**
+     * Stops accepting new events, releasing the threads waiting for room in the queue.
+     */
+    public void close() {
+        accepting = false;
+    }
+
+    /**
+     * Queues an event, blocking while the queue is full.
+     *
+     * @param event the event to deliver
+     * @throws InterruptedException  if interrupted while waiting for room in the queue
+     * @throws IllegalStateException if the delivery was closed
+     */
+    public void add(Event event) throws InterruptedException {
+        while (!queue.offer(event, pollTimeout, TimeUnit.MILLISECONDS)) {
+            if (!accepting) {
+                throw new IllegalStateException("The event delivery is closed.");
+            }
+        }
+    }
+
+    /**
+     * @return the number of events waiting to be delivered
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Drains the queue in batches until the delivery is stopped and the queue is empty.
+     */
+    private class Deliverer implements Runnable {
+
+        @Override
+        public void run() {
+            List<Event> batch = new ArrayList<Event>(batchSize);
+
+            try {
+                while (running || !queue.isEmpty()) {
+                    Event first = queue.poll(pollTimeout, TimeUnit.MILLISECONDS);
+
+                    if (first == null) {
+                        continue;
+                    }
+
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+
+                    deliver(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                if (!batch.isEmpty()) {
+                    logger.error("Interrupted with " + batch.size() + " undelivered events.");
+                }
+            }
+        }
+
+        private void deliver(List<Event> batch) throws InterruptedException {
+            long backOff = retryInterval;
+
+            // Received once, however many times it is retried
+            sourceCounter.incrementAppendBatchReceivedCount();
+
+            while (true) {
+                try {
+                    if (channelSpill == null) {
+                        channelProcessor.processEventBatch(batch);
+                    } else if (!channelSpill.deliver(batch)) {
+                        // Accepted by the spill replay
+                        kettleCounter.addBatch(batch.size());
+                        return;
+                    }
+
+                    sourceCounter.incrementAppendBatchAcceptedCount();
+                    sourceCounter.addToEventAcceptedCount(batch.size());
+                    kettleCounter.addBatch(batch.size());
+                    return;
+                } catch (ChannelException e) {
+                    kettleCounter.incrementDeliveryRetryCount();
+                    logger.warn("Channel refused a batch of " + batch.size() + " events, retrying in "
+                            + backOff + " ms.", e);
+
+                    Thread.sleep(backOff);
+                    backOff = Math.min(backOff * 2, maxRetryInterval);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.flume.Context;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Reads a body holding one Avro binary encoded record of the configured schema, each configured field receiving the
+ * record field of the same name. The binary decoder and the record are reused between events.
+ */
+public class AvroBodyDecoder extends AbstractBodyDecoder {
+
+    // Constants for the operation
+    public static final String SCHEMA = "schema";
+
+    public static final String SCHEMA_FILE = "schemaFile";
+
+    // Reads the records of the configured schema
+    private GenericDatumReader<GenericRecord> datumReader;
+
+    // Positions of the configured fields in the record
+    private int[] recordPositions;
+
+    // Reused binary decoder
+    private BinaryDecoder binaryDecoder;
+
+    // Reused record
+    private GenericRecord record;
+
+    @Override
+    public void configure(Context context, RowMetaInterface injectorRowMeta, Charset charset) throws KettleException {
+        super.configure(context, injectorRowMeta, charset);
+
+        Schema schema;
+        String schemaFile = context.getString(SCHEMA_FILE);
+
+        try {
+            if (schemaFile != null) {
+                schema = new Schema.Parser().parse(new File(schemaFile));
+            } else if (context.getString(SCHEMA) != null) {
+                schema = new Schema.Parser().parse(context.getString(SCHEMA));
+            } else {
+                throw new KettleException("Please configure the sinkBodyDecoder.schema or schemaFile variable.");
+            }
+        } catch (IOException e) {
+            throw new KettleException("Unable to read the Avro schema " + schemaFile, e);
+        } catch (RuntimeException e) {
+            throw new KettleException("Unable to parse the Avro schema.", e);
+        }
+
+        if (schema.getType() != Schema.Type.RECORD) {
+            throw new KettleException("The Avro schema must describe a record.");
+        }
+
+        recordPositions = new int[fieldNames.length];
+
+        for (int i = 0; i < fieldNames.length; i++) {
+            if (fieldIndexes[i] >= 0) {
+                Schema.Field recordField = schema.getField(fieldNames[i]);
+
+                if (recordField == null) {
+                    throw new KettleException("Couldn't find field " + fieldNames[i] + " in the Avro schema.");
+                }
+
+                recordPositions[i] = recordField.pos();
+            }
+        }
+
+        datumReader = new GenericDatumReader<GenericRecord>(schema);
+    }
+
+    @Override
+    public void decode(byte[] body, Object[] row) throws KettleValueException {
+        try {
+            binaryDecoder = DecoderFactory.get().binaryDecoder(body, binaryDecoder);
+            record = datumReader.read(record, binaryDecoder);
+        } catch (IOException e) {
+            throw new KettleValueException("Unable to decode the Avro event body.", e);
+        } catch (RuntimeException e) {
+            throw new KettleValueException("Unable to decode the Avro event body.", e);
+        }
+
+        for (int i = 0; i < fieldIndexes.length; i++) {
+            if (fieldIndexes[i] >= 0) {
+                row[fieldIndexes[i]] = toValue(i, record.get(recordPositions[i]));
+            }
+        }
+    }
+
+    /**
+     * Keeps the Avro values that already have the Kettle type of the field, converts the others.
+     */
+    private Object toValue(int field, Object value) throws KettleValueException {
+        if (value == null) {
+            return null;
+        }
+
+        switch (fieldTypes[field]) {
+            case ValueMetaInterface.TYPE_INTEGER:
+                if (value instanceof Long || value instanceof Integer) {
+                    return ((Number) value).longValue();
+                }
+                break;
+            case ValueMetaInterface.TYPE_NUMBER:
+                if (value instanceof Double || value instanceof Float) {
+                    return ((Number) value).doubleValue();
+                }
+                break;
+            case ValueMetaInterface.TYPE_BOOLEAN:
+                if (value instanceof Boolean) {
+                    return value;
+                }
+                break;
+            case ValueMetaInterface.TYPE_BINARY:
+                if (value instanceof ByteBuffer) {
+                    ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    return bytes;
+                }
+                break;
+            default:
+                break;
+        }
+
+        return toValue(field, value.toString());
+    }
+}
@@ -0,0 +1,58 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.nio.charset.Charset;
+
+import org.apache.flume.Context;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+/**
+ * Decodes the body of an event into typed fields of the sink injector row, so the transformation doesn't need a
+ * parsing step. A decoder instance is created for each transformation instance and reused for all its events, it is
+ * only used by one thread at a time.
+ */
+public interface BodyDecoder {
+
+    /**
+     * Resolves the decoded fields against the injector step, called once before any event is decoded.
+     *
+     * @param context         the decoder properties, without the sinkBodyDecoder. prefix
+     * @param injectorRowMeta the row metadata of the injector step
+     * @param charset         the charset of the text bodies
+     * @throws KettleException if the configuration doesn't match the injector step
+     */
+    void configure(Context context, RowMetaInterface injectorRowMeta, Charset charset) throws KettleException;
+
+    /**
+     * Writes the fields decoded from the body into the row, fields missing from the body are left untouched.
+     *
+     * @param body the event body
+     * @param row  the injector row
+     * @throws KettleValueException if the body can't be decoded
+     */
+    void decode(byte[] body, Object[] row) throws KettleValueException;
+}
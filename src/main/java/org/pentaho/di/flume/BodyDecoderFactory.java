@@ -0,0 +1,78 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.nio.charset.Charset;
+
+import org.apache.flume.Context;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+/**
+ * Creates the body decoders from the sinkBodyDecoder configuration: one of the built-in "delimited", "json" and
+ * "avro" decoders, or the class name of a custom {@link BodyDecoder} with a public no argument constructor.
+ */
+public final class BodyDecoderFactory {
+
+    // Built-in decoder names
+    public static final String DELIMITED = "delimited";
+
+    public static final String JSON = "json";
+
+    public static final String AVRO = "avro";
+
+    private BodyDecoderFactory() {
+    }
+
+    /**
+     * @param type            the built-in decoder name or the decoder class name
+     * @param context         the decoder properties, without the sinkBodyDecoder. prefix
+     * @param injectorRowMeta the row metadata of the injector step
+     * @param charset         the charset of the text bodies
+     * @return a configured decoder
+     * @throws KettleException if the decoder can't be created or configured
+     */
+    public static BodyDecoder create(String type, Context context, RowMetaInterface injectorRowMeta, Charset charset)
+            throws KettleException {
+        BodyDecoder decoder;
+
+        if (DELIMITED.equalsIgnoreCase(type)) {
+            decoder = new DelimitedBodyDecoder();
+        } else if (JSON.equalsIgnoreCase(type)) {
+            decoder = new JsonBodyDecoder();
+        } else if (AVRO.equalsIgnoreCase(type)) {
+            decoder = new AvroBodyDecoder();
+        } else {
+            try {
+                decoder = (BodyDecoder) Class.forName(type).newInstance();
+            } catch (Exception e) {
+                throw new KettleException("Unable to create the body decoder " + type, e);
+            }
+        }
+
+        decoder.configure(context, injectorRowMeta, charset);
+
+        return decoder;
+    }
+}
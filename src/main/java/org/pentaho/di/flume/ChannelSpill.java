@@ -0,0 +1,196 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.flume.ChannelException;
+import org.apache.flume.Event;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.instrumentation.SourceCounter;
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps a source transformation running while the channel is full: the batches the channel refuses are appended to
+ * a {@link SpillStore}, and a background thread replays them into the channel, in order, once it has room again.
+ * While spilled events remain, new batches are spilled after them instead of overtaking them.
+ * <p/>
+ * The spilled events left when the source stops stay on disk and are replayed after the next start.
+ */
+public class ChannelSpill {
+
+    // The logger
+    private static final Logger logger = Logger.getLogger(ChannelSpill.class);
+
+    // Where the batches are delivered
+    private final ChannelProcessor channelProcessor;
+
+    // Standard Flume source metrics
+    private final SourceCounter sourceCounter;
+
+    // Kettle specific metrics
+    private final KettleCounter kettleCounter;
+
+    // The spilled events
+    private final SpillStore store;
+
+    // Maximum number of events replayed at once
+    private final int replayBatchSize;
+
+    // Time between replay attempts while the channel is full
+    private final long replayInterval;
+
+    // Runtime replay thread
+    private ScheduledExecutorService replayer;
+
+    public ChannelSpill(ChannelProcessor channelProcessor, SourceCounter sourceCounter, KettleCounter kettleCounter,
+                        SpillStore store, int replayBatchSize, long replayInterval) {
+        this.channelProcessor = channelProcessor;
+        this.sourceCounter = sourceCounter;
+        this.kettleCounter = kettleCounter;
+        this.store = store;
+        this.replayBatchSize = replayBatchSize;
+        this.replayInterval = replayInterval;
+    }
+
+    /**
+     * Opens the spill store and starts the replay thread.
+     *
+     * @param name the name used for the replay thread
+     * @throws IOException if the spill store can't be opened
+     */
+    public void start(String name) throws IOException {
+        store.open();
+        updateGauges();
+
+        replayer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat(name + "-spill-replay-%d").setDaemon(true).build());
+
+        replayer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay();
+                } catch (Throwable t) {
+                    logger.error("Unable to replay the spilled events, will retry.", t);
+                }
+            }
+        }, replayInterval, replayInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the replay thread and closes the spill store, the events not replayed stay on disk.
+     */
+    public void stop() {
+        if (replayer != null) {
+            replayer.shutdownNow();
+
+            try {
+                replayer.awaitTermination(replayInterval, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            replayer = null;
+        }
+
+        if (!store.isEmpty()) {
+            logger.warn("Stopped with " + store.size() + " spilled events, they will be replayed after the restart.");
+        }
+
+        store.close();
+    }
+
+    /**
+     * Delivers a batch to the channel, or spills it if the channel refuses it or older events are still spilled.
+     *
+     * @param batch the events to deliver
+     * @return true if the batch reached the channel, false if it was spilled
+     * @throws ChannelException if the channel refused the batch and it doesn't fit in the spill store, or one of its
+     *                          events is larger than a spill segment
+     */
+    public boolean deliver(List<Event> batch) {
+        if (store.isEmpty()) {
+            try {
+                channelProcessor.processEventBatch(batch);
+                return true;
+            } catch (ChannelException e) {
+                logger.debug("Channel refused a batch of " + batch.size() + " events, spilling it.", e);
+            }
+        }
+
+        try {
+            if (!store.append(batch)) {
+                throw new ChannelException("The spill store is full, unable to spill " + batch.size() + " events.");
+            }
+        } catch (IOException e) {
+            throw new ChannelException("Unable to spill " + batch.size() + " events.", e);
+        }
+
+        kettleCounter.addToSpilledCount(batch.size());
+        updateGauges();
+
+        return false;
+    }
+
+    /**
+     * Replays the spilled events until the store is empty or the channel refuses a batch.
+     */
+    void replay() {
+        while (!Thread.currentThread().isInterrupted()) {
+            List<Event> batch = store.peek(replayBatchSize);
+
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            // The spilled events were counted as received when they were spilled
+            try {
+                channelProcessor.processEventBatch(batch);
+            } catch (ChannelException e) {
+                logger.debug("Channel refused a batch of " + batch.size() + " spilled events.", e);
+                return;
+            }
+
+            // Only removed once in the channel, a crash in between replays the batch again
+            store.remove(batch.size());
+
+            sourceCounter.incrementAppendBatchAcceptedCount();
+            sourceCounter.addToEventAcceptedCount(batch.size());
+            kettleCounter.addToSpillReplayedCount(batch.size());
+            updateGauges();
+        }
+    }
+
+    private void updateGauges() {
+        kettleCounter.setSpillPending(store.size());
+        kettleCounter.setSpillDiskUsage(store.getDiskUsage());
+    }
+}
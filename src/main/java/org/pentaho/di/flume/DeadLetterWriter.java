@@ -0,0 +1,226 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.apache.flume.serialization.EventSerializer;
+import org.apache.flume.serialization.EventSerializerFactory;
+
+/**
+ * Writes the events the sink transformation couldn't process to a dead letter file, with headers describing why they
+ * were diverted. The events are written with a Flume event serializer (avro_event by default, which keeps the
+ * headers), to a new file every time the sink starts.
+ * <p/>
+ * The diverted events are kept in memory, tagged with the batch they belong to, until the sink committed the
+ * transaction of that batch: {@link #commit(long)} then writes them and forces them to disk, while
+ * {@link #discard(long)} drops them when the batch is rolled back, so a redelivered batch isn't diverted twice.
+ */
+public class DeadLetterWriter {
+
+    // Constants for the operation
+    public static final String ERROR_STEP_HEADER = "kettle.error.step";
+
+    public static final String ERROR_REASON_HEADER = "kettle.error.reason";
+
+    // Batch of the events written with the next committed batch, whatever it is
+    public static final long UNBATCHED = -1L;
+
+    // Directory receiving the dead letter files
+    private final File directory;
+
+    // Prefix of the dead letter file names
+    private final String name;
+
+    // Flume event serializer type or class name
+    private final String serializerType;
+
+    // Properties of the event serializer
+    private final Context serializerContext;
+
+    // The current dead letter file
+    private File file;
+
+    // Runtime file stream
+    private FileOutputStream out;
+
+    // Runtime event serializer
+    private EventSerializer serializer;
+
+    // Diverted events waiting for their batch to commit, in diversion order
+    private final List<PendingLetter> pending = new ArrayList<PendingLetter>();
+
+    /**
+     * @param directory         the directory receiving the dead letter files
+     * @param name              the prefix of the dead letter file names
+     * @param serializerType    the Flume event serializer type or class name
+     * @param serializerContext the properties of the event serializer
+     */
+    public DeadLetterWriter(File directory, String name, String serializerType, Context serializerContext) {
+        this.directory = directory;
+        this.name = name;
+        this.serializerType = serializerType;
+        this.serializerContext = serializerContext;
+    }
+
+    /**
+     * Creates a new dead letter file.
+     *
+     * @throws IOException if the file can't be created
+     */
+    public synchronized void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the dead letter directory " + directory);
+        }
+
+        file = new File(directory, name + "-" + System.currentTimeMillis() + ".dead");
+        out = new FileOutputStream(file);
+
+        try {
+            serializer = EventSerializerFactory.getInstance(serializerType, serializerContext, out);
+            serializer.afterCreate();
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        } catch (RuntimeException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Keeps a copy of a diverted event, with the error headers, until its batch commits.
+     *
+     * @param event  the event, left unchanged
+     * @param step   the step, or stage of the sink, where the event failed
+     * @param reason the description of the failure
+     * @param batch  the batch the event belongs to, or {@link #UNBATCHED}
+     */
+    public synchronized void write(Event event, String step, String reason, long batch) {
+        Map<String, String> headers = new HashMap<String, String>(event.getHeaders());
+        headers.put(ERROR_STEP_HEADER, step);
+
+        if (reason != null) {
+            headers.put(ERROR_REASON_HEADER, reason);
+        }
+
+        pending.add(new PendingLetter(batch, EventBuilder.withBody(event.getBody(), headers)));
+    }
+
+    /**
+     * Writes the events of a committed batch, and the unbatched ones, and forces them to disk.
+     *
+     * @param batch the committed batch
+     * @throws IOException if the events can't be written
+     */
+    public synchronized void commit(long batch) throws IOException {
+        boolean written = false;
+
+        for (Iterator<PendingLetter> it = pending.iterator(); it.hasNext(); ) {
+            PendingLetter letter = it.next();
+
+            if (letter.batch == batch || letter.batch == UNBATCHED) {
+                serializer.write(letter.event);
+                it.remove();
+                written = true;
+            }
+        }
+
+        if (written) {
+            flush();
+        }
+    }
+
+    /**
+     * Drops the events of a rolled back batch, they are diverted again when the batch is redelivered.
+     *
+     * @param batch the rolled back batch
+     */
+    public synchronized void discard(long batch) {
+        for (Iterator<PendingLetter> it = pending.iterator(); it.hasNext(); ) {
+            if (it.next().batch == batch) {
+                it.remove();
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        serializer.flush();
+        out.flush();
+        out.getFD().sync();
+    }
+
+    /**
+     * Writes the remaining unbatched events and closes the dead letter file, the events of batches that never
+     * committed are dropped.
+     *
+     * @throws IOException if the file can't be closed
+     */
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            try {
+                commit(UNBATCHED);
+                pending.clear();
+                serializer.beforeClose();
+            } finally {
+                out.close();
+                out = null;
+            }
+        }
+    }
+
+    /**
+     * @return the current dead letter file
+     */
+    public synchronized File getFile() {
+        return file;
+    }
+
+    /**
+     * A diverted event and the batch it belongs to.
+     */
+    private static class PendingLetter {
+
+        // The batch whose commit writes the event
+        private final long batch;
+
+        // The event with its error headers
+        private final Event event;
+
+        private PendingLetter(long batch, Event event) {
+            this.batch = batch;
+            this.event = event;
+        }
+    }
+}
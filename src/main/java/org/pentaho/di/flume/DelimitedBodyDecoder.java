@@ -0,0 +1,78 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.nio.charset.Charset;
+
+import org.apache.flume.Context;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+/**
+ * Splits a delimited text body into the configured fields, in column order. Empty entries of the field list skip
+ * their column, empty values are injected as null. There is no quoting support.
+ */
+public class DelimitedBodyDecoder extends AbstractBodyDecoder {
+
+    // Constants for the operation
+    public static final String DELIMITER = "delimiter";
+
+    private static final String DEFAULT_DELIMITER = ",";
+
+    // The column delimiter
+    private String delimiter;
+
+    @Override
+    public void configure(Context context, RowMetaInterface injectorRowMeta, Charset charset) throws KettleException {
+        super.configure(context, injectorRowMeta, charset);
+
+        this.delimiter = context.getString(DELIMITER, DEFAULT_DELIMITER).replace("\\t", "\t");
+
+        if (delimiter.isEmpty()) {
+            throw new KettleException("The sinkBodyDecoder.delimiter can't be empty.");
+        }
+    }
+
+    @Override
+    public void decode(byte[] body, Object[] row) throws KettleValueException {
+        String text = new String(body, charset);
+        int length = text.length();
+        int start = 0;
+
+        for (int i = 0; i < fieldIndexes.length && start <= length; i++) {
+            int end = text.indexOf(delimiter, start);
+
+            if (end < 0) {
+                end = length;
+            }
+
+            if (fieldIndexes[i] >= 0 && end > start) {
+                row[fieldIndexes[i]] = toValue(i, text.substring(start, end));
+            }
+
+            start = end + delimiter.length();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.flume;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.flume.Event;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.instrumentation.SourceCounter;
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Buffers the events generated by a source transformation and delivers them to the channel processor in batches,
+ * either when the batch is full or when the oldest buffered event is older than the batch timeout.
+ * <p/>
+ * A failed delivery keeps the events buffered so they are retried with the next flush, unless a channel spill takes
+ * the batches the channel refuses.
+ */
+public class EventBatcher {
+
+    // The logger
+    private static final Logger logger = Logger.getLogger(EventBatcher.class);
+
+    // Where the batches are delivered
+    private final ChannelProcessor channelProcessor;
+
+    // Standard Flume source metrics
+    private final SourceCounter sourceCounter;
+
+    // Kettle specific metrics
+    private final KettleCounter kettleCounter;
+
+    // Where the refused batches go, null if not spilling
+    private final ChannelSpill channelSpill;
+
+    // Number of events that triggers a flush
+    private final int batchSize;
+
+    // Maximum age of a buffered event in milliseconds, 0 means no time limit
+    private final long batchTimeout;
+
+    // Events waiting to be delivered
+    private List<Event> batch;
+
+    // Time when the first event of the current batch was buffered
+    private long batchStart;
+
+    // Timer used to flush batches that are not filling up
+    private ScheduledExecutorService flushTimer;
+
+    public EventBatcher(ChannelProcessor channelProcessor, SourceCounter sourceCounter, KettleCounter kettleCounter,
+                        ChannelSpill channelSpill, int batchSize, long batchTimeout) {
+        this.channelProcessor = channelProcessor;
+        this.sourceCounter = sourceCounter;
+        this.kettleCounter = kettleCounter;
+        this.channelSpill = channelSpill;
+        this.batchSize = batchSize;
+        this.batchTimeout = batchTimeout;
+        this.batch = new ArrayList<Event>(batchSize);
+    }
+
+    /**
+     * Starts the flush timer, if a batch timeout was configured.
+     *
+     * @param name the name used for the timer thread
+     */
+    public void start(String name) {
+        if (batchTimeout > 0) {
+            flushTimer = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat(name + "-batch-timer-%d").setDaemon(true).build());
+
+            long period = Math.max(1L, batchTimeout / 2);
+            flushTimer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flushExpired();
+                    } catch (Throwable t) {
+                        logger.error("Unable to deliver the timed out event batch, will retry.", t);
+                    }
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Delivers any buffered events and stops the flush timer, even when the final delivery fails.
+     */
+    public void stop() {
+        try {
+            flush();
+        } finally {
+            if (flushTimer != null) {
+                flushTimer.shutdownNow();
+                flushTimer = null;
+            }
+        }
+    }
+
+    /**
+     * Buffers an event, delivering the batch when it is full.
+     *
+     * @param event the event to deliver
+     */
+    public synchronized void add(Event event) {
+        if (batch.isEmpty()) {
+            batchStart = System.currentTimeMillis();
+        }
+
+        batch.add(event);
+
+        if (batch.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Delivers all the buffered events.
+     */
+    public synchronized void flush() {
+        if (!batch.isEmpty()) {
+            sourceCounter.incrementAppendBatchReceivedCount();
+
+            if (channelSpill == null) {
+                channelProcessor.processEventBatch(batch);
+                recordAccepted();
+            } else if (channelSpill.deliver(batch)) {
+                recordAccepted();
+            }
+
+            kettleCounter.addBatch(batch.size());
+
+            batch = new ArrayList<Event>(batchSize);
+        }
+    }
+
+    private void recordAccepted() {
+        sourceCounter.incrementAppendBatchAcceptedCount();
+        sourceCounter.addToEventAcceptedCount(batch.size());
+    }
+
+    private synchronized void flushExpired() {
+        if (!batch.isEmpty() && System.currentTimeMillis() - batchStart >= batchTimeout) {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.apache.flume.Event;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+/**
+ * Converts Flume events into rows of the sink injector step.
+ * <p/>
+ * All the field indexes are resolved once, when the decoder is created, so decoding an event only allocates the
+ * row itself (and the body string when the body field is not Binary). The event body goes to the "eventBody" field,
+ * as is when the field is Binary or decoded with the configured charset otherwise. The legacy "eventHeader" field
+ * receives all the headers as a single string, and each mapped header is converted to the type of its own field.
+ * <p/>
+ * With a body decoder, the body is also decoded into typed fields of the row.
+ */
+public class EventRowDecoder {
+
+    // Constants for the operation
+    public static final String INJECTOR_HEADERS_FIELD_NAME = "eventHeader";
+
+    public static final String INJECTOR_BODY_FIELD_NAME = "eventBody";
+
+    // Runtime stream metadata signature
+    private final RowMetaInterface injectorRowMeta;
+
+    // Number of fields of each injected row
+    private final int rowSize;
+
+    // Index of the field receiving all the headers, -1 when not present
+    private final int headersIndex;
+
+    // Index of the field receiving the body, -1 when not present
+    private final int bodyIndex;
+
+    // True if the body is injected without conversion
+    private final boolean binaryBody;
+
+    // The charset used to decode non binary bodies
+    private final Charset charset;
+
+    // Names of the headers mapped to their own field
+    private final String[] headerNames;
+
+    // Indexes of the fields receiving the mapped headers
+    private final int[] headerIndexes;
+
+    // Metadata of the fields receiving the mapped headers, null when no conversion is needed
+    private final ValueMetaInterface[] headerValueMetas;
+
+    // Metadata describing the header values, used as the source of the conversions
+    private final ValueMetaInterface headerStringMeta = new ValueMetaString("header");
+
+    // Decodes the body into typed fields, null if not used
+    private final BodyDecoder bodyDecoder;
+
+    /**
+     * @param injectorRowMeta the row metadata of the injector step
+     * @param charset         the charset used to decode non binary bodies
+     * @param headerFields    the header names mapped to the injector field names
+     * @throws KettleException if a mapped field doesn't exist in the injector step
+     */
+    public EventRowDecoder(RowMetaInterface injectorRowMeta, Charset charset, Map<String, String> headerFields)
+            throws KettleException {
+        this(injectorRowMeta, charset, headerFields, null);
+    }
+
+    /**
+     * @param injectorRowMeta the row metadata of the injector step
+     * @param charset         the charset used to decode non binary bodies
+     * @param headerFields    the header names mapped to the injector field names
+     * @param bodyDecoder     the configured body decoder, null to only inject the raw body
+     * @throws KettleException if a mapped field doesn't exist in the injector step
+     */
+    public EventRowDecoder(RowMetaInterface injectorRowMeta, Charset charset, Map<String, String> headerFields,
+                           BodyDecoder bodyDecoder) throws KettleException {
+        this.injectorRowMeta = injectorRowMeta;
+        this.bodyDecoder = bodyDecoder;
+        this.rowSize = injectorRowMeta.size();
+        this.charset = charset;
+
+        this.headersIndex = injectorRowMeta.indexOfValue(INJECTOR_HEADERS_FIELD_NAME);
+        this.bodyIndex = injectorRowMeta.indexOfValue(INJECTOR_BODY_FIELD_NAME);
+        this.binaryBody = bodyIndex >= 0
+                && injectorRowMeta.getValueMeta(bodyIndex).getType() == ValueMetaInterface.TYPE_BINARY;
+
+        this.headerNames = new String[headerFields.size()];
+        this.headerIndexes = new int[headerFields.size()];
+        this.headerValueMetas = new ValueMetaInterface[headerFields.size()];
+
+        int i = 0;
+        for (Map.Entry<String, String> headerField : headerFields.entrySet()) {
+            int index = injectorRowMeta.indexOfValue(headerField.getValue());
+
+            if (index < 0) {
+                throw new KettleException("Couldn't find field " + headerField.getValue()
+                        + " for header " + headerField.getKey() + " in the injector step.");
+            }
+
+            ValueMetaInterface valueMeta = injectorRowMeta.getValueMeta(index);
+
+            headerNames[i] = headerField.getKey();
+            headerIndexes[i] = index;
+            headerValueMetas[i] = valueMeta.getType() == ValueMetaInterface.TYPE_STRING ? null : valueMeta;
+            i++;
+        }
+    }
+
+    /**
+     * @return the row metadata of the decoded rows
+     */
+    public RowMetaInterface getRowMeta() {
+        return injectorRowMeta;
+    }
+
+    /**
+     * Converts an event into an injector row.
+     *
+     * @param event the event to convert
+     * @return the row to inject
+     * @throws KettleValueException if a header or the body can't be converted to the type of its field
+     */
+    public Object[] decode(Event event) throws KettleValueException {
+        Object[] row = new Object[rowSize];
+
+        if (headersIndex >= 0) {
+            row[headersIndex] = event.getHeaders().toString();
+        }
+
+        if (bodyIndex >= 0) {
+            row[bodyIndex] = binaryBody ? event.getBody() : new String(event.getBody(), charset);
+        }
+
+        if (bodyDecoder != null) {
+            bodyDecoder.decode(event.getBody(), row);
+        }
+
+        if (headerNames.length > 0) {
+            Map<String, String> headers = event.getHeaders();
+
+            for (int i = 0; i < headerNames.length; i++) {
+                String value = headers.get(headerNames[i]);
+
+                if (value != null) {
+                    row[headerIndexes[i]] = headerValueMetas[i] == null
+                            ? value : headerValueMetas[i].convertData(headerStringMeta, value);
+                }
+            }
+        }
+
+        return row;
+    }
+}
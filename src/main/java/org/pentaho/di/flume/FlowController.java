@@ -0,0 +1,221 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.util.List;
+
+import org.pentaho.di.core.RowSet;
+
+/**
+ * Adapts the intake of a nonblocking sink to the occupancy of the row sets of its transformation.
+ * <p/>
+ * No batch is taken while the busiest row set of the transformation, the injector ones included, is filled above the
+ * high watermark: a bottleneck anywhere downstream stops the intake before it backs up into the injector. The sink
+ * backs off for a delay that doubles as long as the transformation stays saturated. Otherwise a batch is limited to
+ * the free room of the injector row sets and, when rows are already waiting in them, to what the transformation
+ * drains during the target latency. The drain rate is only measured while the injector row sets stay non empty, when
+ * it reflects what the transformation can sustain rather than what the channel delivers.
+ * <p/>
+ * The limits are counted in rows, a packed event counting for all its rows.
+ */
+public class FlowController {
+
+    // Shortest back-off once the transformation is saturated
+    private static final long MIN_BACKOFF = 10L;
+
+    // Weight of the last measure in the drain rate average
+    private static final double RATE_WEIGHT = 0.3;
+
+    // The injector row sets, one per injector copy
+    private final List<RowSet> rowSets;
+
+    // The row sets between the steps of the transformation
+    private final List<RowSet> transRowSets;
+
+    // Capacity of all the injector row sets
+    private final int capacity;
+
+    // Number of rows in any row set above which no batch is taken
+    private final int highWatermark;
+
+    // Time the transformation should take to drain a batch, in milliseconds
+    private final long targetLatency;
+
+    // Largest batch in rows, the configured sink batch size
+    private final int maxBatchSize;
+
+    // Longest back-off in milliseconds
+    private final long maxBackoff;
+
+    // Total rows injected
+    private long injected;
+
+    // Rows injected, injector row sets size and time of the previous admission
+    private long lastInjected;
+
+    private int lastSize;
+
+    private long lastCheck;
+
+    // Average drain rate in rows per millisecond, negative until measured
+    private double drainRate = -1;
+
+    // Current back-off, 0 when the transformation is not saturated
+    private long backoff;
+
+    /**
+     * @param rowSets       the injector row sets
+     * @param transRowSets  the row sets between the steps of the transformation
+     * @param capacity      the capacity of each row set
+     * @param highWatermark the fraction of a row set above which no batch is taken
+     * @param targetLatency the time the transformation should take to drain a batch, in milliseconds
+     * @param maxBatchSize  the largest batch in rows
+     * @param maxBackoff    the longest back-off in milliseconds
+     */
+    public FlowController(List<RowSet> rowSets, List<RowSet> transRowSets, int capacity, double highWatermark,
+                          long targetLatency, int maxBatchSize, long maxBackoff) {
+        this.rowSets = rowSets;
+        this.transRowSets = transRowSets;
+        this.capacity = capacity * rowSets.size();
+        this.highWatermark = Math.max(1, (int) (capacity * highWatermark));
+        this.targetLatency = targetLatency;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBackoff = maxBackoff;
+        this.lastCheck = System.currentTimeMillis();
+    }
+
+    /**
+     * Decides how many rows the next batch may inject.
+     *
+     * @return the batch limit in rows, 0 when the transformation is saturated
+     */
+    public synchronized int admit() {
+        long now = System.currentTimeMillis();
+        int size = size();
+
+        measure(now, size);
+
+        if (isSaturated()) {
+            return 0;
+        }
+
+        backoff = 0;
+
+        int limit = Math.min(maxBatchSize, capacity - size);
+
+        if (size > 0 && drainRate >= 0) {
+            limit = Math.min(limit, (int) Math.max(1L, Math.round(drainRate * targetLatency)));
+        }
+
+        return limit;
+    }
+
+    /**
+     * @param rows the number of rows injected from the admitted batch
+     */
+    public synchronized void rowsInjected(long rows) {
+        injected += rows;
+    }
+
+    /**
+     * @return the next back-off delay, doubling while the transformation stays saturated
+     */
+    public synchronized long nextBackoff() {
+        backoff = backoff == 0 ? Math.min(MIN_BACKOFF, maxBackoff) : Math.min(backoff * 2, maxBackoff);
+        return backoff;
+    }
+
+    /**
+     * Waits until every row set drains below the high watermark.
+     *
+     * @param timeout the maximum wait in milliseconds
+     * @return true if there is room for a new batch
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitCapacity(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (isSaturated()) {
+            long remaining = deadline - System.currentTimeMillis();
+
+            if (remaining <= 0) {
+                return false;
+            }
+
+            Thread.sleep(Math.min(remaining, MIN_BACKOFF));
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the rows the transformation drains per second, 0 until measured
+     */
+    public synchronized double getDrainRate() {
+        return Math.max(0, drainRate) * 1000;
+    }
+
+    /**
+     * @return true if the busiest row set is filled above the high watermark
+     */
+    private boolean isSaturated() {
+        return busiest(rowSets) >= highWatermark || busiest(transRowSets) >= highWatermark;
+    }
+
+    private static int busiest(List<RowSet> watched) {
+        int busiest = 0;
+
+        // The transformation adds its row sets while it starts, iterate over a stable copy
+        for (RowSet rowSet : watched.toArray(new RowSet[0])) {
+            busiest = Math.max(busiest, rowSet.size());
+        }
+
+        return busiest;
+    }
+
+    private int size() {
+        int size = 0;
+
+        for (RowSet rowSet : rowSets) {
+            size += rowSet.size();
+        }
+
+        return size;
+    }
+
+    private void measure(long now, int size) {
+        long elapsed = now - lastCheck;
+
+        // The row set never ran empty in between, so the drained rows are bound by the transformation throughput
+        if (elapsed > 0 && lastSize > 0 && size > 0) {
+            double rate = (double) (injected - lastInjected - (size - lastSize)) / elapsed;
+
+            drainRate = drainRate < 0 ? rate : drainRate + RATE_WEIGHT * (rate - drainRate);
+        }
+
+        lastInjected = injected;
+        lastSize = size;
+        lastCheck = now;
+    }
+}
@@ -0,0 +1,93 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.flume.Context;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Reads the top level properties of a JSON object body with a streaming parser, each configured field receiving the
+ * property of the same name. Other properties, and nested objects or arrays, are skipped without being parsed into
+ * objects.
+ */
+public class JsonBodyDecoder extends AbstractBodyDecoder {
+
+    // Position of each configured field by property name
+    private final Map<String, Integer> fieldPositions = new HashMap<String, Integer>();
+
+    @Override
+    public void configure(Context context, RowMetaInterface injectorRowMeta, Charset charset) throws KettleException {
+        super.configure(context, injectorRowMeta, charset);
+
+        for (int i = 0; i < fieldNames.length; i++) {
+            if (fieldIndexes[i] >= 0) {
+                fieldPositions.put(fieldNames[i], i);
+            }
+        }
+    }
+
+    @Override
+    public void decode(byte[] body, Object[] row) throws KettleValueException {
+        JsonReader reader = new JsonReader(new StringReader(new String(body, charset)));
+
+        try {
+            reader.beginObject();
+
+            while (reader.hasNext()) {
+                Integer field = fieldPositions.get(reader.nextName());
+                JsonToken token = reader.peek();
+
+                if (field == null || token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY) {
+                    reader.skipValue();
+                } else if (token == JsonToken.NULL) {
+                    reader.nextNull();
+                } else if (token == JsonToken.BOOLEAN && fieldTypes[field] == ValueMetaInterface.TYPE_BOOLEAN) {
+                    row[fieldIndexes[field]] = reader.nextBoolean();
+                } else if (token == JsonToken.BOOLEAN) {
+                    row[fieldIndexes[field]] = toValue(field, String.valueOf(reader.nextBoolean()));
+                } else {
+                    row[fieldIndexes[field]] = toValue(field, reader.nextString());
+                }
+            }
+
+            reader.endObject();
+        } catch (IOException e) {
+            throw new KettleValueException("Unable to decode the JSON event body.", e);
+        } catch (IllegalStateException e) {
+            throw new KettleValueException("Unable to decode the JSON event body.", e);
+        }
+    }
+}
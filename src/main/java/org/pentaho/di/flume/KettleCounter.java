@@ -0,0 +1,305 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import org.apache.flume.instrumentation.MonitoredCounterGroup;
+
+/**
+ * Kettle specific counters of a Flume component, published through the Flume monitoring (JMX and JSON) next to
+ * the standard source and sink counters. All the counters are atomic, so they can be updated from the Kettle step
+ * threads as well as from the Flume threads.
+ * <p/>
+ * The transformation cache counts and the environment startup time are process wide, every component reports the
+ * same values.
+ */
+public class KettleCounter extends MonitoredCounterGroup implements KettleCounterMBean {
+
+    private static final String COUNTER_ROWS_INJECTED = "kettle.rows.injected";
+
+    private static final String COUNTER_ROWS_EMITTED = "kettle.rows.emitted";
+
+    private static final String COUNTER_TRANS_ERRORS = "kettle.trans.errors";
+
+    private static final String COUNTER_BATCH_ROLLBACK = "kettle.batch.rollback";
+
+    private static final String COUNTER_BATCH = "kettle.batch.count";
+
+    private static final String COUNTER_BATCH_EVENTS = "kettle.batch.events";
+
+    private static final String COUNTER_ITERATION = "kettle.iteration.count";
+
+    private static final String COUNTER_ITERATION_TIME = "kettle.iteration.time.nanos";
+
+    private static final String COUNTER_DELIVERY_RETRY = "kettle.delivery.retry";
+
+    private static final String COUNTER_STARTUP_TIME = "kettle.startup.time.ms";
+
+    private static final String COUNTER_DEAD_LETTER = "kettle.dead.letter.count";
+
+    private static final String COUNTER_FLOW_BACKOFF = "kettle.flow.backoff.count";
+
+    private static final String COUNTER_FLOW_BATCH_LIMIT = "kettle.flow.batch.limit";
+
+    private static final String COUNTER_SPILLED = "kettle.spill.count";
+
+    private static final String COUNTER_SPILL_REPLAYED = "kettle.spill.replay.count";
+
+    private static final String COUNTER_SPILL_PENDING = "kettle.spill.pending";
+
+    private static final String COUNTER_SPILL_DISK_USAGE = "kettle.spill.disk.bytes";
+
+    private static final String COUNTER_DEDUP_LOOKUP = "kettle.dedup.lookup.count";
+
+    private static final String COUNTER_DEDUP_HIT = "kettle.dedup.hit.count";
+
+    private static final String[] ATTRIBUTES = {
+            COUNTER_ROWS_INJECTED, COUNTER_ROWS_EMITTED, COUNTER_TRANS_ERRORS, COUNTER_BATCH_ROLLBACK,
+            COUNTER_BATCH, COUNTER_BATCH_EVENTS, COUNTER_ITERATION, COUNTER_ITERATION_TIME, COUNTER_DELIVERY_RETRY,
+            COUNTER_STARTUP_TIME, COUNTER_DEAD_LETTER, COUNTER_FLOW_BACKOFF, COUNTER_FLOW_BATCH_LIMIT, COUNTER_SPILLED,
+            COUNTER_SPILL_REPLAYED, COUNTER_SPILL_PENDING, COUNTER_SPILL_DISK_USAGE, COUNTER_DEDUP_LOOKUP,
+            COUNTER_DEDUP_HIT
+    };
+
+    public KettleCounter(String name) {
+        super(MonitoredCounterGroup.Type.OTHER, name, ATTRIBUTES);
+    }
+
+    @Override
+    public long getRowsInjectedCount() {
+        return get(COUNTER_ROWS_INJECTED);
+    }
+
+    public long addToRowsInjectedCount(long delta) {
+        return addAndGet(COUNTER_ROWS_INJECTED, delta);
+    }
+
+    @Override
+    public long getRowsEmittedCount() {
+        return get(COUNTER_ROWS_EMITTED);
+    }
+
+    public long incrementRowsEmittedCount() {
+        return increment(COUNTER_ROWS_EMITTED);
+    }
+
+    @Override
+    public long getTransErrorCount() {
+        return get(COUNTER_TRANS_ERRORS);
+    }
+
+    public long incrementTransErrorCount() {
+        return increment(COUNTER_TRANS_ERRORS);
+    }
+
+    @Override
+    public long getBatchRollbackCount() {
+        return get(COUNTER_BATCH_ROLLBACK);
+    }
+
+    public long incrementBatchRollbackCount() {
+        return increment(COUNTER_BATCH_ROLLBACK);
+    }
+
+    @Override
+    public long getBatchCount() {
+        return get(COUNTER_BATCH);
+    }
+
+    @Override
+    public double getAverageBatchSize() {
+        long batches = get(COUNTER_BATCH);
+        return batches > 0 ? (double) get(COUNTER_BATCH_EVENTS) / batches : 0;
+    }
+
+    /**
+     * Records a batch of events.
+     *
+     * @param size the number of events of the batch
+     */
+    public void addBatch(long size) {
+        increment(COUNTER_BATCH);
+        addAndGet(COUNTER_BATCH_EVENTS, size);
+    }
+
+    @Override
+    public long getIterationCount() {
+        return get(COUNTER_ITERATION);
+    }
+
+    @Override
+    public double getAverageIterationTimeMs() {
+        long iterations = get(COUNTER_ITERATION);
+        return iterations > 0 ? get(COUNTER_ITERATION_TIME) / 1000000.0 / iterations : 0;
+    }
+
+    /**
+     * Records one iteration of a single threaded transformation.
+     *
+     * @param nanos the duration of the iteration in nanoseconds
+     */
+    public void addIteration(long nanos) {
+        increment(COUNTER_ITERATION);
+        addAndGet(COUNTER_ITERATION_TIME, nanos);
+    }
+
+    @Override
+    public long getDeliveryRetryCount() {
+        return get(COUNTER_DELIVERY_RETRY);
+    }
+
+    public long incrementDeliveryRetryCount() {
+        return increment(COUNTER_DELIVERY_RETRY);
+    }
+
+    @Override
+    public long getStartupTimeMs() {
+        return get(COUNTER_STARTUP_TIME);
+    }
+
+    /**
+     * Records the time the component took to start, including the wait for the Kettle environment.
+     *
+     * @param millis the startup time in milliseconds
+     */
+    public void setStartupTime(long millis) {
+        set(COUNTER_STARTUP_TIME, millis);
+    }
+
+    @Override
+    public long getDeadLetterCount() {
+        return get(COUNTER_DEAD_LETTER);
+    }
+
+    public long incrementDeadLetterCount() {
+        return increment(COUNTER_DEAD_LETTER);
+    }
+
+    @Override
+    public long getFlowBackoffCount() {
+        return get(COUNTER_FLOW_BACKOFF);
+    }
+
+    public long incrementFlowBackoffCount() {
+        return increment(COUNTER_FLOW_BACKOFF);
+    }
+
+    @Override
+    public long getFlowBatchLimit() {
+        return get(COUNTER_FLOW_BATCH_LIMIT);
+    }
+
+    /**
+     * Records the batch size the flow controller allowed for the last batch.
+     *
+     * @param limit the batch size limit, 0 when the sink backed off
+     */
+    public void setFlowBatchLimit(long limit) {
+        set(COUNTER_FLOW_BATCH_LIMIT, limit);
+    }
+
+    @Override
+    public long getSpilledCount() {
+        return get(COUNTER_SPILLED);
+    }
+
+    public long addToSpilledCount(long delta) {
+        return addAndGet(COUNTER_SPILLED, delta);
+    }
+
+    @Override
+    public long getSpillReplayedCount() {
+        return get(COUNTER_SPILL_REPLAYED);
+    }
+
+    public long addToSpillReplayedCount(long delta) {
+        return addAndGet(COUNTER_SPILL_REPLAYED, delta);
+    }
+
+    @Override
+    public long getSpillPendingCount() {
+        return get(COUNTER_SPILL_PENDING);
+    }
+
+    /**
+     * Records the number of events waiting in the spill store.
+     *
+     * @param pending the number of spilled events not replayed yet
+     */
+    public void setSpillPending(long pending) {
+        set(COUNTER_SPILL_PENDING, pending);
+    }
+
+    @Override
+    public long getSpillDiskUsage() {
+        return get(COUNTER_SPILL_DISK_USAGE);
+    }
+
+    /**
+     * Records the disk space used by the spill store.
+     *
+     * @param bytes the size of the spill segment files
+     */
+    public void setSpillDiskUsage(long bytes) {
+        set(COUNTER_SPILL_DISK_USAGE, bytes);
+    }
+
+    @Override
+    public long getDedupLookupCount() {
+        return get(COUNTER_DEDUP_LOOKUP);
+    }
+
+    public long incrementDedupLookupCount() {
+        return increment(COUNTER_DEDUP_LOOKUP);
+    }
+
+    @Override
+    public long getDedupHitCount() {
+        return get(COUNTER_DEDUP_HIT);
+    }
+
+    public long incrementDedupHitCount() {
+        return increment(COUNTER_DEDUP_HIT);
+    }
+
+    @Override
+    public double getDedupHitRate() {
+        long lookups = get(COUNTER_DEDUP_LOOKUP);
+        return lookups > 0 ? (double) get(COUNTER_DEDUP_HIT) / lookups : 0;
+    }
+
+    @Override
+    public long getEnvironmentStartupTimeMs() {
+        return PentahoKettleEnvironment.INSTANCE.getStartupTime();
+    }
+
+    @Override
+    public long getTransMetaCacheHitCount() {
+        return TransMetaCache.INSTANCE.getHitCount();
+    }
+
+    @Override
+    public long getTransMetaCacheMissCount() {
+        return TransMetaCache.INSTANCE.getMissCount();
+    }
+}
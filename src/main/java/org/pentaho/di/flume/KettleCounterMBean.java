@@ -0,0 +1,82 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+/**
+ * JMX view of the Kettle specific counters of the Flume components.
+ */
+public interface KettleCounterMBean {
+
+    long getRowsInjectedCount();
+
+    long getRowsEmittedCount();
+
+    long getTransErrorCount();
+
+    long getBatchRollbackCount();
+
+    long getBatchCount();
+
+    double getAverageBatchSize();
+
+    long getIterationCount();
+
+    long getDeliveryRetryCount();
+
+    double getAverageIterationTimeMs();
+
+    long getStartupTimeMs();
+
+    long getDeadLetterCount();
+
+    long getFlowBackoffCount();
+
+    long getFlowBatchLimit();
+
+    long getSpilledCount();
+
+    long getSpillReplayedCount();
+
+    long getSpillPendingCount();
+
+    long getSpillDiskUsage();
+
+    long getDedupLookupCount();
+
+    long getDedupHitCount();
+
+    double getDedupHitRate();
+
+    long getEnvironmentStartupTimeMs();
+
+    long getTransMetaCacheHitCount();
+
+    long getTransMetaCacheMissCount();
+
+    long getStartTime();
+
+    long getStopTime();
+
+    String getType();
+}
@@ -0,0 +1,297 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.flume.Event;
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Records the latencies of the events going through a sink into HdrHistogram recorders:
+ * <ul>
+ * <li>channel: from the origin timestamp set by the source to the sink taking the event from the channel</li>
+ * <li>injection: time spent handing the rows of an event to the transformation</li>
+ * <li>processing: from the injection of a row to its arrival at the terminal step</li>
+ * <li>end to end: from the origin timestamp to the arrival of the row at the terminal step</li>
+ * </ul>
+ * Recording is lock free, the histograms are swapped every logging interval: the percentiles of the last interval are
+ * logged and exposed over JMX.
+ * <p/>
+ * Times are taken with {@link #now()}, the wall clock in nanoseconds with the resolution of {@link System#nanoTime()},
+ * so origin timestamps of another agent are only as accurate as the clock synchronization between the hosts.
+ */
+public class LatencyTracker implements LatencyTrackerMBean {
+
+    // The logger
+    private static final Logger logger = Logger.getLogger(LatencyTracker.class);
+
+    // Constants for the operation
+    public static final String ORIGIN_HEADER = "kettle.origin.ns";
+
+    // Wall clock and monotonic clock at the same instant, the base of the high resolution time
+    private static final long BASE_MILLIS = System.currentTimeMillis();
+
+    private static final long BASE_NANOS = System.nanoTime();
+
+    // Highest recorded latency in microseconds, longer latencies are recorded as this value
+    private static final long HIGHEST_LATENCY = TimeUnit.HOURS.toMicros(1);
+
+    // Precision of the histograms
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    // Name of the tracked component
+    private final String name;
+
+    // Latency recorders
+    private final Recorder channel = newRecorder();
+
+    private final Recorder injection = newRecorder();
+
+    private final Recorder processing = newRecorder();
+
+    private final Recorder endToEnd = newRecorder();
+
+    // Histograms of the last complete interval
+    private volatile Histogram channelInterval;
+
+    private volatile Histogram injectionInterval;
+
+    private volatile Histogram processingInterval;
+
+    private volatile Histogram endToEndInterval;
+
+    // Timer swapping and logging the histograms
+    private ScheduledExecutorService intervalTimer;
+
+    // Name registered in the platform MBean server, null if not registered
+    private ObjectName objectName;
+
+    /**
+     * @param name the name of the tracked component
+     */
+    public LatencyTracker(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the current time in nanoseconds since the epoch
+     */
+    public static long now() {
+        return BASE_MILLIS * 1000000L + System.nanoTime() - BASE_NANOS;
+    }
+
+    /**
+     * Registers the MBean and starts logging the percentiles.
+     *
+     * @param interval the logging interval in milliseconds
+     */
+    public void start(long interval) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("org.pentaho.di.flume:type=LatencyTracker,name=" + ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            objectName = null;
+            logger.warn("Unable to register the latency MBean of " + name, e);
+        }
+
+        intervalTimer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat(name + "-latency-%d").setDaemon(true).build());
+        intervalTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    roll();
+                } catch (Throwable t) {
+                    logger.error("Unable to report the latencies.", t);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops logging and unregisters the MBean.
+     */
+    public void stop() {
+        if (intervalTimer != null) {
+            intervalTimer.shutdownNow();
+            intervalTimer = null;
+        }
+
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.warn("Unable to unregister the latency MBean of " + name, e);
+            }
+
+            objectName = null;
+        }
+    }
+
+    /**
+     * Records the time an event spent between its origin and the sink, if it carries an origin timestamp.
+     *
+     * @param event the event taken from the channel
+     */
+    public void recordChannel(Event event) {
+        String origin = event.getHeaders().get(ORIGIN_HEADER);
+
+        if (origin != null) {
+            try {
+                record(channel, now() - Long.parseLong(origin));
+            } catch (NumberFormatException e) {
+                // Not an origin timestamp of ours, nothing to record
+            }
+        }
+    }
+
+    /**
+     * @param nanos the time spent injecting the rows of an event
+     */
+    public void recordInjection(long nanos) {
+        record(injection, nanos);
+    }
+
+    /**
+     * @param injected the injection time of a row reaching the terminal step, see {@link #now()}
+     */
+    public void recordProcessing(long injected) {
+        record(processing, now() - injected);
+    }
+
+    /**
+     * @param origin the origin timestamp of a row reaching the terminal step, see {@link #now()}
+     */
+    public void recordEndToEnd(long origin) {
+        record(endToEnd, now() - origin);
+    }
+
+    @Override
+    public double getChannelLatencyP50Us() {
+        return percentile(channelInterval, 50);
+    }
+
+    @Override
+    public double getChannelLatencyP99Us() {
+        return percentile(channelInterval, 99);
+    }
+
+    @Override
+    public double getChannelLatencyP999Us() {
+        return percentile(channelInterval, 99.9);
+    }
+
+    @Override
+    public double getInjectionLatencyP50Us() {
+        return percentile(injectionInterval, 50);
+    }
+
+    @Override
+    public double getInjectionLatencyP99Us() {
+        return percentile(injectionInterval, 99);
+    }
+
+    @Override
+    public double getInjectionLatencyP999Us() {
+        return percentile(injectionInterval, 99.9);
+    }
+
+    @Override
+    public double getProcessingLatencyP50Us() {
+        return percentile(processingInterval, 50);
+    }
+
+    @Override
+    public double getProcessingLatencyP99Us() {
+        return percentile(processingInterval, 99);
+    }
+
+    @Override
+    public double getProcessingLatencyP999Us() {
+        return percentile(processingInterval, 99.9);
+    }
+
+    @Override
+    public double getEndToEndLatencyP50Us() {
+        return percentile(endToEndInterval, 50);
+    }
+
+    @Override
+    public double getEndToEndLatencyP99Us() {
+        return percentile(endToEndInterval, 99);
+    }
+
+    @Override
+    public double getEndToEndLatencyP999Us() {
+        return percentile(endToEndInterval, 99.9);
+    }
+
+    /**
+     * Closes the current interval, logging its percentiles.
+     */
+    void roll() {
+        // The previous histograms may still be read over JMX, so they are not recycled
+        channelInterval = channel.getIntervalHistogram();
+        injectionInterval = injection.getIntervalHistogram();
+        processingInterval = processing.getIntervalHistogram();
+        endToEndInterval = endToEnd.getIntervalHistogram();
+
+        if (logger.isInfoEnabled()) {
+            logger.info(name + " latency (us) " + describe("channel", channelInterval)
+                    + describe(", injection", injectionInterval) + describe(", processing", processingInterval)
+                    + describe(", end to end", endToEndInterval));
+        }
+    }
+
+    private static String describe(String label, Histogram histogram) {
+        return label + " [count=" + histogram.getTotalCount() + " p50=" + histogram.getValueAtPercentile(50)
+                + " p99=" + histogram.getValueAtPercentile(99) + " p999=" + histogram.getValueAtPercentile(99.9)
+                + " max=" + histogram.getMaxValue() + "]";
+    }
+
+    private static double percentile(Histogram histogram, double percentile) {
+        return histogram != null ? histogram.getValueAtPercentile(percentile) : 0;
+    }
+
+    private static void record(Recorder recorder, long nanos) {
+        recorder.recordValue(Math.min(Math.max(0L, nanos / 1000), HIGHEST_LATENCY));
+    }
+
+    private static Recorder newRecorder() {
+        return new Recorder(HIGHEST_LATENCY, SIGNIFICANT_DIGITS);
+    }
+}
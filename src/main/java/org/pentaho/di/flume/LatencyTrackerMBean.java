@@ -0,0 +1,54 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+/**
+ * JMX view of the latency percentiles of a sink, in microseconds, over the last logging interval.
+ */
+public interface LatencyTrackerMBean {
+
+    double getChannelLatencyP50Us();
+
+    double getChannelLatencyP99Us();
+
+    double getChannelLatencyP999Us();
+
+    double getInjectionLatencyP50Us();
+
+    double getInjectionLatencyP99Us();
+
+    double getInjectionLatencyP999Us();
+
+    double getProcessingLatencyP50Us();
+
+    double getProcessingLatencyP99Us();
+
+    double getProcessingLatencyP999Us();
+
+    double getEndToEndLatencyP50Us();
+
+    double getEndToEndLatencyP99Us();
+
+    double getEndToEndLatencyP999Us();
+}
@@ -0,0 +1,243 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogLevel;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs the sink transformation as a sequence of complete passes, one per batch: the rows of a batch are injected
+ * into a running pass, which then sees the end of its input and runs to completion, so aggregating and file writing
+ * steps flush their results at the end of every batch.
+ * <p/>
+ * A Kettle transformation can't be restarted once finished, so every pass is a new instance of the cached
+ * transformation definition. The next pass is prepared and started in the background while the current one receives
+ * its rows and finishes, so the batches don't wait for the step initialization.
+ */
+public class MicroBatchRunner {
+
+    // The logger
+    private static final Logger logger = Logger.getLogger(MicroBatchRunner.class);
+
+    /**
+     * Receives every prepared pass, before it gets any row.
+     */
+    public interface PassListener {
+
+        /**
+         * @param trans the started transformation of the pass
+         * @throws KettleException if the pass can't be set up
+         */
+        void prepared(Trans trans) throws KettleException;
+    }
+
+    // The transformation definition, cloned for every pass
+    private final TransMeta transMeta;
+
+    // Name of the step used to inject events
+    private final String injectorName;
+
+    // The logging level for the PDI execution
+    private final LogLevel logLevel;
+
+    // Set up of the prepared passes
+    private final PassListener listener;
+
+    // Thread preparing the next pass
+    private ExecutorService preparer;
+
+    // The pass receiving the rows of the current batch, null until taken from the preparer
+    private SinkTransformation current;
+
+    // The pass being prepared in the background, null if none
+    private Future<SinkTransformation> next;
+
+    // Runtime stream metadata signature, the same for every pass
+    private RowMetaInterface injectorRowMeta;
+
+    /**
+     * @param transMeta    the transformation definition, cloned for every pass
+     * @param injectorName the name of the step used to inject events
+     * @param logLevel     the logging level for the PDI execution
+     * @param listener     set up of the prepared passes
+     */
+    public MicroBatchRunner(TransMeta transMeta, String injectorName, LogLevel logLevel, PassListener listener) {
+        this.transMeta = transMeta;
+        this.injectorName = injectorName;
+        this.logLevel = logLevel;
+        this.listener = listener;
+    }
+
+    /**
+     * Prepares the first pass.
+     *
+     * @param name the name used for the preparing thread
+     * @throws KettleException if the first pass can't be started
+     */
+    public void start(String name) throws KettleException {
+        preparer = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat(name + "-micro-batch-%d").setDaemon(true).build());
+
+        current = prepare();
+        injectorRowMeta = current.getInjectorRowMeta();
+    }
+
+    /**
+     * @return the pass receiving the rows of the current batch, waiting for its preparation if needed
+     * @throws KettleException if the pass can't be started
+     */
+    public SinkTransformation getCurrent() throws KettleException {
+        if (current == null) {
+            Future<SinkTransformation> prepared = next;
+            next = null;
+
+            current = prepared != null ? await(prepared) : prepare();
+        }
+
+        return current;
+    }
+
+    /**
+     * Ends the input of the current pass and waits for it to complete, while the next pass is prepared.
+     *
+     * @throws KettleException if the pass failed
+     */
+    public void finishPass() throws KettleException {
+        SinkTransformation pass = current;
+        current = null;
+
+        prepareNext();
+
+        pass.stop();
+
+        int errors = pass.getTrans().getErrors();
+
+        if (errors > 0) {
+            throw new KettleException("The micro batch pass ended with " + errors + " errors.");
+        }
+    }
+
+    /**
+     * Stops the current pass without letting it complete, so the rows of a failed batch are not processed.
+     */
+    public void abortPass() {
+        SinkTransformation pass = current;
+        current = null;
+
+        if (pass != null) {
+            prepareNext();
+
+            try {
+                pass.abort();
+            } catch (KettleException e) {
+                logger.error("Error while aborting the micro batch pass.", e);
+            }
+        }
+    }
+
+    /**
+     * Stops the prepared passes, none of them received rows of an uncommitted batch.
+     *
+     * @throws KettleException if a pass fails while stopping
+     */
+    public void stop() throws KettleException {
+        if (current != null) {
+            current.abort();
+            current = null;
+        }
+
+        if (next != null) {
+            try {
+                await(next).abort();
+            } catch (KettleException e) {
+                logger.debug("The next micro batch pass failed to start.", e);
+            }
+
+            next = null;
+        }
+
+        if (preparer != null) {
+            preparer.shutdown();
+        }
+    }
+
+    /**
+     * @return the row metadata of the injector step
+     */
+    public RowMetaInterface getInjectorRowMeta() {
+        return injectorRowMeta;
+    }
+
+    private void prepareNext() {
+        if (next == null) {
+            next = preparer.submit(new Callable<SinkTransformation>() {
+                @Override
+                public SinkTransformation call() throws KettleException {
+                    return prepare();
+                }
+            });
+        }
+    }
+
+    private SinkTransformation await(Future<SinkTransformation> prepared) throws KettleException {
+        try {
+            return prepared.get();
+        } catch (ExecutionException e) {
+            throw new KettleException("Unable to prepare the micro batch pass.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KettleException("Interrupted while preparing the micro batch pass.", e);
+        }
+    }
+
+    private SinkTransformation prepare() throws KettleException {
+        SinkTransformation pass = new SinkTransformation((TransMeta) transMeta.clone(), injectorName,
+                TransExecutionType.NONBLOCKING, logLevel);
+        pass.start();
+
+        try {
+            listener.prepared(pass.getTrans());
+        } catch (KettleException e) {
+            pass.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            pass.abort();
+            throw e;
+        }
+
+        return pass;
+    }
+}
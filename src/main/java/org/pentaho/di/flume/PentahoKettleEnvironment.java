@@ -22,26 +22,72 @@
 
 package org.pentaho.di.flume;
 
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
 import org.apache.log4j.Appender;
 import org.apache.log4j.Logger;
 import org.pentaho.di.core.KettleEnvironment;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogTablePluginType;
 import org.pentaho.di.core.logging.LogWriter;
+import org.pentaho.di.core.plugins.PartitionerPluginType;
+import org.pentaho.di.core.plugins.PluginTypeInterface;
+import org.pentaho.di.core.plugins.RowDistributionPluginType;
+import org.pentaho.di.core.plugins.StepPluginType;
 
 /**
  * Utility enum for singleton initialization of the Pentaho Data Integration environment
  * <p/>
+ * The environment is initialized on its own thread as soon as a component is created, so the Flume configuration
+ * thread is not blocked, and the components wait for it when they load their transformation. With the
+ * kettle.flume.fastStart system property only the plugin types needed to run transformations are registered. Only the
+ * plugin types are restricted, every step plugin is still registered whether the transformations use it or not.
+ * <p/>
  * Created Date: 02/12/2013
  * Created By: André Simões (andre.simoes@xpand-it.com)
  */
 public enum PentahoKettleEnvironment {
     INSTANCE;
 
+    public static final String FAST_START_PROPERTY = "kettle.flume.fastStart";
+
     private static final String FLUME_LOG4J_FILE_APPENDER = "LOGFILE";
 
+    // Released once the initialization completed, successfully or not
+    private final CountDownLatch initialized = new CountDownLatch(1);
+
+    // Error of the initialization, null if it succeeded
+    private volatile Throwable initFailure;
+
+    // Time spent initializing the environment in milliseconds
+    private volatile long startupTime;
+
     private PentahoKettleEnvironment() {
+        Thread initThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                initialize();
+            }
+        }, "kettle-environment-init");
+
+        initThread.setDaemon(true);
+        initThread.start();
+    }
+
+    private void initialize() {
+        Logger logger = Logger.getLogger(PentahoKettleEnvironment.class);
+        long start = System.currentTimeMillis();
+
         try {
-            KettleEnvironment.init();
+            if (Boolean.getBoolean(FAST_START_PROPERTY)) {
+                // Skip the job entries, repositories, carte, import rules... which are never used by the driver
+                KettleEnvironment.init(Arrays.<PluginTypeInterface>asList(RowDistributionPluginType.getInstance(),
+                        StepPluginType.getInstance(), PartitionerPluginType.getInstance(),
+                        LogTablePluginType.getInstance()), true);
+            } else {
+                KettleEnvironment.init();
+            }
 
             Logger rootLogger = Logger.getRootLogger();
             Appender flumeAppender = rootLogger.getAppender(FLUME_LOG4J_FILE_APPENDER);
@@ -50,8 +96,39 @@ public enum PentahoKettleEnvironment {
             if (flumeAppender != null) {
                 LogWriter.getInstance().addAppender(flumeAppender);
             }
-        } catch (KettleException e) {
-            e.printStackTrace();
+
+            startupTime = System.currentTimeMillis() - start;
+            logger.info("Kettle environment initialized in " + startupTime + " ms.");
+        } catch (Throwable t) {
+            initFailure = t;
+            logger.error("Unable to initialize the Kettle environment.", t);
+        } finally {
+            initialized.countDown();
+        }
+    }
+
+    /**
+     * Waits until the environment is initialized.
+     *
+     * @throws KettleException if the initialization failed or the wait was interrupted
+     */
+    public void awaitInitialized() throws KettleException {
+        try {
+            initialized.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KettleException("Interrupted while waiting for the Kettle environment.", e);
+        }
+
+        if (initFailure != null) {
+            throw new KettleException("The Kettle environment failed to initialize.", initFailure);
         }
     }
+
+    /**
+     * @return the time spent initializing the environment in milliseconds, 0 until it is initialized
+     */
+    public long getStartupTime() {
+        return startupTime;
+    }
 }
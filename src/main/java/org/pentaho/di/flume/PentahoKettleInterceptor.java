@@ -0,0 +1,305 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.FlumeException;
+import org.apache.flume.interceptor.Interceptor;
+import org.apache.log4j.Logger;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.logging.LogLevel;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.RowAdapter;
+import org.pentaho.di.trans.step.StepInterface;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * This Flume interceptor runs a single threaded kettle transformation inline, on the source thread: every batch of
+ * events is injected into the injector step, processed by one iteration and replaced by the events built from the
+ * rows of the output step. Events can be enriched, filtered or split without a channel hop to a kettle sink.
+ * <p/>
+ * The events are converted to rows and back like in the sink and the source: the body goes to the "eventBody" field
+ * (or is decoded with a body decoder), mapped headers go to their own fields, and the output rows are encoded with
+ * the output body field and output header mapping. Headers that are not mapped through the transformation are not
+ * kept, since output rows can't be matched with the input events.
+ * <p/>
+ * A failed iteration throws a {@link FlumeException}, so the source sees the batch as not delivered. The whole batch
+ * is decoded before any row is injected, and the rows left in the injector by a failed batch are discarded, so they
+ * never come out with the next batch.
+ * <p/>
+ * A source delivering events one at a time goes through {@link #intercept(Event)}, which can only return one event:
+ * when the transformation splits such an event, the extra events are dropped, logged and counted (see
+ * {@link #getDroppedCount()}). Transformations splitting events need a source delivering batches.
+ * <p/>
+ * Configured with type org.pentaho.di.flume.PentahoKettleInterceptor$Builder.
+ */
+public class PentahoKettleInterceptor implements Interceptor {
+
+    // The logger
+    private static final Logger logger = Logger.getLogger(PentahoKettleInterceptor.class);
+
+    // Constants for the operation
+    public static final String TRANS_PATH = "transPath";
+
+    public static final String INJECTOR_NAME = "injectorName";
+
+    public static final String OUTPUT_NAME = "outputName";
+
+    public static final String LOG_LEVEL = "logLevel";
+
+    public static final String CHARSET = "charset";
+
+    public static final String HEADER_FIELDS = "headerFields.";
+
+    public static final String BODY_DECODER = "bodyDecoder";
+
+    public static final String OUTPUT_BODY_FIELD = "outputBodyField";
+
+    public static final String OUTPUT_HEADER_FIELDS = "outputHeaderFields.";
+
+    private static final String DEFAULT_LOG_LEVEL = "BASIC";
+
+    // Path to find the PDI transformation
+    private final String transPath;
+
+    // Name of the step used to inject events
+    private final String injectorName;
+
+    // Name of the step whose rows become the intercepted events
+    private final String outputName;
+
+    // The logging level for the PDI execution
+    private final String logLevel;
+
+    // The charset used to decode and encode non binary bodies
+    private final Charset charset;
+
+    // Event headers mapped to their own injector field
+    private final Map<String, String> headerFields;
+
+    // Decoder of the body into typed fields, null injects the raw body
+    private final String bodyDecoder;
+
+    // Properties of the body decoder
+    private final Context bodyDecoderContext;
+
+    // Name of the output field holding the event body
+    private final String outputBodyField;
+
+    // Event headers filled from output fields
+    private final Map<String, String> outputHeaderFields;
+
+    // Runtime single threaded transformation
+    private SinkTransformation transformation;
+
+    // Runtime event to row converter
+    private EventRowDecoder eventRowDecoder;
+
+    // Runtime row to event converter
+    private RowEventEncoder rowEventEncoder;
+
+    // Events built from the output rows of the current iteration
+    private List<Event> intercepted = new ArrayList<Event>();
+
+    // Number of extra events dropped when intercepting single events
+    private long droppedCount = 0;
+
+    /**
+     * @param context the interceptor properties
+     */
+    public PentahoKettleInterceptor(Context context) {
+        this.transPath = context.getString(TRANS_PATH);
+        Preconditions.checkNotNull(this.transPath, "Please configure the transPath variable.");
+
+        this.injectorName = context.getString(INJECTOR_NAME);
+        Preconditions.checkNotNull(this.injectorName, "Please configure the injectorName variable.");
+
+        this.outputName = context.getString(OUTPUT_NAME);
+        Preconditions.checkNotNull(this.outputName, "Please configure the outputName variable.");
+
+        this.logLevel = (String) ObjectUtils.defaultIfNull(context.getString(LOG_LEVEL), DEFAULT_LOG_LEVEL);
+
+        String charsetName = context.getString(CHARSET);
+        this.charset = charsetName != null ? Charset.forName(charsetName) : Charset.defaultCharset();
+
+        this.headerFields = context.getSubProperties(HEADER_FIELDS);
+
+        this.bodyDecoder = context.getString(BODY_DECODER);
+        this.bodyDecoderContext = new Context(context.getSubProperties(BODY_DECODER + "."));
+
+        this.outputBodyField = context.getString(OUTPUT_BODY_FIELD, RowEventEncoder.OUTPUT_BODY_FIELD_NAME);
+
+        this.outputHeaderFields = context.getSubProperties(OUTPUT_HEADER_FIELDS);
+    }
+
+    @Override
+    public void initialize() {
+        try {
+            TransMeta transMeta = TransMetaCache.INSTANCE.getTransMeta(transPath);
+            transMeta.setTransformationType(TransMeta.TransformationType.SingleThreaded);
+            transMeta.setUsingThreadPriorityManagment(false);
+
+            transformation = new SinkTransformation(transMeta, injectorName, TransExecutionType.BLOCKING,
+                    LogLevel.valueOf(logLevel));
+            transformation.start();
+
+            RowMetaInterface injectorRowMeta = transformation.getInjectorRowMeta();
+            eventRowDecoder = new EventRowDecoder(injectorRowMeta, charset, headerFields, bodyDecoder != null
+                    ? BodyDecoderFactory.create(bodyDecoder, bodyDecoderContext, injectorRowMeta, charset) : null);
+
+            StepInterface outputStep = transformation.getTrans().getStepInterface(outputName, 0);
+
+            Preconditions.checkNotNull(outputStep, "Couldn't find Output step with name: " + outputName);
+
+            rowEventEncoder = new RowEventEncoder(transMeta.getStepFields(outputStep.getStepMeta()), outputBodyField,
+                    charset, outputHeaderFields, null);
+
+            // Rows are written from the intercepting thread while it runs the iteration
+            outputStep.addRowListener(new RowAdapter() {
+                @Override
+                public void rowWrittenEvent(RowMetaInterface rowMeta, Object[] row) throws KettleStepException {
+                    try {
+                        intercepted.add(rowEventEncoder.encode(row));
+                    } catch (KettleException e) {
+                        throw new KettleStepException("Unable to convert the row into an event.", e);
+                    }
+                }
+            });
+
+            logger.debug("Loaded interceptor transformation from: " + transPath);
+        } catch (KettleException e) {
+            throw new FlumeException("Unable to start the interceptor transformation " + transPath, e);
+        }
+    }
+
+    /**
+     * Runs the transformation on a single event. Only one event can be returned, the other events built from the
+     * output rows are dropped.
+     *
+     * @param event the event
+     * @return the first event built from the output rows, null if the transformation filtered the event out
+     */
+    @Override
+    public synchronized Event intercept(Event event) {
+        List<Event> events = intercept(Collections.singletonList(event));
+
+        if (events.size() > 1) {
+            if (droppedCount == 0) {
+                logger.warn("The interceptor transformation split a single event, only the first event is kept. "
+                        + "Transformations splitting events need a source delivering batches.");
+            }
+
+            droppedCount += events.size() - 1;
+            logger.debug("Dropped " + (events.size() - 1) + " events split from a single event, "
+                    + droppedCount + " in total.");
+        }
+
+        return events.isEmpty() ? null : events.get(0);
+    }
+
+    /**
+     * @return the number of extra events dropped when intercepting single events
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    @Override
+    public synchronized List<Event> intercept(List<Event> events) {
+        boolean processed = false;
+
+        try {
+            // Decode the whole batch first, so that an undecodable event doesn't leave rows in the injector
+            List<Object[]> rows = new ArrayList<Object[]>(events.size());
+
+            for (Event event : events) {
+                rows.add(eventRowDecoder.decode(event));
+            }
+
+            for (Object[] row : rows) {
+                transformation.inject(row);
+            }
+
+            transformation.endBatch();
+            processed = true;
+
+            return intercepted;
+        } catch (KettleException e) {
+            throw new FlumeException("Unable to run the interceptor transformation.", e);
+        } finally {
+            if (!processed) {
+                int discarded = transformation.discardBatch();
+
+                if (discarded > 0) {
+                    logger.debug("Discarded " + discarded + " rows of the failed batch.");
+                }
+            }
+
+            intercepted = new ArrayList<Event>();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (transformation != null) {
+            try {
+                transformation.stop();
+            } catch (KettleException e) {
+                logger.error("Error while stopping the interceptor transformation.", e);
+            }
+
+            transformation = null;
+        }
+    }
+
+    /**
+     * Builds the interceptor from its Flume properties.
+     */
+    public static class Builder implements Interceptor.Builder {
+
+        // The interceptor properties
+        private Context context;
+
+        @Override
+        public void configure(Context context) {
+            this.context = context;
+        }
+
+        @Override
+        public Interceptor build() {
+            return new PentahoKettleInterceptor(context);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.flume.ChannelException;
+import org.apache.flume.Event;
+import org.apache.flume.EventDeliveryException;
+import org.apache.flume.PollableSource;
+import org.apache.log4j.Logger;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.SingleThreadedTransExecutor;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransAdapter;
+import org.pentaho.di.trans.step.RowAdapter;
+import org.pentaho.di.trans.step.StepInterface;
+
+/**
+ * This Flume source runs a single threaded kettle transformation from the Flume polling thread: every call to
+ * {@link #process()} runs one iteration of the transformation and delivers the generated events to the channel in
+ * batches of sourceBatchSize.
+ * <p/>
+ * Steps without input run to completion inside one iteration, so the transformation should only read a bounded amount
+ * of rows per iteration (a never ending generator never returns control to Flume). When an iteration generates no
+ * events, when the transformation is finished or when the channel is full the source backs off. Events refused by the
+ * channel are kept and delivered before the next iteration runs.
+ * <p/>
+ * When packing rows the last incomplete pack of every iteration is closed once the iteration ends.
+ * <p/>
+ * When hot reload is enabled a changed transformation is prepared in the background and replaces the running one
+ * between two iterations.
+ */
+public class PentahoKettlePollableSource extends AbstractKettleSource implements PollableSource {
+
+    // The logger
+    private static final Logger logger = Logger.getLogger(PentahoKettlePollableSource.class);
+
+    private static final int DEFAULT_SOURCE_BATCH_SIZE = 100;
+
+    // Single Threaded Transformation executor, driven by the polling thread
+    private SingleThreadedTransExecutor singleThreadedTransExecutor;
+
+    // Packs the output rows of the running transformation, null when not packing
+    private RowPacker rowPacker;
+
+    // Reloaded transformation, initialized and waiting to replace the running one
+    private final AtomicReference<PolledTransformation> pendingReload = new AtomicReference<PolledTransformation>();
+
+    // Events generated by the last iteration and not delivered yet
+    private List<Event> pendingEvents = new ArrayList<Event>();
+
+    // Whether the last iteration reported the transformation as finished
+    private boolean transFinished;
+
+    @Override
+    protected int getDefaultBatchSize() {
+        return DEFAULT_SOURCE_BATCH_SIZE;
+    }
+
+    @Override
+    public synchronized void start() {
+        long startupStart = System.currentTimeMillis();
+
+        sourceCounter.start();
+        kettleCounter.start();
+
+        try {
+            PolledTransformation polled = createPolledTransformation();
+
+            singleThreadedTransExecutor = polled.executor;
+            rowPacker = polled.rowPacker;
+            transFinished = false;
+
+            startStepProfiler(singleThreadedTransExecutor.getTrans());
+            startTransformationWatcher();
+
+            kettleCounter.setStartupTime(System.currentTimeMillis() - startupStart);
+
+            super.start();
+        } catch (KettleException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Loads the transformation and initializes a single threaded executor for it, the rows of the output step are
+     * buffered until the iteration ends.
+     */
+    private PolledTransformation createPolledTransformation() throws KettleException {
+        Trans trans = prepareTransformation(TransExecutionType.BLOCKING);
+
+        StepInterface outputStep = findOutputStep(trans);
+
+        final RowEventEncoder rowEventEncoder = createEncoder(trans, outputStep);
+
+        // Packs are only completed when full, the last one of each iteration is flushed once the iteration ends
+        final RowPacker packer = createPacker(trans, outputStep, 0L, new RowPacker.PackHandler() {
+            @Override
+            public void packed(Event event) {
+                sourceCounter.incrementEventReceivedCount();
+                pendingEvents.add(event);
+            }
+        });
+
+        trans.addTransListener(new TransAdapter() {
+            @Override
+            public void transFinished(Trans trans) {
+                if (trans.getErrors() > 0) {
+                    kettleCounter.incrementTransErrorCount();
+                }
+            }
+        });
+
+        // Rows are written from the polling thread while it runs an iteration
+        outputStep.addRowListener(new RowAdapter() {
+            @Override
+            public void rowWrittenEvent(RowMetaInterface rowMeta, Object[] row) throws KettleStepException {
+                kettleCounter.incrementRowsEmittedCount();
+
+                try {
+                    if (packer != null) {
+                        packer.add(row);
+                    } else {
+                        sourceCounter.incrementEventReceivedCount();
+                        pendingEvents.add(rowEventEncoder.encode(row));
+                    }
+                } catch (KettleException e) {
+                    throw new KettleStepException("Unable to convert the row into an event.", e);
+                }
+            }
+        });
+
+        trans.startThreads();
+
+        SingleThreadedTransExecutor executor = new SingleThreadedTransExecutor(trans);
+        executor.init();
+
+        return new PolledTransformation(executor, packer);
+    }
+
+    /**
+     * The new transformation is initialized in the background, it replaces the running one between two iterations.
+     */
+    @Override
+    protected void reloadTransformation() throws KettleException {
+        PolledTransformation replaced = pendingReload.getAndSet(createPolledTransformation());
+
+        // The file changed again before the previous reload was used
+        if (replaced != null) {
+            replaced.executor.dispose();
+        }
+
+        logger.info("Reloaded source transformation from: " + this.sourceTransPath);
+    }
+
+    /**
+     * Replaces the running transformation by the reloaded one, if any.
+     */
+    private void swapReloadedTransformation() throws KettleException {
+        PolledTransformation reloaded = pendingReload.getAndSet(null);
+
+        if (reloaded != null) {
+            SingleThreadedTransExecutor replaced = singleThreadedTransExecutor;
+
+            singleThreadedTransExecutor = reloaded.executor;
+            rowPacker = reloaded.rowPacker;
+            transFinished = false;
+
+            profileTransformation(reloaded.executor.getTrans());
+
+            replaced.dispose();
+        }
+    }
+
+    @Override
+    public synchronized Status process() throws EventDeliveryException {
+        try {
+            if (pendingEvents.isEmpty()) {
+                swapReloadedTransformation();
+
+                if (transFinished) {
+                    return Status.BACKOFF;
+                }
+
+                long iterationStart = System.nanoTime();
+                transFinished = !singleThreadedTransExecutor.oneIteration();
+                kettleCounter.addIteration(System.nanoTime() - iterationStart);
+
+                if (rowPacker != null) {
+                    rowPacker.flush();
+                }
+
+                if (transFinished) {
+                    logger.info("Source transformation finished: " + sourceTransPath);
+                }
+
+                if (pendingEvents.isEmpty()) {
+                    return Status.BACKOFF;
+                }
+            }
+
+            deliverPendingEvents();
+
+            return Status.READY;
+        } catch (ChannelException e) {
+            logger.warn("The channel refused the events, " + pendingEvents.size() + " events will be retried.", e);
+            kettleCounter.incrementDeliveryRetryCount();
+            return Status.BACKOFF;
+        } catch (KettleException e) {
+            kettleCounter.incrementTransErrorCount();
+            throw new EventDeliveryException("Unable to run the source transformation iteration.", e);
+        }
+    }
+
+    private void deliverPendingEvents() {
+        while (!pendingEvents.isEmpty()) {
+            List<Event> delivered = pendingEvents.subList(0, Math.min(sourceBatchSize, pendingEvents.size()));
+            List<Event> batch = new ArrayList<Event>(delivered);
+
+            sourceCounter.incrementAppendBatchReceivedCount();
+
+            getChannelProcessor().processEventBatch(batch);
+
+            sourceCounter.incrementAppendBatchAcceptedCount();
+            sourceCounter.addToEventAcceptedCount(batch.size());
+            kettleCounter.addBatch(batch.size());
+
+            delivered.clear();
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        stopTransformationWatcher();
+        stopStepProfiler();
+
+        try {
+            PolledTransformation unused = pendingReload.getAndSet(null);
+
+            if (unused != null) {
+                unused.executor.dispose();
+            }
+
+            if (singleThreadedTransExecutor != null) {
+                singleThreadedTransExecutor.dispose();
+            }
+        } catch (KettleException e) {
+            e.printStackTrace();
+        }
+
+        if (!pendingEvents.isEmpty()) {
+            logger.warn("Discarding " + pendingEvents.size() + " undelivered events.");
+            pendingEvents.clear();
+        }
+
+        sourceCounter.stop();
+        kettleCounter.stop();
+
+        super.stop();
+        logger.info("Total events processed: " + sourceCounter.getEventAcceptedCount());
+    }
+
+    /**
+     * A loaded transformation with the runtime objects bound to it.
+     */
+    private static class PolledTransformation {
+
+        // Single Threaded Transformation executor
+        private final SingleThreadedTransExecutor executor;
+
+        // Packs the output rows, null when not packing
+        private final RowPacker rowPacker;
+
+        private PolledTransformation(SingleThreadedTransExecutor executor, RowPacker rowPacker) {
+            this.executor = executor;
+            this.rowPacker = rowPacker;
+        }
+    }
+}
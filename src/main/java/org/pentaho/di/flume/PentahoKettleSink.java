@@ -22,6 +22,24 @@
 
 package org.pentaho.di.flume;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.apache.commons.lang.ObjectUtils;
 import org.apache.flume.Channel;
 import org.apache.flume.Context;
@@ -29,19 +47,23 @@ import org.apache.flume.Event;
 import org.apache.flume.EventDeliveryException;
 import org.apache.flume.Transaction;
 import org.apache.flume.conf.Configurable;
+import org.apache.flume.event.EventBuilder;
+import org.apache.flume.instrumentation.SinkCounter;
 import org.apache.flume.sink.AbstractSink;
 import org.apache.log4j.Logger;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.logging.LogLevel;
 import org.pentaho.di.core.row.RowMetaInterface;
-import org.pentaho.di.repository.Repository;
-import org.pentaho.di.trans.RowProducer;
-import org.pentaho.di.trans.SingleThreadedTransExecutor;
+import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransAdapter;
 import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.RowAdapter;
 import org.pentaho.di.trans.step.StepInterface;
 
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 
 /**
@@ -49,6 +71,38 @@ import com.google.common.base.Preconditions;
  * this means if errors occur during execution the back-off will be successful but the trade-off here is a
  * possible slower execution time.
  * <p/>
+ * In nonblocking mode with an acknowledgement step configured, each batch transaction is handed to a worker thread
+ * that commits it only after all its rows reached that step, keeping a bounded window of batches in flight.
+ * <p/>
+ * With several workers configured, independent instances of the transformation process each batch in parallel,
+ * events being dispatched by the hash of a header, which keeps the per key ordering, or round robin. In nonblocking
+ * mode, when the injector step has several copies in the transformation, the events are dispatched between the
+ * copies of each instance the same way.
+ * <p/>
+ * When hot reload is enabled a changed transformation file is loaded and started in the background, it replaces the
+ * running transformation between two batches while the replaced one finishes processing its rows.
+ * <p/>
+ * With a dead letter directory configured, events that can't be decoded and rows sent to the error step are written
+ * to a dead letter file and the rest of the batch is committed, instead of rolling back and replaying the whole batch.
+ * In blocking and pipelined mode the dead letters are on disk before the batch commits.
+ * <p/>
+ * In nonblocking mode with flow control enabled, a single transformation instance only takes batches whose rows fit
+ * the free room of its injector row set and backs off while any row set of the transformation is saturated.
+ * <p/>
+ * With latency tracking enabled the sink records how long the events stayed in the channel, since the origin timestamp
+ * of the source, how long their injection took and, on the rows reaching the terminal step, the processing and end to
+ * end latencies.
+ * <p/>
+ * With the step profiler enabled the steps of the running transformation instances are sampled periodically, their
+ * row rates and blocked or starved state are published over JMX.
+ * <p/>
+ * With de-duplication enabled the id header keys of the last committed events are remembered, and the events
+ * delivered again once committed, by an upstream retry for instance, are skipped instead of being injected again. The
+ * keys of a batch are remembered when it commits, in pipelined mode once its rows are acknowledged. A single
+ * nonblocking transformation without acknowledgement step can't take back the rows of a rolled back batch, so the keys
+ * of its injected events are remembered on rollback too and only the rest of the batch is processed again. Events
+ * without the id header are never skipped.
+ * <p/>
  * Created Date: 11/07/2013
  * Created By: André Simões (andre.simoes@xpand-it.com)
  */
@@ -58,10 +112,6 @@ public class PentahoKettleSink extends AbstractSink implements Configurable {
     private static final Logger logger = Logger.getLogger(PentahoKettleSink.class);
 
     // Constants for the operation
-    private static final String INJECTOR_HEADERS_FIELD_NAME = "eventHeader";
-
-    private static final String INJECTOR_BODY_FIELD_NAME = "eventBody";
-
     public static final String SINK_TRANS_PATH = "sinkTransPath";
 
     public static final String SINK_INJECTOR_NAME = "sinkInjectorName";
@@ -70,8 +120,96 @@ public class PentahoKettleSink extends AbstractSink implements Configurable {
 
     public static final String SINK_LOG_LEVEL = "sinkLogLevel";
 
+    public static final String SINK_BATCH_SIZE = "sinkBatchSize";
+
+    public static final String SINK_BATCH_TIMEOUT = "sinkBatchTimeoutMs";
+
+    public static final String SINK_CHARSET = "sinkCharset";
+
+    public static final String SINK_HEADER_FIELDS = "sinkHeaderFields.";
+
+    public static final String SINK_ACK_STEP_NAME = "sinkAckStepName";
+
+    public static final String SINK_ACK_SEQUENCE_FIELD = "sinkAckSequenceField";
+
+    public static final String SINK_ACK_TIMEOUT = "sinkAckTimeoutMs";
+
+    public static final String SINK_MAX_IN_FLIGHT_BATCHES = "sinkMaxInFlightBatches";
+
+    public static final String SINK_WORKERS = "sinkWorkers";
+
+    public static final String SINK_WORKER_KEY_HEADER = "sinkWorkerKeyHeader";
+
+    public static final String SINK_RELOAD_CHECK = "sinkReloadCheckMs";
+
+    public static final String SINK_BODY_DECODER = "sinkBodyDecoder";
+
+    public static final String SINK_ERROR_STEP_NAME = "sinkErrorStepName";
+
+    public static final String SINK_ERROR_REASON_FIELD = "sinkErrorReasonField";
+
+    public static final String SINK_DEAD_LETTER_DIRECTORY = "sinkDeadLetterDirectory";
+
+    public static final String SINK_DEAD_LETTER_SERIALIZER = "sinkDeadLetterSerializer";
+
+    public static final String SINK_FLOW_CONTROL = "sinkFlowControl";
+
+    public static final String SINK_FLOW_HIGH_WATERMARK = "sinkFlowHighWatermark";
+
+    public static final String SINK_FLOW_TARGET_LATENCY = "sinkFlowTargetLatencyMs";
+
+    public static final String SINK_FLOW_MAX_BACKOFF = "sinkFlowMaxBackoffMs";
+
+    public static final String SINK_LATENCY_TRACKING = "sinkLatencyTracking";
+
+    public static final String SINK_LATENCY_STEP_NAME = "sinkLatencyStepName";
+
+    public static final String SINK_LATENCY_FIELD = "sinkLatencyField";
+
+    public static final String SINK_LATENCY_LOG_INTERVAL = "sinkLatencyLogIntervalMs";
+
+    public static final String SINK_PROFILE_INTERVAL = "sinkProfileIntervalMs";
+
+    public static final String SINK_PROFILE_LOG = "sinkProfileLog";
+
+    public static final String SINK_DEDUP_CAPACITY = "sinkDedupCapacity";
+
+    public static final String SINK_DEDUP_HEADER = "sinkDedupHeader";
+
+    // Stage reported in the dead letters of the events that couldn't be converted to rows
+    private static final String DECODER_STAGE = "decoder";
+
     private static final String DEFAULT_SINK_LOG_LEVEL = "BASIC";
 
+    private static final int DEFAULT_SINK_BATCH_SIZE = 100;
+
+    private static final long DEFAULT_SINK_BATCH_TIMEOUT = 0L;
+
+    private static final long DEFAULT_SINK_ACK_TIMEOUT = 30000L;
+
+    private static final int DEFAULT_SINK_MAX_IN_FLIGHT_BATCHES = 4;
+
+    private static final int DEFAULT_SINK_WORKERS = 1;
+
+    private static final long DEFAULT_SINK_RELOAD_CHECK = 0L;
+
+    private static final String DEFAULT_SINK_DEAD_LETTER_SERIALIZER = "avro_event";
+
+    private static final double DEFAULT_SINK_FLOW_HIGH_WATERMARK = 0.9;
+
+    private static final long DEFAULT_SINK_FLOW_TARGET_LATENCY = 1000L;
+
+    private static final long DEFAULT_SINK_FLOW_MAX_BACKOFF = 1000L;
+
+    private static final long DEFAULT_SINK_LATENCY_LOG_INTERVAL = 60000L;
+
+    private static final long DEFAULT_SINK_PROFILE_INTERVAL = 0L;
+
+    private static final int DEFAULT_SINK_DEDUP_CAPACITY = 0;
+
+    // Pause before polling the channel again while a micro batch window is open
+    private static final long MICRO_BATCH_POLL_INTERVAL = 10L;
+
     // Path to find the PDI transformation
     private String sinkTransPath;
 
@@ -84,80 +222,646 @@ public class PentahoKettleSink extends AbstractSink implements Configurable {
     // The logging level for the PDI execution
     private String sinkLogLevel;
 
-    // Runtime LRT (Long Running Transformation) object
-    private Trans sinkTrans;
+    // Maximum number of events taken from the channel in a single transaction
+    private int sinkBatchSize;
+
+    // Maximum time spent filling a batch, 0 means no time limit
+    private long sinkBatchTimeout;
+
+    // The charset used to decode non binary event bodies
+    private Charset sinkCharset;
+
+    // Event headers mapped to their own injector field
+    private Map<String, String> sinkHeaderFields;
+
+    // Name of the step whose output rows acknowledge the injected rows, nonblocking mode only
+    private String sinkAckStepName;
+
+    // Name of the field carrying the row sequence used for acknowledgements, rows are counted if not set
+    private String sinkAckSequenceField;
+
+    // Maximum time a batch waits for its acknowledgements before being rolled back
+    private long sinkAckTimeout;
+
+    // Maximum number of uncommitted batches in the transformation
+    private int sinkMaxInFlightBatches;
+
+    // Number of transformation instances processing the events
+    private int sinkWorkers;
+
+    // Header used to dispatch the events between workers or injector copies, round robin if not set
+    private String sinkWorkerKeyHeader;
+
+    // Time between two checks of the transformation file for changes, 0 disables the hot reload
+    private long sinkReloadCheck;
 
-    // Single Threaded Transformation executor
-    private SingleThreadedTransExecutor singleThreadedTransExecutor;
+    // Decoder of the body into typed fields (delimited, json, avro or a class name), null injects the raw body
+    private String sinkBodyDecoder;
 
-    // Runtime row producer object used to inject rows in the LRT
-    private RowProducer sinkRowProducer;
+    // Properties of the body decoder
+    private Context sinkBodyDecoderContext;
+
+    // Name of the step receiving the rows in error, through the error handling hops of the transformation
+    private String sinkErrorStepName;
+
+    // Field of the error rows holding the error description
+    private String sinkErrorReasonField;
+
+    // Directory of the dead letter files, dead letter routing is disabled if not set
+    private String sinkDeadLetterDirectory;
+
+    // Flume event serializer of the dead letter files
+    private String sinkDeadLetterSerializer;
+
+    // Properties of the dead letter serializer
+    private Context sinkDeadLetterSerializerContext;
+
+    // Whether the intake follows the occupancy of the injector row set, nonblocking mode only
+    private boolean sinkFlowControl;
+
+    // Fraction of the injector row set above which the sink backs off
+    private double sinkFlowHighWatermark;
+
+    // Time the transformation should take to drain a batch
+    private long sinkFlowTargetLatency;
+
+    // Longest back-off while the transformation is saturated
+    private long sinkFlowMaxBackoff;
+
+    // Whether the latencies are recorded
+    private boolean sinkLatencyTracking;
+
+    // Name of the step whose rows complete the processing of the events
+    private String sinkLatencyStepName;
+
+    // Name of the injector field receiving the injection time of the rows
+    private String sinkLatencyField;
+
+    // Interval between two latency reports
+    private long sinkLatencyLogInterval;
+
+    // Runtime latency histograms, only used with latency tracking
+    private LatencyTracker latencyTracker;
+
+    // Time between two samples of the transformation steps, 0 disables the step profiler
+    private long sinkProfileInterval;
+
+    // Whether the step samples are logged as JSON
+    private boolean sinkProfileLog;
+
+    // Number of processed event keys remembered to skip redeliveries, 0 disables the de-duplication
+    private int sinkDedupCapacity;
+
+    // Header holding the event id, required when de-duplicating
+    private String sinkDedupHeader;
+
+    // Runtime step profiler, only used when profiling
+    private StepProfiler stepProfiler;
+
+    // Runtime keys of the committed events, only used when de-duplicating
+    private ReplayFilter replayFilter;
+
+    // Whether the keys of a rolled back batch are remembered too, its injected rows can't be taken back
+    private boolean rememberRolledBackKeys;
+
+    // Runtime dead letter file, only used when dead letter routing is enabled
+    private DeadLetterWriter deadLetterWriter;
+
+    // Runtime LRT (Long Running Transformation), when running a single instance, or the current micro batch pass
+    private SinkTransformation sinkTransformation;
+
+    // Runtime LRT instances, when running several workers
+    private SinkWorkerPool sinkWorkerPool;
+
+    // Runtime micro batch passes, when running in microbatch mode
+    private MicroBatchRunner microBatchRunner;
+
+    // Next worker or injector copy for round robin dispatching
+    private int nextPartition = 0;
 
     // Runtime stream metadata signature
     private RowMetaInterface injectorRowMeta;
 
-    // Internal event count
-    private long eventCount = 0;
+    // Runtime event to row converter
+    private EventRowDecoder eventRowDecoder;
+
+    // Runtime packed event to rows converter
+    private RowUnpacker rowUnpacker;
+
+    // Runtime acknowledgement tracker, only used in pipelined mode
+    private AckTracker ackTracker;
+
+    // Runtime flow controller, only used with flow control
+    private FlowController flowController;
+
+    // Index of the injector field receiving the injection time, -1 if not used
+    private int latencyIndex = -1;
+
+    // Index of the injector field receiving the row sequence, -1 if not used
+    private int ackSequenceIndex = -1;
+
+    // Runtime workers owning the in-flight batch transactions
+    private ExecutorService batchExecutor;
+
+    // Runtime bound on the number of in-flight batches
+    private Semaphore inFlightWindow;
+
+    // Runtime in-flight batches by the sequence of their first row, only used in pipelined mode
+    private final ConcurrentSkipListMap<Long, PipelinedBatch> inFlightBatches =
+            new ConcurrentSkipListMap<Long, PipelinedBatch>();
+
+    // Number of the last batch taken from the channel, tagging the dead letters of the batch
+    private volatile long currentBatch = 0;
+
+    // Runtime watcher of the transformation file, only used when hot reloading
+    private TransformationWatcher transformationWatcher;
+
+    // Runtime thread finishing the replaced transformations in the background, only used when hot reloading
+    private ExecutorService transformationStopper;
+
+    // Reloaded transformation, started and waiting to replace the running one at the next batch boundary
+    private final AtomicReference<LoadedTransformation> pendingReload = new AtomicReference<LoadedTransformation>();
+
+    // Standard Flume sink metrics
+    private SinkCounter sinkCounter;
+
+    // Kettle specific metrics
+    private KettleCounter kettleCounter;
 
     // Lazy env init
     private PentahoKettleEnvironment env = PentahoKettleEnvironment.INSTANCE;
 
     @Override
     public void start() {
+        long startupStart = System.currentTimeMillis();
+
+        sinkCounter.start();
+        kettleCounter.start();
+
         try {
-            // Initialize the sink transformation
-            TransMeta transMeta = new TransMeta(this.sinkTransPath, (Repository) null);
+            if (sinkDeadLetterDirectory != null) {
+                deadLetterWriter = new DeadLetterWriter(new File(sinkDeadLetterDirectory), getName(),
+                        sinkDeadLetterSerializer, sinkDeadLetterSerializerContext);
+                deadLetterWriter.open();
+            }
+
+            if (sinkLatencyTracking) {
+                latencyTracker = new LatencyTracker(getName());
+                latencyTracker.start(sinkLatencyLogInterval);
+            }
 
-            // If running in blocking mode, make sure the transformation type is single threaded
-            if (sinkExecutionType == TransExecutionType.BLOCKING) {
-                transMeta.setTransformationType(TransMeta.TransformationType.SingleThreaded);
-                transMeta.setUsingThreadPriorityManagment(false);
+            if (sinkProfileInterval > 0) {
+                stepProfiler = new StepProfiler(getName(), sinkProfileInterval, sinkProfileLog);
+                stepProfiler.start();
             }
 
-            sinkTrans = new Trans(transMeta);
-            sinkTrans.prepareExecution(null);
-            sinkTrans.setLogLevel(LogLevel.valueOf(this.sinkLogLevel));
+            if (sinkDedupCapacity > 0) {
+                replayFilter = new ReplayFilter(sinkDedupCapacity, sinkDedupHeader);
 
-            // Find the injector step and set it to consume rows from the row producer
-            StepInterface injector = sinkTrans.findRunThread(this.sinkInjectorName);
+                // A single nonblocking transformation keeps processing the rows of a batch after its rollback
+                rememberRolledBackKeys = sinkExecutionType == TransExecutionType.NONBLOCKING && sinkWorkers == 1
+                        && sinkAckStepName == null;
+            }
 
-            Preconditions.checkNotNull(injector, "Couldn't find Injector step with name: " + this.sinkInjectorName);
+            install(loadTransformation());
 
-            injectorRowMeta = transMeta.getStepFields(injector.getStepMeta());
-            sinkRowProducer = sinkTrans.addRowProducer(injector.getStepname(), 0);
+            if (ackTracker != null) {
+                inFlightWindow = new Semaphore(sinkMaxInFlightBatches);
+                batchExecutor = Executors.newFixedThreadPool(sinkMaxInFlightBatches,
+                        new ThreadFactoryBuilder().setNameFormat(getName() + "-batch-%d").setDaemon(true).build());
+            }
 
-            // Initialize the transformation and wait for rows to be injected
-            sinkTrans.startThreads();
+            if (sinkReloadCheck > 0) {
+                transformationStopper = Executors.newSingleThreadExecutor(
+                        new ThreadFactoryBuilder().setNameFormat(getName() + "-stopper-%d").setDaemon(true).build());
 
-            if (sinkExecutionType == TransExecutionType.BLOCKING) {
-                singleThreadedTransExecutor = new SingleThreadedTransExecutor(sinkTrans);
-                singleThreadedTransExecutor.init();
+                transformationWatcher = new TransformationWatcher(sinkTransPath, sinkReloadCheck,
+                        new TransformationWatcher.Listener() {
+                            @Override
+                            public void transformationChanged(String path) throws KettleException {
+                                prepareReload();
+                            }
+                        });
+                transformationWatcher.start(getName());
             }
-            
+
+            kettleCounter.setStartupTime(System.currentTimeMillis() - startupStart);
+
             super.start();
             logger.debug("Loaded sink transformation from: " + this.sinkTransPath);
         } catch (KettleException e) {
             e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Loads and starts a new instance of the sink transformation, or of its workers, ready to receive events.
+     */
+    private LoadedTransformation loadTransformation() throws KettleException {
+        TransMeta transMeta = TransMetaCache.INSTANCE.getTransMeta(this.sinkTransPath);
+
+        // If running in blocking mode, make sure the transformation type is single threaded
+        if (sinkExecutionType == TransExecutionType.BLOCKING) {
+            transMeta.setTransformationType(TransMeta.TransformationType.SingleThreaded);
+            transMeta.setUsingThreadPriorityManagment(false);
+
+            // The whole batch is injected before the iteration runs, so the injector row set must hold it
+            transMeta.setSizeRowset(Math.max(transMeta.getSizeRowset(), sinkBatchSize));
+        }
+
+        LogLevel logLevel = LogLevel.valueOf(this.sinkLogLevel);
+        LoadedTransformation loaded = new LoadedTransformation();
+
+        if (sinkExecutionType == TransExecutionType.MICROBATCH) {
+            loaded.microBatchRunner = new MicroBatchRunner(transMeta, sinkInjectorName, logLevel,
+                    new MicroBatchRunner.PassListener() {
+                        @Override
+                        public void prepared(Trans trans) throws KettleException {
+                            listenToInstances(Collections.singletonList(trans), null);
+                        }
+                    });
+            loaded.microBatchRunner.start(getName());
+
+            loaded.transformation = loaded.microBatchRunner.getCurrent();
+            loaded.injectorRowMeta = loaded.microBatchRunner.getInjectorRowMeta();
+        } else if (sinkWorkers > 1) {
+            loaded.workerPool = new SinkWorkerPool(transMeta, sinkInjectorName, sinkExecutionType, logLevel,
+                    sinkWorkers, getName());
+            loaded.workerPool.start();
+
+            loaded.injectorRowMeta = loaded.workerPool.getInjectorRowMeta();
+        } else {
+            loaded.transformation = new SinkTransformation(transMeta, sinkInjectorName, sinkExecutionType, logLevel);
+            loaded.transformation.start();
+
+            loaded.injectorRowMeta = loaded.transformation.getInjectorRowMeta();
+        }
+
+        try {
+            BodyDecoder bodyDecoder = sinkBodyDecoder != null ? BodyDecoderFactory.create(sinkBodyDecoder,
+                    sinkBodyDecoderContext, loaded.injectorRowMeta, sinkCharset) : null;
+
+            loaded.eventRowDecoder = new EventRowDecoder(loaded.injectorRowMeta, sinkCharset, sinkHeaderFields,
+                    bodyDecoder);
+            loaded.rowUnpacker = new RowUnpacker(loaded.injectorRowMeta);
+
+            if (sinkExecutionType == TransExecutionType.NONBLOCKING && sinkAckStepName != null) {
+                listenForAcknowledgements(loaded);
+            }
+
+            if (latencyTracker != null && sinkLatencyField != null) {
+                loaded.latencyIndex = loaded.injectorRowMeta.indexOfValue(sinkLatencyField);
+
+                if (loaded.latencyIndex < 0) {
+                    throw new KettleException("Couldn't find field " + sinkLatencyField + " in the injector step.");
+                }
+            }
+
+            // The micro batch passes are listened to as they are prepared
+            if (loaded.microBatchRunner == null) {
+                listenToInstances(loaded.getInstances(), loaded.ackTracker);
+            }
+
+            if (sinkFlowControl && loaded.transformation != null) {
+                loaded.flowController = new FlowController(loaded.transformation.getInjectorRowSets(),
+                        loaded.transformation.getTrans().getRowsets(), loaded.transformation.getRowSetSize(),
+                        sinkFlowHighWatermark, sinkFlowTargetLatency, sinkBatchSize, sinkFlowMaxBackoff);
+            }
+        } catch (KettleException e) {
+            loaded.stop();
+            throw e;
+        } catch (RuntimeException e) {
+            loaded.stop();
+            throw e;
+        }
+
+        return loaded;
+    }
+
+    /**
+     * Makes a loaded transformation the one receiving the next batches.
+     */
+    private void install(LoadedTransformation loaded) {
+        sinkTransformation = loaded.transformation;
+        sinkWorkerPool = loaded.workerPool;
+        microBatchRunner = loaded.microBatchRunner;
+        injectorRowMeta = loaded.injectorRowMeta;
+        eventRowDecoder = loaded.eventRowDecoder;
+        rowUnpacker = loaded.rowUnpacker;
+        ackTracker = loaded.ackTracker;
+        ackSequenceIndex = loaded.ackSequenceIndex;
+        flowController = loaded.flowController;
+        latencyIndex = loaded.latencyIndex;
+
+        if (stepProfiler != null) {
+            stepProfiler.setTransformations(loaded.getInstances());
+        }
+    }
+
+    /**
+     * Starts the changed transformation from the watcher thread, it replaces the running one at the next batch.
+     */
+    private void prepareReload() throws KettleException {
+        LoadedTransformation replaced = pendingReload.getAndSet(loadTransformation());
+
+        // The file changed again before the previous reload was used
+        if (replaced != null) {
+            replaced.stop();
+        }
+
+        logger.info("Reloaded sink transformation from: " + this.sinkTransPath + ", switching at the next batch.");
+    }
+
+    /**
+     * Replaces the running transformation by the reloaded one, if any. This runs between two batches: in pipelined
+     * mode it first waits for the in-flight batches to complete, then the replaced transformation processes its
+     * remaining rows in the background while the new one takes the next batches.
+     */
+    private void swapReloadedTransformation() {
+        LoadedTransformation reloaded = pendingReload.getAndSet(null);
+
+        if (reloaded == null) {
+            return;
+        }
+
+        if (inFlightWindow != null) {
+            inFlightWindow.acquireUninterruptibly(sinkMaxInFlightBatches);
+        }
+
+        LoadedTransformation replaced = new LoadedTransformation();
+        replaced.transformation = sinkTransformation;
+        replaced.workerPool = sinkWorkerPool;
+        replaced.microBatchRunner = microBatchRunner;
+
+        try {
+            install(reloaded);
+        } finally {
+            if (inFlightWindow != null) {
+                inFlightWindow.release(sinkMaxInFlightBatches);
+            }
+        }
+
+        final LoadedTransformation stopped = replaced;
+
+        transformationStopper.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stopped.stop();
+                } catch (Throwable t) {
+                    kettleCounter.incrementTransErrorCount();
+                    logger.error("Error while finishing the replaced sink transformation.", t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Listens to the acknowledgement step of a loaded transformation, with its own acknowledgement tracker.
+     */
+    private void listenForAcknowledgements(LoadedTransformation loaded) throws KettleException {
+        final AckTracker tracker = new AckTracker();
+
+        loaded.ackTracker = tracker;
+
+        if (sinkAckSequenceField != null) {
+            // Acknowledging a sequence acknowledges every lower one, the copies would acknowledge each other's rows
+            if (loaded.transformation.getInjectorCopies() > 1) {
+                throw new KettleException("The sinkAckSequenceField can't be used with several copies of the "
+                        + sinkInjectorName + " step, their rows are acknowledged out of order.");
+            }
+
+            loaded.ackSequenceIndex = loaded.injectorRowMeta.indexOfValue(sinkAckSequenceField);
+
+            if (loaded.ackSequenceIndex < 0) {
+                throw new KettleException("Couldn't find field " + sinkAckSequenceField + " in the injector step.");
+            }
+
+            checkSequenceType(loaded.injectorRowMeta.getValueMeta(loaded.ackSequenceIndex), "injector");
+        }
+
+        Trans sinkTrans = loaded.transformation.getTrans();
+        StepInterface ackStep = sinkTrans.findRunThread(this.sinkAckStepName);
+
+        Preconditions.checkNotNull(ackStep, "Couldn't find acknowledgement step with name: " + this.sinkAckStepName);
+
+        if (sinkAckSequenceField != null) {
+            RowMetaInterface ackRowMeta = sinkTrans.getTransMeta().getStepFields(ackStep.getStepMeta());
+            ValueMetaInterface ackSequenceMeta = ackRowMeta.searchValueMeta(sinkAckSequenceField);
+
+            if (ackSequenceMeta == null) {
+                throw new KettleException("Couldn't find field " + sinkAckSequenceField + " in the acknowledgement step.");
+            }
+
+            checkSequenceType(ackSequenceMeta, "acknowledgement");
+        }
+
+        ackStep.addRowListener(new RowAdapter() {
+            // Index of the sequence field in the acknowledgement rows, resolved with the first row
+            private int sequenceIndex = -2;
+
+            @Override
+            public void rowWrittenEvent(RowMetaInterface rowMeta, Object[] row) throws KettleStepException {
+                if (sequenceIndex == -2) {
+                    sequenceIndex = sinkAckSequenceField != null ? rowMeta.indexOfValue(sinkAckSequenceField) : -1;
+                }
+
+                acknowledge(tracker, readSequence(rowMeta, row, sequenceIndex));
+            }
+        });
+
+        // No more acknowledgements will arrive once the transformation ends
+        sinkTrans.addTransListener(new TransAdapter() {
+            @Override
+            public void transFinished(Trans trans) {
+                tracker.fail();
+            }
+        });
+    }
+
+    private void checkSequenceType(ValueMetaInterface valueMeta, String stepRole) throws KettleException {
+        if (valueMeta.getType() != ValueMetaInterface.TYPE_INTEGER) {
+            throw new KettleException("The field " + sinkAckSequenceField + " of the " + stepRole
+                    + " step must be an Integer, not a " + valueMeta.getTypeDesc() + ".");
+        }
+    }
+
+    /**
+     * @return the sequence carried by a row, null if it carries none
+     */
+    private static Long readSequence(RowMetaInterface rowMeta, Object[] row, int sequenceIndex)
+            throws KettleStepException {
+        try {
+            return sequenceIndex >= 0 ? rowMeta.getInteger(row, sequenceIndex) : null;
+        } catch (KettleException e) {
+            throw new KettleStepException("Unable to read the acknowledgement sequence.", e);
+        }
+    }
+
+    /**
+     * Acknowledges a row by its sequence, or as the next row in order when it carries no sequence.
+     */
+    private static void acknowledge(AckTracker tracker, Long sequence) {
+        if (sequence != null) {
+            tracker.acknowledge(sequence);
+        } else {
+            tracker.acknowledge();
+        }
+    }
+
+    /**
+     * Listens to the error and latency steps of transformation instances, when used.
+     *
+     * @param instances the runtime transformations
+     * @param tracker   the acknowledgement tracker of the instances, null if not pipelined
+     */
+    private void listenToInstances(List<Trans> instances, AckTracker tracker) {
+        if (sinkErrorStepName != null) {
+            listenForErrors(instances, tracker);
+        }
+
+        if (latencyTracker != null && sinkLatencyStepName != null) {
+            listenForLatencies(instances);
+        }
+    }
+
+    /**
+     * Listens to the error step of every transformation instance, the error rows are written as dead letters and
+     * count as acknowledged since they won't reach the acknowledgement step.
+     */
+    private void listenForErrors(List<Trans> instances, AckTracker tracker) {
+        for (Trans trans : instances) {
+            StepInterface errorStep = trans.findRunThread(this.sinkErrorStepName);
+
+            Preconditions.checkNotNull(errorStep, "Couldn't find error step with name: " + this.sinkErrorStepName);
+
+            errorStep.addRowListener(new ErrorRowListener(tracker));
+        }
+    }
+
+    /**
+     * Listens to the terminal step of every transformation instance.
+     */
+    private void listenForLatencies(List<Trans> instances) {
+        // The origin timestamp reaches the rows through the header mapping
+        final String originField = sinkHeaderFields.get(LatencyTracker.ORIGIN_HEADER);
+
+        for (Trans trans : instances) {
+            StepInterface latencyStep = trans.findRunThread(this.sinkLatencyStepName);
+
+            Preconditions.checkNotNull(latencyStep,
+                    "Couldn't find latency step with name: " + this.sinkLatencyStepName);
+
+            latencyStep.addRowListener(new RowAdapter() {
+                // Field indexes in the terminal rows, resolved with the first row
+                private RowMetaInterface resolvedRowMeta;
+
+                private int injectedIndex;
+
+                private int originIndex;
+
+                @Override
+                public void rowWrittenEvent(RowMetaInterface rowMeta, Object[] row) throws KettleStepException {
+                    if (resolvedRowMeta != rowMeta) {
+                        injectedIndex = sinkLatencyField != null ? rowMeta.indexOfValue(sinkLatencyField) : -1;
+                        originIndex = originField != null ? rowMeta.indexOfValue(originField) : -1;
+                        resolvedRowMeta = rowMeta;
+                    }
+
+                    if (injectedIndex >= 0 && row[injectedIndex] instanceof Long) {
+                        latencyTracker.recordProcessing((Long) row[injectedIndex]);
+                    }
+
+                    if (originIndex >= 0 && row[originIndex] instanceof Long) {
+                        latencyTracker.recordEndToEnd((Long) row[originIndex]);
+                    }
+                }
+            });
         }
     }
 
     @Override
     public void stop() {
-        sinkRowProducer.finished();
+        if (transformationWatcher != null) {
+            transformationWatcher.stop();
+            transformationWatcher = null;
+        }
+
+        // Let the replaced transformations process their remaining rows
+        if (transformationStopper != null) {
+            transformationStopper.shutdown();
+
+            try {
+                if (!transformationStopper.awaitTermination(sinkAckTimeout, TimeUnit.MILLISECONDS)) {
+                    logger.warn("Timed out waiting for the replaced transformations to finish.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            transformationStopper = null;
+        }
 
         try {
-            if (sinkExecutionType == TransExecutionType.BLOCKING) {
-                singleThreadedTransExecutor.oneIteration();
-                singleThreadedTransExecutor.dispose();
+            LoadedTransformation unused = pendingReload.getAndSet(null);
+
+            if (unused != null) {
+                unused.stop();
+            }
+
+            if (microBatchRunner != null) {
+                microBatchRunner.stop();
+            } else if (sinkWorkerPool != null) {
+                sinkWorkerPool.stop();
             } else {
-                sinkTrans.waitUntilFinished();
+                sinkTransformation.stop();
             }
         } catch (KettleException e) {
             e.printStackTrace();
         }
 
+        // Let the in-flight batches commit or roll back
+        if (batchExecutor != null) {
+            batchExecutor.shutdown();
+
+            try {
+                if (!batchExecutor.awaitTermination(sinkAckTimeout, TimeUnit.MILLISECONDS)) {
+                    logger.warn("Timed out waiting for the in-flight batches to complete.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (latencyTracker != null) {
+            latencyTracker.stop();
+            latencyTracker = null;
+        }
+
+        if (stepProfiler != null) {
+            stepProfiler.stop();
+            stepProfiler = null;
+        }
+
+        replayFilter = null;
+
+        if (deadLetterWriter != null) {
+            try {
+                deadLetterWriter.close();
+            } catch (IOException e) {
+                logger.error("Unable to close the dead letter file.", e);
+            }
+
+            deadLetterWriter = null;
+        }
+
+        sinkCounter.stop();
+        kettleCounter.stop();
+
         super.stop();
-        logger.info("Total events processed: " + eventCount);
+        logger.info("Total events processed: " + sinkCounter.getEventDrainSuccessCount());
     }
 
     @Override
@@ -171,10 +875,131 @@ public class PentahoKettleSink extends AbstractSink implements Configurable {
         this.sinkExecutionType = TransExecutionType.getExecutionType(context.getString(SINK_EXECUTION_TYPE));
 
         this.sinkLogLevel = (String) ObjectUtils.defaultIfNull(context.getString(SINK_LOG_LEVEL), DEFAULT_SINK_LOG_LEVEL);
+
+        this.sinkBatchSize = context.getInteger(SINK_BATCH_SIZE, DEFAULT_SINK_BATCH_SIZE);
+        Preconditions.checkArgument(this.sinkBatchSize > 0, "The sinkBatchSize must be greater than zero.");
+
+        this.sinkBatchTimeout = context.getLong(SINK_BATCH_TIMEOUT, DEFAULT_SINK_BATCH_TIMEOUT);
+        Preconditions.checkArgument(this.sinkBatchTimeout >= 0, "The sinkBatchTimeoutMs can't be negative.");
+
+        String charsetName = context.getString(SINK_CHARSET);
+        this.sinkCharset = charsetName != null ? Charset.forName(charsetName) : Charset.defaultCharset();
+
+        this.sinkHeaderFields = context.getSubProperties(SINK_HEADER_FIELDS);
+
+        this.sinkAckStepName = context.getString(SINK_ACK_STEP_NAME);
+
+        this.sinkAckSequenceField = context.getString(SINK_ACK_SEQUENCE_FIELD);
+
+        this.sinkAckTimeout = context.getLong(SINK_ACK_TIMEOUT, DEFAULT_SINK_ACK_TIMEOUT);
+        Preconditions.checkArgument(this.sinkAckTimeout > 0, "The sinkAckTimeoutMs must be greater than zero.");
+
+        this.sinkMaxInFlightBatches = context.getInteger(SINK_MAX_IN_FLIGHT_BATCHES, DEFAULT_SINK_MAX_IN_FLIGHT_BATCHES);
+        Preconditions.checkArgument(this.sinkMaxInFlightBatches > 0,
+                "The sinkMaxInFlightBatches must be greater than zero.");
+
+        this.sinkWorkers = context.getInteger(SINK_WORKERS, DEFAULT_SINK_WORKERS);
+        Preconditions.checkArgument(this.sinkWorkers > 0, "The sinkWorkers must be greater than zero.");
+        Preconditions.checkArgument(this.sinkWorkers == 1 || this.sinkAckStepName == null,
+                "The sinkAckStepName can't be used with several sinkWorkers.");
+        Preconditions.checkArgument(this.sinkExecutionType != TransExecutionType.MICROBATCH || this.sinkWorkers == 1,
+                "The microbatch sinkExecutionType can't be used with several sinkWorkers.");
+        Preconditions.checkArgument(this.sinkExecutionType != TransExecutionType.MICROBATCH
+                || this.sinkAckStepName == null,
+                "The sinkAckStepName can't be used with the microbatch sinkExecutionType.");
+
+        this.sinkWorkerKeyHeader = context.getString(SINK_WORKER_KEY_HEADER);
+
+        this.sinkReloadCheck = context.getLong(SINK_RELOAD_CHECK, DEFAULT_SINK_RELOAD_CHECK);
+        Preconditions.checkArgument(this.sinkReloadCheck >= 0, "The sinkReloadCheckMs can't be negative.");
+
+        this.sinkBodyDecoder = context.getString(SINK_BODY_DECODER);
+        this.sinkBodyDecoderContext = new Context(context.getSubProperties(SINK_BODY_DECODER + "."));
+
+        this.sinkErrorStepName = context.getString(SINK_ERROR_STEP_NAME);
+
+        this.sinkErrorReasonField = context.getString(SINK_ERROR_REASON_FIELD);
+
+        this.sinkDeadLetterDirectory = context.getString(SINK_DEAD_LETTER_DIRECTORY);
+        Preconditions.checkArgument(this.sinkErrorStepName == null || this.sinkDeadLetterDirectory != null,
+                "The sinkErrorStepName needs a sinkDeadLetterDirectory.");
+
+        this.sinkDeadLetterSerializer = context.getString(SINK_DEAD_LETTER_SERIALIZER,
+                DEFAULT_SINK_DEAD_LETTER_SERIALIZER);
+        this.sinkDeadLetterSerializerContext = new Context(
+                context.getSubProperties(SINK_DEAD_LETTER_SERIALIZER + "."));
+
+        this.sinkFlowControl = context.getBoolean(SINK_FLOW_CONTROL, false);
+        Preconditions.checkArgument(!this.sinkFlowControl || this.sinkExecutionType == TransExecutionType.NONBLOCKING,
+                "The sinkFlowControl can only be used in nonblocking mode.");
+        Preconditions.checkArgument(!this.sinkFlowControl || this.sinkWorkers == 1,
+                "The sinkFlowControl can't be used with several sinkWorkers.");
+
+        String highWatermark = context.getString(SINK_FLOW_HIGH_WATERMARK);
+        this.sinkFlowHighWatermark = highWatermark != null
+                ? Double.parseDouble(highWatermark) : DEFAULT_SINK_FLOW_HIGH_WATERMARK;
+        Preconditions.checkArgument(this.sinkFlowHighWatermark > 0 && this.sinkFlowHighWatermark <= 1,
+                "The sinkFlowHighWatermark must be above 0 and not above 1.");
+
+        this.sinkFlowTargetLatency = context.getLong(SINK_FLOW_TARGET_LATENCY, DEFAULT_SINK_FLOW_TARGET_LATENCY);
+        Preconditions.checkArgument(this.sinkFlowTargetLatency > 0,
+                "The sinkFlowTargetLatencyMs must be greater than zero.");
+
+        this.sinkFlowMaxBackoff = context.getLong(SINK_FLOW_MAX_BACKOFF, DEFAULT_SINK_FLOW_MAX_BACKOFF);
+        Preconditions.checkArgument(this.sinkFlowMaxBackoff > 0, "The sinkFlowMaxBackoffMs must be greater than zero.");
+
+        this.sinkLatencyTracking = context.getBoolean(SINK_LATENCY_TRACKING, false);
+
+        this.sinkLatencyStepName = context.getString(SINK_LATENCY_STEP_NAME);
+
+        this.sinkLatencyField = context.getString(SINK_LATENCY_FIELD);
+
+        this.sinkLatencyLogInterval = context.getLong(SINK_LATENCY_LOG_INTERVAL, DEFAULT_SINK_LATENCY_LOG_INTERVAL);
+        Preconditions.checkArgument(this.sinkLatencyLogInterval > 0,
+                "The sinkLatencyLogIntervalMs must be greater than zero.");
+
+        this.sinkProfileInterval = context.getLong(SINK_PROFILE_INTERVAL, DEFAULT_SINK_PROFILE_INTERVAL);
+        Preconditions.checkArgument(this.sinkProfileInterval >= 0, "The sinkProfileIntervalMs can't be negative.");
+
+        this.sinkProfileLog = context.getBoolean(SINK_PROFILE_LOG, false);
+
+        this.sinkDedupCapacity = context.getInteger(SINK_DEDUP_CAPACITY, DEFAULT_SINK_DEDUP_CAPACITY);
+        Preconditions.checkArgument(this.sinkDedupCapacity >= 0, "The sinkDedupCapacity can't be negative.");
+
+        this.sinkDedupHeader = context.getString(SINK_DEDUP_HEADER);
+        Preconditions.checkArgument(this.sinkDedupCapacity == 0 || this.sinkDedupHeader != null,
+                "The sinkDedupHeader must be set with a sinkDedupCapacity.");
+
+        if (sinkCounter == null) {
+            sinkCounter = new SinkCounter(getName());
+        }
+
+        if (kettleCounter == null) {
+            kettleCounter = new KettleCounter(getName());
+        }
     }
 
     @Override
     public Status process() throws EventDeliveryException {
+        swapReloadedTransformation();
+
+        int batchLimit = sinkBatchSize;
+        long rowLimit = Long.MAX_VALUE;
+
+        // Flow control limits the rows, packed events carry many of them
+        if (flowController != null) {
+            rowLimit = flowController.admit();
+            kettleCounter.setFlowBatchLimit(rowLimit);
+
+            if (rowLimit == 0) {
+                return backOff();
+            }
+        }
+
+        if (ackTracker != null) {
+            return processPipelined(batchLimit, rowLimit);
+        }
+
         Status status = null;
 
         // Start transaction
@@ -182,39 +1007,62 @@ public class PentahoKettleSink extends AbstractSink implements Configurable {
         Transaction txn = ch.getTransaction();
         txn.begin();
         
+        long batch = ++currentBatch;
+        Set<Long> batchKeys = replayFilter != null ? new HashSet<Long>() : null;
+
         try {
-            Event event = ch.take();
+            if (microBatchRunner != null) {
+                useMicroBatchPass();
+            }
 
-            if (event != null) {
-                // Process the event data
-                // TODO: check if there is a better way of capturing the body
-                String eventHeaders = event.getHeaders().toString();
-                String eventBody = new String(event.getBody());
+            List<SinkWorkerPool.Share> shares = sinkWorkerPool != null ? sinkWorkerPool.newShares() : null;
+            int batchCount = injectBatch(ch, shares, batchLimit, rowLimit, batch, batchKeys);
 
-                // Setup the row with the field metadata
-                Object[] row = new Object[injectorRowMeta.getFieldNames().length];
-                row[injectorRowMeta.indexOfValue(INJECTOR_HEADERS_FIELD_NAME)] = eventHeaders;
-                row[injectorRowMeta.indexOfValue(INJECTOR_BODY_FIELD_NAME)] = eventBody;
-           
-                // Inject the row
-                sinkRowProducer.putRow(injectorRowMeta, row);
+            recordBatch(batchCount);
 
-                if (sinkExecutionType == TransExecutionType.BLOCKING) {
-                    singleThreadedTransExecutor.oneIteration();
+            if (batchCount > 0) {
+                long iterationStart = System.nanoTime();
+
+                // Process the whole batch in a single iteration, or wait until every worker processed its share
+                if (shares != null) {
+                    sinkWorkerPool.processBatch(shares);
+                } else if (microBatchRunner != null) {
+                    microBatchRunner.finishPass();
+                } else {
+                    sinkTransformation.endBatch();
+                }
+
+                if (sinkExecutionType != TransExecutionType.NONBLOCKING) {
+                    kettleCounter.addIteration(System.nanoTime() - iterationStart);
                 }
 
-                eventCount++;
-                
                 status = Status.READY;
             } else {
                 // poll or erroneous event
                 status = Status.BACKOFF;
             }
 
+            // The batch is committed or rolled back as a unit
             txn.commit();
+            rememberKeys(batchKeys);
+            sinkCounter.addToEventDrainSuccessCount(batchCount);
+
+            commitDeadLetters(batch);
         } catch (Throwable t) {
             txn.rollback();
-            
+            recordRollback(t);
+            discardDeadLetters(batch);
+
+            // The injected rows already went through the transformation, their redelivered events are skipped
+            if (rememberRolledBackKeys) {
+                rememberKeys(batchKeys);
+            }
+
+            // The rows of the rolled back batch must not reach the outputs with the next batch
+            if (microBatchRunner != null) {
+                microBatchRunner.abortPass();
+            }
+
             // Log exception, handle individual exceptions as needed
             status = Status.BACKOFF;
 
@@ -230,4 +1078,628 @@ public class PentahoKettleSink extends AbstractSink implements Configurable {
 
         return status;
     }
+
+    /**
+     * Makes the current micro batch pass the transformation receiving the batch.
+     */
+    private void useMicroBatchPass() throws KettleException {
+        SinkTransformation pass = microBatchRunner.getCurrent();
+
+        if (pass != sinkTransformation) {
+            sinkTransformation = pass;
+
+            if (stepProfiler != null) {
+                stepProfiler.setTransformations(Collections.singletonList(pass.getTrans()));
+            }
+        }
+    }
+
+    /**
+     * @return the transformation which received the last batch, the last finished pass in micro batch mode
+     */
+    SinkTransformation getSinkTransformation() {
+        return sinkTransformation;
+    }
+
+    /**
+     * @return the running workers, null unless running several workers
+     */
+    SinkWorkerPool getSinkWorkerPool() {
+        return sinkWorkerPool;
+    }
+
+    /**
+     * Waits while the transformation is saturated, for a delay growing as long as it stays saturated. The sink only
+     * backs off if the transformation is still saturated after the delay.
+     */
+    private Status backOff() {
+        kettleCounter.incrementFlowBackoffCount();
+
+        try {
+            return flowController.awaitCapacity(flowController.nextBackoff()) ? Status.READY : Status.BACKOFF;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Status.BACKOFF;
+        }
+    }
+
+    /**
+     * Hands a new batch to a worker once there is room in the in-flight window and waits only until its events are
+     * injected, the worker then waits for the acknowledgements and commits the batch transaction.
+     */
+    private Status processPipelined(int batchLimit, long rowLimit) throws EventDeliveryException {
+        try {
+            inFlightWindow.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Status.BACKOFF;
+        }
+
+        PipelinedBatch batch = new PipelinedBatch(batchLimit, rowLimit, ++currentBatch);
+
+        try {
+            batchExecutor.execute(batch);
+        } catch (RuntimeException e) {
+            inFlightWindow.release();
+            throw new EventDeliveryException("Unable to start a new batch.", e);
+        }
+
+        try {
+            batch.awaitInjection();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Status.BACKOFF;
+        }
+
+        if (batch.failure != null) {
+            logger.debug("Unexpected error while consuming event.", batch.failure);
+
+            // re-throw all Errors
+            if (batch.failure instanceof Error) {
+                throw (Error) batch.failure;
+            }
+
+            return Status.BACKOFF;
+        }
+
+        return batch.batchCount > 0 ? Status.READY : Status.BACKOFF;
+    }
+
+    /**
+     * Updates the batch metrics once the events of a batch were taken and injected.
+     */
+    private void recordBatch(int batchCount) {
+        if (batchCount == 0) {
+            sinkCounter.incrementBatchEmptyCount();
+        } else if (batchCount < sinkBatchSize) {
+            sinkCounter.incrementBatchUnderflowCount();
+        } else {
+            sinkCounter.incrementBatchCompleteCount();
+        }
+
+        if (batchCount > 0) {
+            sinkCounter.addToEventDrainAttemptCount(batchCount);
+            kettleCounter.addBatch(batchCount);
+        }
+    }
+
+    /**
+     * Writes the events diverted from a committed batch to the dead letter file. The batch can't be redelivered any
+     * more, so a failure is only logged.
+     */
+    private void commitDeadLetters(long batch) {
+        if (deadLetterWriter != null) {
+            try {
+                deadLetterWriter.commit(batch);
+            } catch (IOException e) {
+                logger.error("Unable to write the dead letters of a committed batch.", e);
+            }
+        }
+    }
+
+    /**
+     * Drops the events diverted from a rolled back batch, they are diverted again when it is redelivered.
+     */
+    private void discardDeadLetters(long batch) {
+        if (deadLetterWriter != null) {
+            deadLetterWriter.discard(batch);
+        }
+    }
+
+    /**
+     * Writes an event that couldn't be converted to rows as a dead letter, or fails the batch if dead letter routing
+     * is disabled.
+     */
+    private void divert(Event event, Exception cause, long batch) throws KettleException {
+        if (deadLetterWriter == null) {
+            if (cause instanceof KettleException) {
+                throw (KettleException) cause;
+            }
+
+            throw (RuntimeException) cause;
+        }
+
+        logger.debug("Diverting event that couldn't be decoded.", cause);
+
+        deadLetterWriter.write(event, DECODER_STAGE, String.valueOf(cause.getMessage()).trim(), batch);
+        kettleCounter.incrementDeadLetterCount();
+    }
+
+    /**
+     * Updates the metrics after a batch was rolled back.
+     *
+     * @param cause the reason of the rollback, null if the batch was not acknowledged
+     */
+    private void recordRollback(Throwable cause) {
+        kettleCounter.incrementBatchRollbackCount();
+
+        if (cause instanceof KettleException) {
+            kettleCounter.incrementTransErrorCount();
+        }
+    }
+
+    /**
+     * Takes events from the channel and injects them until the batch is full, the channel is empty or the batch
+     * times out. In micro batch mode with a batch timeout an empty channel doesn't end the batch, the channel is
+     * polled again until the batch is full or times out. When running several workers the rows are only added to the share of their worker. Packed events
+     * are unpacked into all their rows, which all go to the same worker. Events that can't be converted to rows are
+     * diverted to the dead letter file when enabled. When de-duplicating, the events already committed or already in
+     * the batch are skipped.
+     *
+     * @param ch         the channel, with an open transaction
+     * @param shares     the rows of each worker, null when running a single transformation
+     * @param batchLimit the maximum number of events
+     * @param rowLimit   the maximum number of rows, the last event may unpack past it
+     * @param batch      the number of the batch, tagging its dead letters
+     * @param batchKeys  collects the keys of the injected events, null when not de-duplicating
+     * @return the number of injected events
+     */
+    private int injectBatch(Channel ch, List<SinkWorkerPool.Share> shares, int batchLimit, long rowLimit, long batch,
+                            Set<Long> batchKeys) throws KettleException {
+        long batchDeadline = sinkBatchTimeout > 0 ? System.currentTimeMillis() + sinkBatchTimeout : Long.MAX_VALUE;
+        int batchCount = 0;
+        long rowCount = 0;
+
+        try {
+            while (batchCount < batchLimit && rowCount < rowLimit) {
+                if (batchCount > 0 && System.currentTimeMillis() >= batchDeadline) {
+                    break;
+                }
+
+                Event event = ch.take();
+
+                if (event == null) {
+                    // A micro batch window stays open until it is full or times out, quiet moments don't end a pass
+                    if (microBatchRunner != null && batchCount > 0 && batchDeadline != Long.MAX_VALUE
+                            && awaitEvents(batchDeadline)) {
+                        continue;
+                    }
+
+                    break;
+                }
+
+                long replayKey = replayFilter != null ? replayFilter.keyOf(event) : ReplayFilter.NO_KEY;
+
+                if (replayKey != ReplayFilter.NO_KEY && isReplayed(replayKey, batchKeys)) {
+                    // Already processed, it is only taken from the channel
+                    batchCount++;
+                    continue;
+                }
+
+                long injectionStart = 0;
+
+                if (latencyTracker != null) {
+                    latencyTracker.recordChannel(event);
+                    injectionStart = System.nanoTime();
+                }
+
+                // All the rows of an event go to the same worker and the same injector copy
+                int workers = shares != null ? shares.size() : 1;
+                int copies = shares != null ? sinkWorkerPool.getInjectorCopies()
+                        : sinkTransformation.getInjectorCopies();
+                int partition = workers * copies > 1 ? selectPartition(event, workers * copies) : 0;
+
+                SinkWorkerPool.Share share = shares != null ? shares.get(partition % workers) : null;
+                int copy = partition / workers;
+
+                List<Object[]> rows = null;
+                Object[] row = null;
+
+                // Setup the rows with the event data, a packed event is diverted as a whole
+                try {
+                    if (RowUnpacker.isPacked(event)) {
+                        rows = rowUnpacker.unpack(event);
+                    } else {
+                        row = eventRowDecoder.decode(event);
+                    }
+                } catch (KettleException e) {
+                    divert(event, e, batch);
+                } catch (RuntimeException e) {
+                    divert(event, e, batch);
+                }
+
+                if (rows != null) {
+                    for (Object[] unpacked : rows) {
+                        injectRow(unpacked, share, copy);
+                        rowCount++;
+                    }
+                } else if (row != null) {
+                    injectRow(row, share, copy);
+                    rowCount++;
+                }
+
+                if (latencyTracker != null) {
+                    latencyTracker.recordInjection(System.nanoTime() - injectionStart);
+                }
+
+                if (replayKey != ReplayFilter.NO_KEY) {
+                    batchKeys.add(replayKey);
+                }
+
+                batchCount++;
+            }
+        } finally {
+            kettleCounter.addToRowsInjectedCount(rowCount);
+
+            if (flowController != null) {
+                flowController.rowsInjected(rowCount);
+            }
+        }
+
+        return batchCount;
+    }
+
+    /**
+     * Pauses before the channel is polled again for the open micro batch window.
+     *
+     * @param batchDeadline the time the window closes
+     * @return true when the window is still open
+     */
+    private boolean awaitEvents(long batchDeadline) {
+        long remaining = batchDeadline - System.currentTimeMillis();
+
+        if (remaining <= 0) {
+            return false;
+        }
+
+        try {
+            Thread.sleep(Math.min(MICRO_BATCH_POLL_INTERVAL, remaining));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Looks an event key up in the committed keys and the keys of the current batch.
+     */
+    private boolean isReplayed(long replayKey, Set<Long> batchKeys) {
+        kettleCounter.incrementDedupLookupCount();
+
+        if (replayFilter.contains(replayKey) || batchKeys.contains(replayKey)) {
+            kettleCounter.incrementDedupHitCount();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Remembers the keys of a committed batch, or of a rolled back batch whose rows were processed anyway, its events
+     * are skipped if they are delivered again.
+     */
+    private void rememberKeys(Set<Long> batchKeys) {
+        if (batchKeys != null) {
+            for (long key : batchKeys) {
+                replayFilter.add(key);
+            }
+        }
+    }
+
+    /**
+     * Stamps the injection time and numbers the row when tracked, then injects it into its injector copy or adds it
+     * to its worker share.
+     */
+    private void injectRow(Object[] row, SinkWorkerPool.Share share, int copy) throws KettleException {
+        if (latencyIndex >= 0) {
+            row[latencyIndex] = LatencyTracker.now();
+        }
+
+        if (ackTracker != null) {
+            long sequence = ackTracker.nextSequence();
+
+            if (ackSequenceIndex >= 0) {
+                row[ackSequenceIndex] = sequence;
+            }
+        }
+
+        if (share != null) {
+            share.add(row, copy);
+        } else {
+            sinkTransformation.inject(row, copy);
+        }
+    }
+
+    /**
+     * Events with the same key header always go to the same worker or injector copy, events without it are
+     * dispatched round robin.
+     */
+    private int selectPartition(Event event, int partitions) {
+        String key = sinkWorkerKeyHeader != null ? event.getHeaders().get(sinkWorkerKeyHeader) : null;
+
+        if (key != null) {
+            return (key.hashCode() & Integer.MAX_VALUE) % partitions;
+        }
+
+        nextPartition = (nextPartition + 1) % partitions;
+        return nextPartition;
+    }
+
+    /**
+     * A batch whose transaction is owned by a worker thread, since Flume binds transactions to threads.
+     */
+    private class PipelinedBatch implements Runnable {
+
+        // Released once the events are injected
+        private final CountDownLatch injection = new CountDownLatch(1);
+
+        // Maximum number of events of the batch
+        private final int batchLimit;
+
+        // Maximum number of rows of the batch
+        private final long rowLimit;
+
+        // Number of the batch, tagging its dead letters
+        private final long batch;
+
+        // Sequence of the first row of the batch
+        private long firstSequence;
+
+        // Keys of the injected events, remembered once the batch is acknowledged
+        private final Set<Long> batchKeys = replayFilter != null ? new HashSet<Long>() : null;
+
+        // Number of injected events
+        private volatile int batchCount = 0;
+
+        // Error that prevented the injection
+        private volatile Throwable failure;
+
+        private PipelinedBatch(int batchLimit, long rowLimit, long batch) {
+            this.batchLimit = batchLimit;
+            this.rowLimit = rowLimit;
+            this.batch = batch;
+        }
+
+        @Override
+        public void run() {
+            Channel ch = getChannel();
+            Transaction txn = ch.getTransaction();
+
+            // The batches are injected one after the other, the rows of this one start here
+            firstSequence = ackTracker.getInjected();
+            inFlightBatches.put(firstSequence, this);
+
+            try {
+                txn.begin();
+
+                long ackCount = 0;
+
+                try {
+                    batchCount = injectBatch(ch, null, batchLimit, rowLimit, batch, batchKeys);
+                    ackCount = ackTracker.getInjected();
+                    recordBatch(batchCount);
+                } catch (Throwable t) {
+                    failure = t;
+                } finally {
+                    injection.countDown();
+                }
+
+                if (failure == null && (batchCount == 0 || ackTracker.awaitAcknowledged(ackCount, sinkAckTimeout))) {
+                    txn.commit();
+                    rememberKeys(batchKeys);
+                    sinkCounter.addToEventDrainSuccessCount(batchCount);
+
+                    commitDeadLetters(batch);
+                } else {
+                    txn.rollback();
+                    recordRollback(failure);
+                    discardDeadLetters(batch);
+
+                    if (failure == null) {
+                        logger.warn("Batch of " + batchCount + " events was not acknowledged by step "
+                                + sinkAckStepName + ", rolling back.");
+                    }
+                }
+            } catch (Throwable t) {
+                txn.rollback();
+                recordRollback(t);
+                discardDeadLetters(batch);
+                logger.error("Unexpected error while completing batch.", t);
+            } finally {
+                txn.close();
+                inFlightBatches.remove(firstSequence, this);
+                inFlightWindow.release();
+            }
+        }
+
+        void awaitInjection() throws InterruptedException {
+            injection.await();
+        }
+    }
+
+    /**
+     * Writes the rows reaching the error step as dead letters. The body and the mapped headers are restored from the
+     * row fields when they are still present, the error description is taken from the reason field if configured.
+     */
+    private class ErrorRowListener extends RowAdapter {
+
+        // Acknowledgement tracker of the transformation, null if not used
+        private final AckTracker tracker;
+
+        // Field indexes in the error rows, resolved with the first row
+        private RowMetaInterface resolvedRowMeta;
+
+        private int bodyIndex;
+
+        private int reasonIndex;
+
+        private int sequenceIndex;
+
+        private Map<String, Integer> headerIndexes;
+
+        private ErrorRowListener(AckTracker tracker) {
+            this.tracker = tracker;
+        }
+
+        @Override
+        public void rowWrittenEvent(RowMetaInterface rowMeta, Object[] row) throws KettleStepException {
+            if (resolvedRowMeta != rowMeta) {
+                resolve(rowMeta);
+            }
+
+            Long sequence = tracker != null ? readSequence(rowMeta, row, sequenceIndex) : null;
+
+            try {
+                Map<String, String> headers = new HashMap<String, String>();
+
+                for (Map.Entry<String, Integer> header : headerIndexes.entrySet()) {
+                    String value = rowMeta.getString(row, header.getValue());
+
+                    if (value != null) {
+                        headers.put(header.getKey(), value);
+                    }
+                }
+
+                byte[] body;
+
+                if (bodyIndex < 0 || row[bodyIndex] == null) {
+                    body = rowMeta.getString(row).getBytes(sinkCharset);
+                } else if (rowMeta.getValueMeta(bodyIndex).getType() == ValueMetaInterface.TYPE_BINARY) {
+                    body = rowMeta.getBinary(row, bodyIndex);
+                } else {
+                    body = rowMeta.getString(row, bodyIndex).getBytes(sinkCharset);
+                }
+
+                String reason = reasonIndex >= 0 ? rowMeta.getString(row, reasonIndex) : null;
+
+                deadLetterWriter.write(EventBuilder.withBody(body, headers), sinkErrorStepName, reason,
+                        batchOf(sequence));
+            } catch (KettleException e) {
+                throw new KettleStepException("Unable to convert the error row into an event.", e);
+            }
+
+            kettleCounter.incrementDeadLetterCount();
+
+            // The row won't reach the acknowledgement step
+            if (tracker != null) {
+                acknowledge(tracker, sequence);
+            }
+        }
+
+        /**
+         * Finds the batch of an error row: the in-flight batch holding its sequence in pipelined mode, the batch
+         * being processed when the batches are processed before their commit, none when the nonblocking
+         * transformation processes the rows after the commit of their batch.
+         */
+        private long batchOf(Long sequence) {
+            if (tracker != null) {
+                // Without a sequence field, the rows are acknowledged in order
+                long rowSequence = sequence != null ? sequence : tracker.getAcknowledged();
+                Map.Entry<Long, PipelinedBatch> inFlight = inFlightBatches.floorEntry(rowSequence);
+
+                return inFlight != null ? inFlight.getValue().batch : DeadLetterWriter.UNBATCHED;
+            }
+
+            if (sinkExecutionType == TransExecutionType.NONBLOCKING && sinkWorkers <= 1) {
+                return DeadLetterWriter.UNBATCHED;
+            }
+
+            return currentBatch;
+        }
+
+        private void resolve(RowMetaInterface rowMeta) {
+            bodyIndex = rowMeta.indexOfValue(EventRowDecoder.INJECTOR_BODY_FIELD_NAME);
+            reasonIndex = sinkErrorReasonField != null ? rowMeta.indexOfValue(sinkErrorReasonField) : -1;
+            sequenceIndex = sinkAckSequenceField != null ? rowMeta.indexOfValue(sinkAckSequenceField) : -1;
+            headerIndexes = new HashMap<String, Integer>();
+
+            for (Map.Entry<String, String> headerField : sinkHeaderFields.entrySet()) {
+                int index = rowMeta.indexOfValue(headerField.getValue());
+
+                if (index >= 0) {
+                    headerIndexes.put(headerField.getKey(), index);
+                }
+            }
+
+            resolvedRowMeta = rowMeta;
+        }
+    }
+
+    /**
+     * A started instance of the sink transformation, or of its workers, with the runtime objects bound to it.
+     */
+    private static class LoadedTransformation {
+
+        // The single transformation instance, the first pass in microbatch mode, null when running several workers
+        private SinkTransformation transformation;
+
+        // The worker instances, null when running a single transformation
+        private SinkWorkerPool workerPool;
+
+        // The micro batch passes, only used in microbatch mode
+        private MicroBatchRunner microBatchRunner;
+
+        // Stream metadata signature of the injector step
+        private RowMetaInterface injectorRowMeta;
+
+        // Event to row converter for the injector step
+        private EventRowDecoder eventRowDecoder;
+
+        // Packed event to rows converter for the injector step
+        private RowUnpacker rowUnpacker;
+
+        // Acknowledgement tracker, only used in pipelined mode
+        private AckTracker ackTracker;
+
+        // Index of the injector field receiving the row sequence, -1 if not used
+        private int ackSequenceIndex = -1;
+
+        // Flow controller, only used with flow control
+        private FlowController flowController;
+
+        // Index of the injector field receiving the injection time, -1 if not used
+        private int latencyIndex = -1;
+
+        /**
+         * @return the runtime transformation of every instance
+         */
+        private List<Trans> getInstances() {
+            List<Trans> instances = new ArrayList<Trans>();
+
+            if (workerPool != null) {
+                for (int i = 0; i < workerPool.size(); i++) {
+                    instances.add(workerPool.getTrans(i));
+                }
+            } else {
+                instances.add(transformation.getTrans());
+            }
+
+            return instances;
+        }
+
+        /**
+         * Lets the transformation process its remaining rows and stops it.
+         */
+        private void stop() throws KettleException {
+            if (microBatchRunner != null) {
+                microBatchRunner.stop();
+            } else if (workerPool != null) {
+                workerPool.stop();
+            } else if (transformation != null) {
+                transformation.stop();
+            }
+        }
+    }
 }
@@ -21,169 +21,471 @@
 
 package org.pentaho.di.flume;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
-import org.apache.commons.lang.ObjectUtils;
+import org.apache.flume.ChannelException;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.EventDrivenSource;
 import org.apache.flume.channel.ChannelProcessor;
-import org.apache.flume.conf.Configurable;
-import org.apache.flume.event.EventBuilder;
-import org.apache.flume.source.AbstractSource;
 import org.apache.log4j.Logger;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.exception.KettleStepException;
-import org.pentaho.di.core.exception.KettleValueException;
-import org.pentaho.di.core.logging.LogLevel;
 import org.pentaho.di.core.row.RowMetaInterface;
-import org.pentaho.di.repository.Repository;
 import org.pentaho.di.trans.SingleThreadedTransExecutor;
 import org.pentaho.di.trans.Trans;
-import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.TransAdapter;
 import org.pentaho.di.trans.step.RowAdapter;
 import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMetaDataCombi;
 
 import com.google.common.base.Preconditions;
 
 /**
  * This Flume source uses a kettle transformation to generate the events which then forward to the channel.
  * <p/>
+ * With sourcePackRows set several output rows are packed into each event, in the kettle binary row format, the sink
+ * recognizes the packs by their headers and unpacks them before injecting the rows.
+ * <p/>
+ * With sourceSpillDirectory set the events the channel refuses are spilled to a memory-mapped log on local disk and
+ * replayed in order once the channel has room, instead of failing or blocking the output step.
+ * <p/>
+ * When hot reload is enabled a changed transformation file is loaded and prepared in the background, the running
+ * transformation is then stopped and the new one started in its place.
+ * <p/>
  * Created Date: 02/12/2013 Created By: André Simões (andre.simoes@xpand-it.com)
  */
-public class PentahoKettleSource extends AbstractSource implements EventDrivenSource, Configurable {
+public class PentahoKettleSource extends AbstractKettleSource implements EventDrivenSource {
 
     // The logger
     private static final Logger logger = Logger.getLogger(PentahoKettleSource.class);
 
     // Constants for the operation
-    private static final String OUTPUT_HEADERS_FIELD_NAME = "eventHeader";
+    public static final String SOURCE_EXECUTION_TYPE = "sourceExecutionType";
 
-    private static final String OUTPUT_BODY_FIELD_NAME = "eventBody";
+    public static final String SOURCE_BATCH_TIMEOUT = "sourceBatchTimeoutMs";
 
-    public static final String SOURCE_TRANS_PATH = "sourceTransPath";
+    public static final String SOURCE_DELIVERY_QUEUE_SIZE = "sourceDeliveryQueueSize";
 
-    public static final String SOURCE_OUTPUT_NAME = "sourceOutputName";
+    public static final String SOURCE_DELIVERY_THREADS = "sourceDeliveryThreads";
 
-    public static final String SOURCE_EXECUTION_TYPE = "sourceExecutionType";
+    public static final String SOURCE_DELIVERY_RETRY = "sourceDeliveryRetryMs";
+
+    public static final String SOURCE_DELIVERY_MAX_RETRY = "sourceDeliveryMaxRetryMs";
+
+    public static final String SOURCE_DELIVERY_STOP_TIMEOUT = "sourceDeliveryStopTimeoutMs";
+
+    public static final String SOURCE_SPILL_DIRECTORY = "sourceSpillDirectory";
+
+    public static final String SOURCE_SPILL_SEGMENT_SIZE = "sourceSpillSegmentSize";
+
+    public static final String SOURCE_SPILL_MAX_BYTES = "sourceSpillMaxBytes";
+
+    public static final String SOURCE_SPILL_REPLAY_BATCH_SIZE = "sourceSpillReplayBatchSize";
+
+    public static final String SOURCE_SPILL_REPLAY_INTERVAL = "sourceSpillReplayIntervalMs";
+
+    private static final int DEFAULT_SOURCE_BATCH_SIZE = 1;
+
+    private static final long DEFAULT_SOURCE_BATCH_TIMEOUT = 1000L;
+
+    private static final int DEFAULT_SOURCE_DELIVERY_QUEUE_SIZE = 0;
 
-    public static final String SOURCE_LOG_LEVEL = "sourceLogLevel";
+    private static final int DEFAULT_SOURCE_DELIVERY_THREADS = 1;
 
-    private static final String DEFAULT_SOURCE_LOG_LEVEL = "BASIC";
+    private static final long DEFAULT_SOURCE_DELIVERY_RETRY = 100L;
 
-    // Path to find the PDI transformation
-    private String sourceTransPath;
+    private static final long DEFAULT_SOURCE_DELIVERY_MAX_RETRY = 5000L;
 
-    // Name of the step used to inject events
-    private String sourceOutputName;
+    private static final long DEFAULT_SOURCE_DELIVERY_STOP_TIMEOUT = 30000L;
 
-    // The logging level for the PDI execution
-    private String sourceLogLevel;
+    private static final int DEFAULT_SOURCE_SPILL_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final long DEFAULT_SOURCE_SPILL_MAX_BYTES = 1024L * 1024 * 1024;
+
+    private static final int DEFAULT_SOURCE_SPILL_REPLAY_BATCH_SIZE = 100;
+
+    private static final long DEFAULT_SOURCE_SPILL_REPLAY_INTERVAL = 100L;
+
+    // Milliseconds between two checks of the input steps finishing on reload
+    private static final long FINISH_POLL_INTERVAL = 10L;
 
     // Blocking vs nonblocking execution
     private TransExecutionType sourceExecutionType;
 
+    // Maximum time an event waits in an incomplete batch
+    private long sourceBatchTimeout;
+
+    // Size of the queue between the transformation and the delivery threads, 0 delivers from the step thread
+    private int sourceDeliveryQueueSize;
+
+    // Number of threads delivering the queued events
+    private int sourceDeliveryThreads;
+
+    // First back-off after the channel refuses a batch
+    private long sourceDeliveryRetry;
+
+    // Longest back-off between delivery retries
+    private long sourceDeliveryMaxRetry;
+
+    // Maximum time spent delivering the queued events when stopping
+    private long sourceDeliveryStopTimeout;
+
+    // Directory of the spill store, null if the refused events are not spilled
+    private String sourceSpillDirectory;
+
+    // Size of each spill segment file
+    private int sourceSpillSegmentSize;
+
+    // Maximum disk space used by the spill store
+    private long sourceSpillMaxBytes;
+
+    // Maximum number of spilled events replayed at once
+    private int sourceSpillReplayBatchSize;
+
+    // Time between replay attempts while the channel is full
+    private long sourceSpillReplayInterval;
+
+    // Runtime spill store and replay thread, only used when spilling
+    private ChannelSpill channelSpill;
+
+    // Runtime event buffer, only used when batching
+    private EventBatcher eventBatcher;
+
+    // Runtime hand-off queue and delivery threads, only used when delivering asynchronously
+    private AsyncEventDelivery asyncEventDelivery;
+
     // Runtime LRT (Long Running Transformation) object
     private Trans sourceTrans;
 
     // Single Threaded Transformation executor
     private SingleThreadedTransExecutor singleThreadedTransExecutor;
 
-    // Internal event count
-    private long eventCount = 0;
-
-    // Lazy env init
-    private PentahoKettleEnvironment env = PentahoKettleEnvironment.INSTANCE;
+    @Override
+    protected int getDefaultBatchSize() {
+        return DEFAULT_SOURCE_BATCH_SIZE;
+    }
 
     @Override
     public void configure(Context context) {
-        this.sourceTransPath = context.getString(SOURCE_TRANS_PATH);
-        Preconditions.checkNotNull(this.sourceTransPath, "Please configure the sourceTransPath variable.");
-
-        this.sourceOutputName = context.getString(SOURCE_OUTPUT_NAME);
-        Preconditions.checkNotNull(this.sourceOutputName, "Please configure the sourceOutputName variable.");
+        super.configure(context);
 
         this.sourceExecutionType = TransExecutionType.getExecutionType(context.getString(SOURCE_EXECUTION_TYPE));
+        Preconditions.checkArgument(this.sourceExecutionType != TransExecutionType.MICROBATCH,
+                "The microbatch sourceExecutionType is only supported by the sink.");
+
+        this.sourceBatchTimeout = context.getLong(SOURCE_BATCH_TIMEOUT, DEFAULT_SOURCE_BATCH_TIMEOUT);
+        Preconditions.checkArgument(this.sourceBatchTimeout >= 0, "The sourceBatchTimeoutMs can't be negative.");
+
+        this.sourceDeliveryQueueSize = context.getInteger(SOURCE_DELIVERY_QUEUE_SIZE,
+                DEFAULT_SOURCE_DELIVERY_QUEUE_SIZE);
+        Preconditions.checkArgument(this.sourceDeliveryQueueSize >= 0,
+                "The sourceDeliveryQueueSize can't be negative.");
+
+        // The delivery threads wait for events and for room in the queue up to the batch timeout
+        Preconditions.checkArgument(this.sourceDeliveryQueueSize == 0 || this.sourceBatchTimeout > 0,
+                "The sourceBatchTimeoutMs must be greater than zero with a sourceDeliveryQueueSize.");
+
+        this.sourceDeliveryThreads = context.getInteger(SOURCE_DELIVERY_THREADS, DEFAULT_SOURCE_DELIVERY_THREADS);
+        Preconditions.checkArgument(this.sourceDeliveryThreads > 0,
+                "The sourceDeliveryThreads must be greater than zero.");
+
+        this.sourceDeliveryRetry = context.getLong(SOURCE_DELIVERY_RETRY, DEFAULT_SOURCE_DELIVERY_RETRY);
+        this.sourceDeliveryMaxRetry = context.getLong(SOURCE_DELIVERY_MAX_RETRY, DEFAULT_SOURCE_DELIVERY_MAX_RETRY);
+        Preconditions.checkArgument(this.sourceDeliveryRetry > 0
+                && this.sourceDeliveryMaxRetry >= this.sourceDeliveryRetry,
+                "The sourceDeliveryRetryMs must be positive and not above sourceDeliveryMaxRetryMs.");
+
+        this.sourceDeliveryStopTimeout = context.getLong(SOURCE_DELIVERY_STOP_TIMEOUT,
+                DEFAULT_SOURCE_DELIVERY_STOP_TIMEOUT);
+
+        this.sourceSpillDirectory = context.getString(SOURCE_SPILL_DIRECTORY);
 
-        this.sourceLogLevel = (String) ObjectUtils.defaultIfNull(context.getString(SOURCE_LOG_LEVEL),
-                DEFAULT_SOURCE_LOG_LEVEL);
+        this.sourceSpillSegmentSize = context.getInteger(SOURCE_SPILL_SEGMENT_SIZE, DEFAULT_SOURCE_SPILL_SEGMENT_SIZE);
+        Preconditions.checkArgument(this.sourceSpillSegmentSize > 0,
+                "The sourceSpillSegmentSize must be greater than zero.");
+
+        this.sourceSpillMaxBytes = context.getLong(SOURCE_SPILL_MAX_BYTES, DEFAULT_SOURCE_SPILL_MAX_BYTES);
+        Preconditions.checkArgument(this.sourceSpillMaxBytes >= this.sourceSpillSegmentSize,
+                "The sourceSpillMaxBytes can't be below sourceSpillSegmentSize.");
+
+        this.sourceSpillReplayBatchSize = context.getInteger(SOURCE_SPILL_REPLAY_BATCH_SIZE,
+                DEFAULT_SOURCE_SPILL_REPLAY_BATCH_SIZE);
+        Preconditions.checkArgument(this.sourceSpillReplayBatchSize > 0,
+                "The sourceSpillReplayBatchSize must be greater than zero.");
+
+        this.sourceSpillReplayInterval = context.getLong(SOURCE_SPILL_REPLAY_INTERVAL,
+                DEFAULT_SOURCE_SPILL_REPLAY_INTERVAL);
+        Preconditions.checkArgument(this.sourceSpillReplayInterval > 0,
+                "The sourceSpillReplayIntervalMs must be greater than zero.");
     }
 
     @Override
     public synchronized void start() {
         final ChannelProcessor channel = getChannelProcessor();
+        long startupStart = System.currentTimeMillis();
+
+        sourceCounter.start();
+        kettleCounter.start();
 
         try {
-            // Initialize the sink transformation
-            TransMeta transMeta = new TransMeta(this.sourceTransPath, (Repository) null);
+            if (sourceSpillDirectory != null) {
+                channelSpill = new ChannelSpill(channel, sourceCounter, kettleCounter,
+                        new SpillStore(new File(sourceSpillDirectory), sourceSpillSegmentSize, sourceSpillMaxBytes),
+                        sourceSpillReplayBatchSize, sourceSpillReplayInterval);
+                channelSpill.start(getName());
+            }
 
-            // If running in blocking mode, make sure the transformation type is single threaded
-            if (sourceExecutionType == TransExecutionType.BLOCKING) {
-                transMeta.setTransformationType(TransMeta.TransformationType.SingleThreaded);
-                transMeta.setUsingThreadPriorityManagment(false);
+            if (sourceDeliveryQueueSize > 0) {
+                asyncEventDelivery = new AsyncEventDelivery(channel, sourceCounter, kettleCounter, channelSpill,
+                        sourceDeliveryQueueSize, sourceBatchSize, sourceBatchTimeout, sourceDeliveryRetry,
+                        sourceDeliveryMaxRetry, sourceDeliveryThreads);
+                asyncEventDelivery.start(getName());
+            } else if (sourceBatchSize > 1) {
+                eventBatcher = new EventBatcher(channel, sourceCounter, kettleCounter, channelSpill,
+                        sourceBatchSize, sourceBatchTimeout);
+                eventBatcher.start(getName());
             }
 
-            sourceTrans = new Trans(transMeta);
-            sourceTrans.prepareExecution(null);
-            sourceTrans.setLogLevel(LogLevel.valueOf(this.sourceLogLevel));
+            // Initialize the source transformation
+            sourceTrans = createTransformation();
+            startTransformation();
+
+            startStepProfiler(sourceTrans);
+            startTransformationWatcher();
+
+            kettleCounter.setStartupTime(System.currentTimeMillis() - startupStart);
+
+            super.start();
+        } catch (KettleException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Loads and prepares the transformation, forwarding the rows of its output step to the channel.
+     */
+    private Trans createTransformation() throws KettleException {
+        final ChannelProcessor channel = getChannelProcessor();
+
+        Trans trans = prepareTransformation(sourceExecutionType);
 
-            logger.debug("Loaded source transformation from: " + this.sourceTransPath);
+        // find the "output" step
+        StepInterface outputStep = findOutputStep(trans);
 
-            // find the "output" step
-            StepInterface outputStep = sourceTrans.getStepInterface(this.sourceOutputName, 0);
+        final RowEventEncoder rowEventEncoder = createEncoder(trans, outputStep);
 
-            Preconditions.checkNotNull(outputStep, "Couldn't find Output step with name: " + this.sourceOutputName);
+        // Incomplete packs are closed by the batch timeout, like incomplete batches
+        final RowPacker rowPacker = createPacker(trans, outputStep, sourceBatchTimeout, new RowPacker.PackHandler() {
+            @Override
+            public void packed(Event event) throws KettleException {
+                deliver(channel, event);
+            }
+        });
 
-            RowAdapter rowAdapter = new RowAdapter() {
-                @Override
-                public void rowWrittenEvent(RowMetaInterface rowMeta, Object[] row) throws KettleStepException {
-                    final Map<String, String> headers = new HashMap<String, String>();
+        if (rowPacker != null) {
+            rowPacker.start(getName());
+        }
 
-                    String eventBody = null;
+        trans.addTransListener(new TransAdapter() {
+            @Override
+            public void transFinished(Trans trans) {
+                if (trans.getErrors() > 0) {
+                    kettleCounter.incrementTransErrorCount();
+                }
 
+                if (rowPacker != null) {
                     try {
-                        eventBody = rowMeta.getString(row, OUTPUT_BODY_FIELD_NAME, "");
-                    } catch (KettleValueException e) {
-                        e.printStackTrace();
+                        rowPacker.stop();
+                    } catch (KettleException e) {
+                        logger.error("Unable to deliver the last packed rows.", e);
                     }
+                }
 
-                    Event event = EventBuilder.withBody(eventBody.getBytes(), headers);
-                    channel.processEvent(event);
-                    eventCount++;
+                // Deliver the last incomplete batch as soon as the transformation ends
+                if (eventBatcher != null) {
+                    eventBatcher.flush();
                 }
-            };
+            }
+        });
+
+        RowAdapter rowAdapter = new RowAdapter() {
+            @Override
+            public void rowWrittenEvent(RowMetaInterface rowMeta, Object[] row) throws KettleStepException {
+                kettleCounter.incrementRowsEmittedCount();
+
+                try {
+                    if (rowPacker != null) {
+                        rowPacker.add(row);
+                    } else {
+                        deliver(channel, rowEventEncoder.encode(row));
+                    }
+                } catch (KettleStepException e) {
+                    throw e;
+                } catch (KettleException e) {
+                    throw new KettleStepException("Unable to convert the row into an event.", e);
+                }
+            }
+        };
 
-            outputStep.addRowListener(rowAdapter);
+        outputStep.addRowListener(rowAdapter);
 
-            // Initialize the transformation and wait for rows to be injected
-            sourceTrans.startThreads();
+        return trans;
+    }
 
-            if (sourceExecutionType == TransExecutionType.BLOCKING) {
-                singleThreadedTransExecutor = new SingleThreadedTransExecutor(sourceTrans);
-                singleThreadedTransExecutor.init();
+    /**
+     * Hands an event over to the delivery queue, the batcher or straight to the channel.
+     */
+    private void deliver(ChannelProcessor channel, Event event) throws KettleStepException {
+        sourceCounter.incrementEventReceivedCount();
+
+        if (asyncEventDelivery != null) {
+            try {
+                asyncEventDelivery.add(event);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new KettleStepException("Interrupted while queueing the event.", e);
+            } catch (IllegalStateException e) {
+                throw new KettleStepException("Source is stopping, the event was not queued.", e);
             }
-            
-            super.start();
-        } catch (KettleException e) {
-            e.printStackTrace();
+        } else if (eventBatcher != null) {
+            eventBatcher.add(event);
+        } else if (channelSpill != null) {
+            if (channelSpill.deliver(Collections.singletonList(event))) {
+                sourceCounter.incrementEventAcceptedCount();
+            }
+        } else {
+            channel.processEvent(event);
+            sourceCounter.incrementEventAcceptedCount();
         }
     }
 
-    @Override
-    public synchronized void stop() {
+    /**
+     * Starts the threads of the current transformation.
+     */
+    private void startTransformation() throws KettleException {
+        sourceTrans.startThreads();
+
+        if (sourceExecutionType == TransExecutionType.BLOCKING) {
+            singleThreadedTransExecutor = new SingleThreadedTransExecutor(sourceTrans);
+            singleThreadedTransExecutor.init();
+        }
+    }
+
+    /**
+     * Stops the current transformation and waits for it to finish.
+     */
+    private void stopTransformation() throws KettleException {
+        if (sourceExecutionType == TransExecutionType.BLOCKING) {
+            singleThreadedTransExecutor.dispose();
+        } else {
+            sourceTrans.stopAll();
+            sourceTrans.waitUntilFinished();
+        }
+    }
+
+    /**
+     * Stops the input steps of the current transformation and waits until the rows they already generated went
+     * through the other steps and the transformation finished.
+     */
+    private void finishTransformation() throws KettleException {
+        // The single threaded iterations leave no rows between two steps
+        if (sourceExecutionType == TransExecutionType.BLOCKING) {
+            singleThreadedTransExecutor.dispose();
+            return;
+        }
+
+        List<StepInterface> inputSteps = new ArrayList<StepInterface>();
+
+        for (StepMetaDataCombi combi : sourceTrans.getSteps()) {
+            if (combi.step.getInputRowSets().isEmpty()) {
+                combi.step.setStopped(true);
+                inputSteps.add(combi.step);
+            }
+        }
+
+        // Once the thread of an input step ended, the next steps can empty its row sets and finish
         try {
-            if (sourceExecutionType == TransExecutionType.BLOCKING) {
-                singleThreadedTransExecutor.dispose();
-            } else {
-                sourceTrans.stopAll();
-                sourceTrans.waitUntilFinished();
+            for (StepInterface inputStep : inputSteps) {
+                while (inputStep.isRunning()) {
+                    Thread.sleep(FINISH_POLL_INTERVAL);
+                }
+
+                inputStep.setOutputDone();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KettleException("Interrupted while finishing the source transformation.", e);
+        }
+
+        sourceTrans.waitUntilFinished();
+    }
+
+    /**
+     * The new transformation is prepared in the background, the running one is then finished and replaced.
+     */
+    @Override
+    protected void reloadTransformation() throws KettleException {
+        Trans reloaded = createTransformation();
+
+        synchronized (this) {
+            finishTransformation();
+
+            sourceTrans = reloaded;
+            startTransformation();
+
+            profileTransformation(reloaded);
+        }
+
+        logger.info("Reloaded source transformation from: " + this.sourceTransPath);
+    }
+
+    @Override
+    public void stop() {
+        // A reload in progress needs the source lock to complete
+        stopTransformationWatcher();
+        stopStepProfiler();
+
+        synchronized (this) {
+            // Release the output step if it is waiting for room in the delivery queue
+            if (asyncEventDelivery != null) {
+                asyncEventDelivery.close();
+            }
+
+            try {
+                stopTransformation();
+            } catch (KettleException e) {
+                e.printStackTrace();
+            }
+
+            if (asyncEventDelivery != null) {
+                asyncEventDelivery.stop(sourceDeliveryStopTimeout);
+            }
+
+            try {
+                if (eventBatcher != null) {
+                    eventBatcher.stop();
+                }
+            } catch (ChannelException e) {
+                logger.error("Unable to deliver the last event batch.", e);
+            } finally {
+                if (channelSpill != null) {
+                    channelSpill.stop();
+                }
+
+                sourceCounter.stop();
+                kettleCounter.stop();
+
+                super.stop();
             }
-        } catch (KettleException e) {
-            e.printStackTrace();
         }
 
-        super.stop();
-        logger.info("Total events processed: " + eventCount);
+        logger.info("Total events processed: " + sourceCounter.getEventAcceptedCount());
     }
 }
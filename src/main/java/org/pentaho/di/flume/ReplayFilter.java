@@ -0,0 +1,183 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.nio.charset.Charset;
+
+import org.apache.flume.Event;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Remembers the keys of the most recently processed events, to skip the events delivered again once processed.
+ * The key of an event is the 64 bits hash of its id header, an event without it has no key and is never skipped:
+ * distinct events may well share a body.
+ * <p/>
+ * The keys are kept in an open addressing table of primitive longs, and a ring buffer of the same capacity evicts the
+ * oldest key when a new one is added, so the memory stays at about 24 bytes per key. Two distinct events only share
+ * a key with a probability around 2^-64 per pair.
+ */
+public class ReplayFilter {
+
+    // Key of the events without id header
+    public static final long NO_KEY = 0L;
+
+    // Marks the free slots of the table, a key equal to it is stored as FREE_REPLACEMENT
+    private static final long FREE = NO_KEY;
+
+    private static final long FREE_REPLACEMENT = 1L;
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Header holding the event id
+    private final String idHeader;
+
+    // Hash table of the keys, linear probing
+    private final long[] table;
+
+    // Keys in insertion order, the oldest one is overwritten first
+    private final long[] ring;
+
+    // Position of the next key in the ring
+    private int ringPosition;
+
+    // Number of keys written in the ring, up to its capacity
+    private int ringCount;
+
+    // Number of keys in the table
+    private int size;
+
+    /**
+     * @param capacity the number of keys remembered
+     * @param idHeader the header holding the event id
+     */
+    public ReplayFilter(int capacity, String idHeader) {
+        Preconditions.checkArgument(capacity > 0, "The capacity must be greater than zero.");
+        Preconditions.checkNotNull(idHeader, "The id header can't be null.");
+
+        this.idHeader = idHeader;
+        this.table = new long[Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1];
+        this.ring = new long[capacity];
+    }
+
+    /**
+     * @param event the event
+     * @return the key of the event from its id header, {@link #NO_KEY} without it
+     */
+    public long keyOf(Event event) {
+        String id = event.getHeaders().get(idHeader);
+
+        if (id == null) {
+            return NO_KEY;
+        }
+
+        long key = HASH.hashBytes(id.getBytes(UTF_8)).asLong();
+
+        return key == FREE ? FREE_REPLACEMENT : key;
+    }
+
+    /**
+     * @param key an event key
+     * @return true if the key is remembered
+     */
+    public synchronized boolean contains(long key) {
+        return table[find(key)] == key;
+    }
+
+    /**
+     * Remembers a key, forgetting the oldest one when full.
+     *
+     * @param key an event key
+     */
+    public synchronized void add(long key) {
+        int slot = find(key);
+
+        if (table[slot] == key) {
+            return;
+        }
+
+        // The table never holds more keys than the ring
+        if (ringCount == ring.length) {
+            delete(ring[ringPosition]);
+        } else {
+            ringCount++;
+        }
+
+        table[find(key)] = key;
+        size++;
+
+        ring[ringPosition] = key;
+        ringPosition = (ringPosition + 1) % ring.length;
+    }
+
+    /**
+     * @return the number of remembered keys
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private int find(long key) {
+        int mask = table.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+
+        while (table[slot] != FREE && table[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void delete(long key) {
+        int mask = table.length - 1;
+        int slot = find(key);
+
+        if (table[slot] != key) {
+            return;
+        }
+
+        table[slot] = FREE;
+        size--;
+
+        // Shift back the following keys of the probe sequence, so no lookup stops at the freed slot
+        int next = (slot + 1) & mask;
+
+        while (table[next] != FREE) {
+            long moved = table[next];
+            int home = (int) (moved ^ (moved >>> 32)) & mask;
+
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                table[slot] = moved;
+                table[next] = FREE;
+                slot = next;
+            }
+
+            next = (next + 1) & mask;
+        }
+    }
+}
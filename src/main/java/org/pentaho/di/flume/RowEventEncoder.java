@@ -0,0 +1,174 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Converts the rows written by the source output step into Flume events.
+ * <p/>
+ * The encoder is built once from the output step row metadata, so every field is accessed by its precomputed
+ * index. The body field is passed through as is when it is Binary, or encoded with the configured charset
+ * otherwise. Mapped fields become event headers, and an optional header receives the event creation time.
+ */
+public class RowEventEncoder {
+
+    // Constants for the operation
+    public static final String OUTPUT_BODY_FIELD_NAME = "eventBody";
+
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    // Index of the field holding the body
+    private final int bodyIndex;
+
+    // Metadata of the body field
+    private final ValueMetaInterface bodyValueMeta;
+
+    // True if the body is passed through without conversion
+    private final boolean binaryBody;
+
+    // The charset used to encode non binary bodies
+    private final Charset charset;
+
+    // Names of the headers filled from the row
+    private final String[] headerNames;
+
+    // Indexes of the fields holding the header values
+    private final int[] headerIndexes;
+
+    // Metadata of the fields holding the header values
+    private final ValueMetaInterface[] headerValueMetas;
+
+    // Name of the header that receives the event creation time, null if not used
+    private final String timestampHeader;
+
+    // True to stamp the high resolution origin timestamp used for latency tracking
+    private final boolean originTimestamp;
+
+    /**
+     * @param outputRowMeta   the row metadata of the output step
+     * @param bodyField       the name of the field holding the event body
+     * @param charset         the charset used to encode non binary bodies
+     * @param headerFields    the header names mapped to the output field names
+     * @param timestampHeader the name of the header receiving the event creation time, or null
+     * @throws KettleException if the body field or a mapped field doesn't exist in the output step
+     */
+    public RowEventEncoder(RowMetaInterface outputRowMeta, String bodyField, Charset charset,
+                           Map<String, String> headerFields, String timestampHeader) throws KettleException {
+        this(outputRowMeta, bodyField, charset, headerFields, timestampHeader, false);
+    }
+
+    /**
+     * @param outputRowMeta   the row metadata of the output step
+     * @param bodyField       the name of the field holding the event body
+     * @param charset         the charset used to encode non binary bodies
+     * @param headerFields    the header names mapped to the output field names
+     * @param timestampHeader the name of the header receiving the event creation time, or null
+     * @param originTimestamp true to stamp the {@link LatencyTracker#ORIGIN_HEADER} header
+     * @throws KettleException if the body field or a mapped field doesn't exist in the output step
+     */
+    public RowEventEncoder(RowMetaInterface outputRowMeta, String bodyField, Charset charset,
+                           Map<String, String> headerFields, String timestampHeader, boolean originTimestamp)
+            throws KettleException {
+        this.charset = charset;
+        this.timestampHeader = timestampHeader;
+        this.originTimestamp = originTimestamp;
+
+        this.bodyIndex = outputRowMeta.indexOfValue(bodyField);
+
+        if (bodyIndex < 0) {
+            throw new KettleException("Couldn't find body field " + bodyField + " in the output step.");
+        }
+
+        this.bodyValueMeta = outputRowMeta.getValueMeta(bodyIndex);
+        this.binaryBody = bodyValueMeta.getType() == ValueMetaInterface.TYPE_BINARY;
+
+        this.headerNames = new String[headerFields.size()];
+        this.headerIndexes = new int[headerFields.size()];
+        this.headerValueMetas = new ValueMetaInterface[headerFields.size()];
+
+        int i = 0;
+        for (Map.Entry<String, String> headerField : headerFields.entrySet()) {
+            int index = outputRowMeta.indexOfValue(headerField.getValue());
+
+            if (index < 0) {
+                throw new KettleException("Couldn't find field " + headerField.getValue()
+                        + " for header " + headerField.getKey() + " in the output step.");
+            }
+
+            headerNames[i] = headerField.getKey();
+            headerIndexes[i] = index;
+            headerValueMetas[i] = outputRowMeta.getValueMeta(index);
+            i++;
+        }
+    }
+
+    /**
+     * Converts an output row into an event.
+     *
+     * @param row the row written by the output step
+     * @return the event to deliver
+     * @throws KettleValueException if a field can't be converted
+     */
+    public Event encode(Object[] row) throws KettleValueException {
+        Map<String, String> headers = new HashMap<String, String>();
+
+        for (int i = 0; i < headerNames.length; i++) {
+            String value = headerValueMetas[i].getString(row[headerIndexes[i]]);
+
+            if (value != null) {
+                headers.put(headerNames[i], value);
+            }
+        }
+
+        if (timestampHeader != null) {
+            headers.put(timestampHeader, Long.toString(System.currentTimeMillis()));
+        }
+
+        if (originTimestamp) {
+            headers.put(LatencyTracker.ORIGIN_HEADER, Long.toString(LatencyTracker.now()));
+        }
+
+        return EventBuilder.withBody(encodeBody(row), headers);
+    }
+
+    private byte[] encodeBody(Object[] row) throws KettleValueException {
+        if (binaryBody) {
+            byte[] body = bodyValueMeta.getBinary(row[bodyIndex]);
+            return body != null ? body : EMPTY_BODY;
+        }
+
+        String body = bodyValueMeta.getString(row[bodyIndex]);
+        return body != null ? body.getBytes(charset) : EMPTY_BODY;
+    }
+}
@@ -0,0 +1,272 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.apache.log4j.Logger;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Packs several output rows into a single event, the body holding the row metadata followed by the rows in the
+ * Kettle binary serialization, optionally deflated. The number of rows and the codec travel as event headers, so
+ * {@link RowUnpacker} can recognize the packed events and restore the typed rows without any string conversion.
+ * <p/>
+ * A pack is handed over once it holds the configured number of rows, when its oldest row is older than the pack
+ * timeout, or when it is flushed.
+ */
+public class RowPacker {
+
+    // The logger
+    private static final Logger logger = Logger.getLogger(RowPacker.class);
+
+    // Constants for the operation
+    public static final String PACKED_ROWS_HEADER = "kettle.packed.rows";
+
+    public static final String PACKED_CODEC_HEADER = "kettle.packed.codec";
+
+    public static final String CODEC_NONE = "none";
+
+    public static final String CODEC_DEFLATE = "deflate";
+
+    /**
+     * Receives the complete packs.
+     */
+    public interface PackHandler {
+
+        /**
+         * @param event the packed rows
+         * @throws KettleException if the pack can't be delivered
+         */
+        void packed(Event event) throws KettleException;
+    }
+
+    // Metadata of the packed rows
+    private final RowMetaInterface rowMeta;
+
+    // Number of rows that completes a pack
+    private final int packSize;
+
+    // True to deflate the packs
+    private final boolean deflate;
+
+    // Name of the header receiving the pack creation time, null if not used
+    private final String timestampHeader;
+
+    // True to stamp the high resolution origin timestamp used for latency tracking
+    private final boolean originTimestamp;
+
+    // Maximum age of a packed row in milliseconds, 0 means no time limit
+    private final long packTimeout;
+
+    // Where the packs are delivered
+    private final PackHandler handler;
+
+    // Serialized rows of the current pack
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    // Reused compressor
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    // Compressing stream of the current pack, null when not deflating
+    private DeflaterOutputStream deflaterOut;
+
+    // Stream writing the current pack, null when the pack is empty
+    private DataOutputStream out;
+
+    // Number of rows of the current pack
+    private int rows;
+
+    // Time when the first row of the current pack was written
+    private long packStart;
+
+    // High resolution time when the first row of the current pack was written
+    private long packOrigin;
+
+    // Timer used to flush packs that are not filling up
+    private ScheduledExecutorService flushTimer;
+
+    /**
+     * @param rowMeta         the metadata of the packed rows
+     * @param packSize        the number of rows that completes a pack
+     * @param codec           none or deflate
+     * @param timestampHeader the name of the header receiving the pack creation time, null if not used
+     * @param packTimeout     the maximum age of a packed row in milliseconds, 0 means no time limit
+     * @param handler         receives the complete packs
+     */
+    public RowPacker(RowMetaInterface rowMeta, int packSize, String codec, String timestampHeader, long packTimeout,
+                     PackHandler handler) {
+        this(rowMeta, packSize, codec, timestampHeader, false, packTimeout, handler);
+    }
+
+    /**
+     * @param rowMeta         the metadata of the packed rows
+     * @param packSize        the number of rows that completes a pack
+     * @param codec           none or deflate
+     * @param timestampHeader the name of the header receiving the pack creation time, null if not used
+     * @param originTimestamp true to stamp the {@link LatencyTracker#ORIGIN_HEADER} header with the time of the
+     *                        first row of the pack
+     * @param packTimeout     the maximum age of a packed row in milliseconds, 0 means no time limit
+     * @param handler         receives the complete packs
+     */
+    public RowPacker(RowMetaInterface rowMeta, int packSize, String codec, String timestampHeader,
+                     boolean originTimestamp, long packTimeout, PackHandler handler) {
+        if (!CODEC_NONE.equals(codec) && !CODEC_DEFLATE.equals(codec)) {
+            throw new IllegalArgumentException("Unknown pack codec " + codec + ", use none or deflate.");
+        }
+
+        this.rowMeta = rowMeta;
+        this.packSize = packSize;
+        this.deflate = CODEC_DEFLATE.equals(codec);
+        this.timestampHeader = timestampHeader;
+        this.originTimestamp = originTimestamp;
+        this.packTimeout = packTimeout;
+        this.handler = handler;
+    }
+
+    /**
+     * Starts the flush timer, if a pack timeout was configured.
+     *
+     * @param name the name used for the timer thread
+     */
+    public void start(String name) {
+        if (packTimeout > 0) {
+            flushTimer = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat(name + "-pack-timer-%d").setDaemon(true).build());
+
+            long period = Math.max(1L, packTimeout / 2);
+            flushTimer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flushExpired();
+                    } catch (Throwable t) {
+                        logger.error("Unable to deliver the timed out row pack.", t);
+                    }
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the flush timer and delivers the current pack.
+     *
+     * @throws KettleException if the last pack can't be delivered
+     */
+    public void stop() throws KettleException {
+        if (flushTimer != null) {
+            flushTimer.shutdownNow();
+            flushTimer = null;
+        }
+
+        flush();
+    }
+
+    /**
+     * Adds a row to the current pack, delivering the pack when it is complete.
+     *
+     * @param row the row to pack
+     * @throws KettleException if the row can't be serialized or the pack delivered
+     */
+    public synchronized void add(Object[] row) throws KettleException {
+        if (out == null) {
+            buffer.reset();
+            deflater.reset();
+            deflaterOut = deflate ? new DeflaterOutputStream(buffer, deflater) : null;
+            out = new DataOutputStream(deflaterOut != null ? deflaterOut : buffer);
+            packStart = System.currentTimeMillis();
+            packOrigin = originTimestamp ? LatencyTracker.now() : 0L;
+
+            rowMeta.writeMeta(out);
+        }
+
+        rowMeta.writeData(out, row);
+        rows++;
+
+        if (rows >= packSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Delivers the current pack, if it holds any row.
+     *
+     * @throws KettleException if the pack can't be delivered
+     */
+    public synchronized void flush() throws KettleException {
+        if (out == null) {
+            return;
+        }
+
+        try {
+            out.flush();
+
+            if (deflaterOut != null) {
+                deflaterOut.finish();
+            }
+        } catch (IOException e) {
+            throw new KettleException("Unable to complete the row pack.", e);
+        }
+
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(PACKED_ROWS_HEADER, Integer.toString(rows));
+        headers.put(PACKED_CODEC_HEADER, deflate ? CODEC_DEFLATE : CODEC_NONE);
+
+        if (timestampHeader != null) {
+            headers.put(timestampHeader, Long.toString(System.currentTimeMillis()));
+        }
+
+        if (originTimestamp) {
+            headers.put(LatencyTracker.ORIGIN_HEADER, Long.toString(packOrigin));
+        }
+
+        Event event = EventBuilder.withBody(buffer.toByteArray(), headers);
+
+        out = null;
+        deflaterOut = null;
+        rows = 0;
+
+        handler.packed(event);
+    }
+
+    private synchronized void flushExpired() throws KettleException {
+        if (out != null && System.currentTimeMillis() - packStart >= packTimeout) {
+            flush();
+        }
+    }
+}
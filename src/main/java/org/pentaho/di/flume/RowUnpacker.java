@@ -0,0 +1,160 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.flume.Event;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Restores the rows packed by {@link RowPacker} as injector rows. Packed fields are matched with the injector fields
+ * by name and keep their value when the types match, the others are converted. The field mapping is resolved again
+ * only when the packed metadata changes.
+ */
+public class RowUnpacker {
+
+    // Runtime stream metadata signature
+    private final RowMetaInterface injectorRowMeta;
+
+    // Names and types of the packed fields the mapping was resolved for
+    private String[] packedNames;
+
+    private int[] packedTypes;
+
+    // Index of each packed field in the injector row, -1 when not injected
+    private int[] injectorIndexes;
+
+    // True when the packed field has the type of its injector field
+    private boolean[] sameTypes;
+
+    /**
+     * @param injectorRowMeta the row metadata of the injector step
+     */
+    public RowUnpacker(RowMetaInterface injectorRowMeta) {
+        this.injectorRowMeta = injectorRowMeta;
+    }
+
+    /**
+     * @param event the event
+     * @return true if the event holds packed rows
+     */
+    public static boolean isPacked(Event event) {
+        return event.getHeaders().containsKey(RowPacker.PACKED_ROWS_HEADER);
+    }
+
+    /**
+     * Converts a packed event into injector rows.
+     *
+     * @param event the packed event
+     * @return the injector rows
+     * @throws KettleException if the body can't be read
+     */
+    public List<Object[]> unpack(Event event) throws KettleException {
+        int count;
+
+        try {
+            count = Integer.parseInt(event.getHeaders().get(RowPacker.PACKED_ROWS_HEADER));
+        } catch (NumberFormatException e) {
+            throw new KettleException("Invalid packed row count.", e);
+        }
+
+        InputStream body = new ByteArrayInputStream(event.getBody());
+
+        if (RowPacker.CODEC_DEFLATE.equals(event.getHeaders().get(RowPacker.PACKED_CODEC_HEADER))) {
+            body = new InflaterInputStream(body);
+        }
+
+        DataInputStream in = new DataInputStream(body);
+        List<Object[]> rows = new ArrayList<Object[]>(count);
+
+        try {
+            RowMetaInterface packedRowMeta = new RowMeta(in);
+            resolve(packedRowMeta);
+
+            for (int i = 0; i < count; i++) {
+                Object[] packed = packedRowMeta.readData(in);
+                Object[] row = new Object[injectorRowMeta.size()];
+
+                for (int f = 0; f < injectorIndexes.length; f++) {
+                    int index = injectorIndexes[f];
+
+                    if (index >= 0 && packed[f] != null) {
+                        ValueMetaInterface packedValueMeta = packedRowMeta.getValueMeta(f);
+
+                        row[index] = sameTypes[f] ? packedValueMeta.convertToNormalStorageType(packed[f])
+                                : injectorRowMeta.getValueMeta(index).convertData(packedValueMeta, packed[f]);
+                    }
+                }
+
+                rows.add(row);
+            }
+        } catch (IOException e) {
+            throw new KettleException("Unable to read the packed rows.", e);
+        }
+
+        return rows;
+    }
+
+    private void resolve(RowMetaInterface packedRowMeta) {
+        int size = packedRowMeta.size();
+
+        if (packedNames != null && packedNames.length == size) {
+            boolean same = true;
+
+            for (int f = 0; f < size && same; f++) {
+                ValueMetaInterface valueMeta = packedRowMeta.getValueMeta(f);
+                same = valueMeta.getName().equals(packedNames[f]) && valueMeta.getType() == packedTypes[f];
+            }
+
+            if (same) {
+                return;
+            }
+        }
+
+        packedNames = new String[size];
+        packedTypes = new int[size];
+        injectorIndexes = new int[size];
+        sameTypes = new boolean[size];
+
+        for (int f = 0; f < size; f++) {
+            ValueMetaInterface valueMeta = packedRowMeta.getValueMeta(f);
+
+            packedNames[f] = valueMeta.getName();
+            packedTypes[f] = valueMeta.getType();
+            injectorIndexes[f] = injectorRowMeta.indexOfValue(packedNames[f]);
+            sameTypes[f] = injectorIndexes[f] >= 0
+                    && injectorRowMeta.getValueMeta(injectorIndexes[f]).getType() == packedTypes[f];
+        }
+    }
+}
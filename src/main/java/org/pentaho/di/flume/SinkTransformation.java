@@ -0,0 +1,287 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.pentaho.di.core.RowSet;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogLevel;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.RowProducer;
+import org.pentaho.di.trans.SingleThreadedTransExecutor;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepInterface;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A running instance of the sink transformation, fed with rows through a row producer on its injector step.
+ * <p/>
+ * In blocking mode the transformation is single threaded and every batch of injected rows is processed by one
+ * iteration of the executor, in nonblocking mode the steps run on their own threads.
+ * <p/>
+ * In nonblocking mode every copy of the injector step gets its own row producer, so the parallelism is set by the
+ * number of copies in the transformation design. The blocking mode only injects into the first copy.
+ */
+public class SinkTransformation {
+
+    // Time a nonblocking injection waits for room in the row set before checking if the sink is stopping
+    private static final long PUT_ROW_WAIT = 100L;
+
+    // The transformation definition, already set up for the execution type
+    private final TransMeta transMeta;
+
+    // Name of the step used to inject events
+    private final String injectorName;
+
+    // Blocking vs nonblocking execution
+    private final TransExecutionType executionType;
+
+    // The logging level for the PDI execution
+    private final LogLevel logLevel;
+
+    // Runtime LRT (Long Running Transformation) object
+    private Trans trans;
+
+    // Single Threaded Transformation executor
+    private SingleThreadedTransExecutor singleThreadedTransExecutor;
+
+    // Runtime row producer objects used to inject rows in the LRT, one per injector copy
+    private RowProducer[] rowProducers;
+
+    // Copy receiving the next row injected round robin
+    private int nextCopy;
+
+    // Runtime stream metadata signature
+    private RowMetaInterface injectorRowMeta;
+
+    // Rows injected since the last iteration, blocking mode only
+    private int pendingRows;
+
+    // Set when stopping, releases an injection waiting for room in the row set
+    private volatile boolean stopping;
+
+    /**
+     * @param transMeta     the transformation definition, already set up for the execution type
+     * @param injectorName  the name of the step used to inject events
+     * @param executionType blocking vs nonblocking execution
+     * @param logLevel      the logging level for the PDI execution
+     */
+    public SinkTransformation(TransMeta transMeta, String injectorName, TransExecutionType executionType,
+                              LogLevel logLevel) {
+        this.transMeta = transMeta;
+        this.injectorName = injectorName;
+        this.executionType = executionType;
+        this.logLevel = logLevel;
+    }
+
+    /**
+     * Prepares the transformation and starts waiting for rows to be injected.
+     *
+     * @throws KettleException if the transformation can't be started
+     */
+    public void start() throws KettleException {
+        trans = new Trans(transMeta);
+        trans.prepareExecution(null);
+        trans.setLogLevel(logLevel);
+
+        // Find the injector step and set it to consume rows from the row producer
+        StepInterface injector = trans.findRunThread(this.injectorName);
+
+        Preconditions.checkNotNull(injector, "Couldn't find Injector step with name: " + this.injectorName);
+
+        injectorRowMeta = transMeta.getStepFields(injector.getStepMeta());
+
+        int copies = executionType == TransExecutionType.BLOCKING ? 1 : Math.max(1, injector.getStepMeta().getCopies());
+        rowProducers = new RowProducer[copies];
+
+        for (int copy = 0; copy < copies; copy++) {
+            rowProducers[copy] = trans.addRowProducer(injector.getStepname(), copy);
+        }
+
+        // Initialize the transformation and wait for rows to be injected
+        trans.startThreads();
+
+        if (executionType == TransExecutionType.BLOCKING) {
+            singleThreadedTransExecutor = new SingleThreadedTransExecutor(trans);
+            singleThreadedTransExecutor.init();
+        }
+    }
+
+    /**
+     * Injects a row into the injector copies in turn.
+     *
+     * @param row the row to inject
+     * @throws KettleException if the intermediate iteration fails or the transformation is stopping
+     * @see #inject(Object[], int)
+     */
+    public void inject(Object[] row) throws KettleException {
+        inject(row, nextCopy);
+
+        nextCopy = (nextCopy + 1) % rowProducers.length;
+    }
+
+    /**
+     * Injects a row, in nonblocking mode this blocks while the row set of the injector copy is full, until the
+     * transformation is stopped. In blocking mode an iteration is run first when the injector row set is full, which
+     * only happens for batches of packed rows.
+     *
+     * @param row  the row to inject
+     * @param copy the injector copy receiving the row, below {@link #getInjectorCopies()}
+     * @throws KettleException if the intermediate iteration fails or the transformation is stopping
+     */
+    public void inject(Object[] row, int copy) throws KettleException {
+        RowProducer rowProducer = rowProducers[copy];
+
+        if (executionType == TransExecutionType.BLOCKING) {
+            if (pendingRows >= transMeta.getSizeRowset()) {
+                endBatch();
+            }
+
+            rowProducer.putRow(injectorRowMeta, row);
+            pendingRows++;
+        } else {
+            while (!rowProducer.putRowWait(injectorRowMeta, row, PUT_ROW_WAIT, TimeUnit.MILLISECONDS)) {
+                if (stopping) {
+                    throw new KettleException("The sink transformation is stopping, the row was not injected.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Signals that all the rows of a batch were injected, in blocking mode this processes them.
+     *
+     * @throws KettleException if the batch processing fails
+     */
+    public void endBatch() throws KettleException {
+        if (executionType == TransExecutionType.BLOCKING) {
+            singleThreadedTransExecutor.oneIteration();
+            pendingRows = 0;
+        }
+    }
+
+    /**
+     * Drops the rows injected since the last iteration, in blocking mode, so that they don't reach the outputs with
+     * the next batch. Rows already processed by an intermediate iteration can't be taken back.
+     *
+     * @return the number of dropped rows
+     */
+    public int discardBatch() {
+        int discarded = 0;
+
+        if (executionType == TransExecutionType.BLOCKING) {
+            for (RowProducer rowProducer : rowProducers) {
+                while (rowProducer.getRowSet().getRowImmediate() != null) {
+                    discarded++;
+                }
+            }
+
+            pendingRows = 0;
+        }
+
+        return discarded;
+    }
+
+    /**
+     * Signals the end of the input and waits for the transformation to process the remaining rows.
+     *
+     * @throws KettleException if the transformation fails while finishing
+     */
+    public void stop() throws KettleException {
+        stopping = true;
+
+        for (RowProducer rowProducer : rowProducers) {
+            rowProducer.finished();
+        }
+
+        if (executionType == TransExecutionType.BLOCKING) {
+            singleThreadedTransExecutor.oneIteration();
+            singleThreadedTransExecutor.dispose();
+        } else {
+            trans.waitUntilFinished();
+        }
+    }
+
+    /**
+     * Stops the transformation without processing the rows still in it.
+     *
+     * @throws KettleException if the transformation fails while stopping
+     */
+    public void abort() throws KettleException {
+        stopping = true;
+
+        if (executionType == TransExecutionType.BLOCKING) {
+            singleThreadedTransExecutor.dispose();
+        } else {
+            trans.stopAll();
+            trans.waitUntilFinished();
+        }
+    }
+
+    /**
+     * @return the runtime transformation
+     */
+    public Trans getTrans() {
+        return trans;
+    }
+
+    /**
+     * @return the row sets the rows are injected into, one per injector copy
+     */
+    public List<RowSet> getInjectorRowSets() {
+        List<RowSet> rowSets = new ArrayList<RowSet>(rowProducers.length);
+
+        for (RowProducer rowProducer : rowProducers) {
+            rowSets.add(rowProducer.getRowSet());
+        }
+
+        return rowSets;
+    }
+
+    /**
+     * @return the number of injector copies receiving rows
+     */
+    public int getInjectorCopies() {
+        return rowProducers.length;
+    }
+
+    /**
+     * @return the capacity of each row set of the transformation
+     */
+    public int getRowSetSize() {
+        return transMeta.getSizeRowset();
+    }
+
+    /**
+     * @return the row metadata of the injector step
+     */
+    public RowMetaInterface getInjectorRowMeta() {
+        return injectorRowMeta;
+    }
+}
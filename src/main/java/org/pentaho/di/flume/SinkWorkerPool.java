@@ -0,0 +1,238 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogLevel;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Independent instances of the sink transformation, each one fed by its own thread.
+ * <p/>
+ * A batch is split into one share per worker, the shares are processed in parallel and the batch only completes
+ * when every worker has processed its share. Each row of a share goes to the injector copy chosen for its event.
+ */
+public class SinkWorkerPool {
+
+    // The transformation instances
+    private final SinkTransformation[] workers;
+
+    // One thread per transformation instance
+    private final ExecutorService[] workerThreads;
+
+    /**
+     * @param transMeta     the transformation definition, already set up for the execution type
+     * @param injectorName  the name of the step used to inject events
+     * @param executionType blocking vs nonblocking execution
+     * @param logLevel      the logging level for the PDI execution
+     * @param size          the number of workers
+     * @param name          the name used for the worker threads
+     */
+    public SinkWorkerPool(TransMeta transMeta, String injectorName, TransExecutionType executionType,
+                          LogLevel logLevel, int size, String name) {
+        workers = new SinkTransformation[size];
+        workerThreads = new ExecutorService[size];
+
+        for (int i = 0; i < size; i++) {
+            workers[i] = new SinkTransformation((TransMeta) transMeta.clone(), injectorName, executionType, logLevel);
+            workerThreads[i] = Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder().setNameFormat(name + "-worker-" + i).setDaemon(true).build());
+        }
+    }
+
+    /**
+     * Starts every transformation instance.
+     *
+     * @throws KettleException if a transformation can't be started
+     */
+    public void start() throws KettleException {
+        for (SinkTransformation worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * @return the number of workers
+     */
+    public int size() {
+        return workers.length;
+    }
+
+    /**
+     * @param worker the worker index
+     * @return the runtime transformation of the worker
+     */
+    public Trans getTrans(int worker) {
+        return workers[worker].getTrans();
+    }
+
+    /**
+     * @return the row metadata of the injector step, the same for every worker
+     */
+    public RowMetaInterface getInjectorRowMeta() {
+        return workers[0].getInjectorRowMeta();
+    }
+
+    /**
+     * @return the number of copies of the injector step, the same for every worker
+     */
+    public int getInjectorCopies() {
+        return workers[0].getInjectorCopies();
+    }
+
+    /**
+     * @return new empty shares, one per worker
+     */
+    public List<Share> newShares() {
+        List<Share> shares = new ArrayList<Share>(workers.length);
+
+        for (int i = 0; i < workers.length; i++) {
+            shares.add(new Share());
+        }
+
+        return shares;
+    }
+
+    /**
+     * Injects and processes every share in its worker, waiting for all of them to complete.
+     *
+     * @param shares the rows of each worker
+     * @throws KettleException if any worker fails
+     */
+    public void processBatch(List<Share> shares) throws KettleException {
+        List<Future<Void>> results = new ArrayList<Future<Void>>(workers.length);
+
+        for (int i = 0; i < workers.length; i++) {
+            final SinkTransformation worker = workers[i];
+            final Share share = shares.get(i);
+
+            if (!share.isEmpty()) {
+                results.add(workerThreads[i].submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws KettleException {
+                        for (int row = 0; row < share.rows.size(); row++) {
+                            worker.inject(share.rows.get(row), share.copies.get(row));
+                        }
+
+                        worker.endBatch();
+                        return null;
+                    }
+                }));
+            }
+        }
+
+        // Wait for every worker, even after a failure, so no share is still running when the batch is rolled back
+        Throwable failure = null;
+
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                failure = failure != null ? failure : e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = failure != null ? failure : e;
+            }
+        }
+
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new KettleException("Worker failed to process its share of the batch.", failure);
+        }
+    }
+
+    /**
+     * Stops every transformation instance and its thread.
+     *
+     * @throws KettleException if a transformation fails while finishing
+     */
+    public void stop() throws KettleException {
+        KettleException failure = null;
+
+        for (int i = 0; i < workers.length; i++) {
+            final SinkTransformation worker = workers[i];
+
+            try {
+                workerThreads[i].submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws KettleException {
+                        worker.stop();
+                        return null;
+                    }
+                }).get();
+            } catch (ExecutionException e) {
+                failure = failure != null ? failure : new KettleException("Worker failed to stop.", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                workerThreads[i].shutdown();
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * The rows of a batch going to one worker, with the injector copy of each row.
+     */
+    public static class Share {
+
+        // The rows, in injection order
+        private final List<Object[]> rows = new ArrayList<Object[]>();
+
+        // The injector copy of each row
+        private final List<Integer> copies = new ArrayList<Integer>();
+
+        /**
+         * @param row  the row to inject
+         * @param copy the injector copy receiving the row
+         */
+        public void add(Object[] row, int copy) {
+            rows.add(row);
+            copies.add(copy);
+        }
+
+        /**
+         * @return true if the share holds no row
+         */
+        public boolean isEmpty() {
+            return rows.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,479 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Append log of events on local disk, made of fixed size memory-mapped segment files. Events are appended at the
+ * tail and read back in order from the head, a segment file is deleted once all its events were removed.
+ * <p/>
+ * Every segment starts with its size and its read and write positions, updated after each append and removal, so the
+ * events still in the log are found again when the store is reopened. The mapped pages are written back by the
+ * operating system: the events survive a process crash, not a host crash. A segment whose size, positions or records
+ * don't add up is rejected when the store is opened, instead of replaying garbage.
+ * <p/>
+ * An event is stored as its length followed by the header count, each header key and value and the body, all
+ * strings in UTF-8.
+ */
+public class SpillStore {
+
+    // The logger
+    private static final Logger logger = Logger.getLogger(SpillStore.class);
+
+    // Name of the segment files, followed by their sequence number
+    private static final String SEGMENT_PREFIX = "spill-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // Segment size, read and write positions at the start of each segment
+    private static final int SEGMENT_HEADER_SIZE = 12;
+
+    // Smallest record: its length, header count and body length
+    private static final int MIN_RECORD_SIZE = 12;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Directory of the segment files
+    private final File directory;
+
+    // Size of each segment file in bytes
+    private final int segmentSize;
+
+    // Maximum number of segment files on disk
+    private final int maxSegments;
+
+    // Segments holding events, oldest first
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+
+    // Sequence number of the next segment file
+    private long nextSequence;
+
+    // Number of events in the log
+    private long size;
+
+    /**
+     * @param directory   the directory of the segment files, created if missing
+     * @param segmentSize the size of each segment file in bytes, also the largest event that can be stored
+     * @param maxBytes    the maximum disk space used by the segment files
+     */
+    public SpillStore(File directory, int segmentSize, long maxBytes) {
+        Preconditions.checkArgument(segmentSize > SEGMENT_HEADER_SIZE, "The segment size is too small.");
+        Preconditions.checkArgument(maxBytes >= segmentSize, "The spill store must hold at least one segment.");
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.min(Integer.MAX_VALUE, maxBytes / segmentSize);
+    }
+
+    /**
+     * Opens the segment files left by a previous run, their remaining events are read first.
+     *
+     * @throws IOException if the directory or a segment file can't be opened, or a segment file is invalid
+     */
+    public synchronized void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the spill directory: " + directory);
+        }
+
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+
+        long[] sequences = new long[files.length];
+
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            sequences[i] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+        }
+
+        Arrays.sort(sequences);
+
+        try {
+            for (long sequence : sequences) {
+                Segment segment = new Segment(sequence);
+                segments.addLast(segment);
+                size += segment.countEvents();
+                nextSequence = sequence + 1;
+            }
+        } catch (IOException e) {
+            segments.clear();
+            size = 0;
+            throw e;
+        }
+
+        if (size > 0) {
+            logger.info("Found " + size + " spilled events in " + directory + ".");
+        }
+    }
+
+    /**
+     * Appends events at the tail of the log, either all of them or none.
+     *
+     * @param events the events to append
+     * @return false if the events don't fit under the disk limit
+     * @throws IOException if an event is larger than a segment or a segment file can't be created
+     */
+    public synchronized boolean append(List<Event> events) throws IOException {
+        List<byte[]> records = new ArrayList<byte[]>(events.size());
+
+        // Every event is checked before anything is written, an oversized event can never be spilled
+        for (Event event : events) {
+            byte[] record = serialize(event);
+
+            if (record.length > segmentSize - SEGMENT_HEADER_SIZE) {
+                throw new IOException("An event of " + record.length + " bytes doesn't fit in a spill segment of "
+                        + segmentSize + " bytes, increase the sourceSpillSegmentSize.");
+            }
+
+            records.add(record);
+        }
+
+        if (!fits(records)) {
+            return false;
+        }
+
+        for (byte[] record : records) {
+            Segment tail = segments.peekLast();
+
+            if (tail == null || !tail.hasRoom(record.length)) {
+                tail = new Segment(nextSequence++);
+                segments.addLast(tail);
+            }
+
+            tail.write(record);
+        }
+
+        size += records.size();
+
+        return true;
+    }
+
+    /**
+     * Reads the events at the head of the log without removing them.
+     *
+     * @param max the maximum number of events
+     * @return the oldest events, empty if the log is empty
+     */
+    public synchronized List<Event> peek(int max) {
+        List<Event> events = new ArrayList<Event>();
+
+        for (Iterator<Segment> it = segments.iterator(); it.hasNext() && events.size() < max; ) {
+            it.next().read(events, max);
+        }
+
+        return events;
+    }
+
+    /**
+     * Removes events from the head of the log, deleting the segment files left empty.
+     *
+     * @param count the number of events to remove, as returned by {@link #peek(int)}
+     */
+    public synchronized void remove(int count) {
+        int remaining = count;
+
+        while (remaining > 0 && !segments.isEmpty()) {
+            Segment head = segments.peekFirst();
+            remaining -= head.skip(remaining);
+
+            if (head == segments.peekLast() || !head.isDrained()) {
+                break;
+            }
+
+            segments.removeFirst();
+            head.delete();
+        }
+
+        size -= count - remaining;
+    }
+
+    /**
+     * @return the number of events in the log
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return true if the log holds no event
+     */
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the disk space used by the segment files, in bytes
+     */
+    public synchronized long getDiskUsage() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    /**
+     * Writes the mapped segments back to disk and closes them, the events stay in the files.
+     */
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+
+        segments.clear();
+        size = 0;
+    }
+
+    private boolean fits(List<byte[]> records) {
+        Segment tail = segments.peekLast();
+        int room = tail != null ? tail.room() : 0;
+        int newSegments = 0;
+
+        for (byte[] record : records) {
+            if (record.length > room) {
+                newSegments++;
+                room = segmentSize - SEGMENT_HEADER_SIZE;
+            }
+
+            room -= record.length;
+        }
+
+        return segments.size() + newSegments <= maxSegments;
+    }
+
+    private static byte[] serialize(Event event) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        // Room for the record length
+        out.writeInt(0);
+        out.writeInt(event.getHeaders().size());
+
+        for (Map.Entry<String, String> header : event.getHeaders().entrySet()) {
+            writeBytes(out, header.getKey().getBytes(UTF_8));
+            writeBytes(out, header.getValue().getBytes(UTF_8));
+        }
+
+        writeBytes(out, event.getBody());
+        out.flush();
+
+        byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(record.length);
+
+        return record;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static Event deserialize(ByteBuffer record) {
+        int headerCount = record.getInt();
+        Map<String, String> headers = new HashMap<String, String>(headerCount * 2);
+
+        for (int i = 0; i < headerCount; i++) {
+            headers.put(new String(readBytes(record), UTF_8), new String(readBytes(record), UTF_8));
+        }
+
+        return EventBuilder.withBody(readBytes(record), headers);
+    }
+
+    private static byte[] readBytes(ByteBuffer record) {
+        byte[] value = new byte[record.getInt()];
+        record.get(value);
+
+        return value;
+    }
+
+    /**
+     * A memory-mapped segment file.
+     */
+    private class Segment {
+
+        // The segment file
+        private final File file;
+
+        // The whole file, mapped
+        private final MappedByteBuffer buffer;
+
+        // Position of the next event to read
+        private int readPosition;
+
+        // Position of the next event to write
+        private int writePosition;
+
+        private Segment(long sequence) throws IOException {
+            file = new File(directory, SEGMENT_PREFIX + sequence + SEGMENT_SUFFIX);
+
+            // A file left empty by a crash right after its creation is initialized again
+            boolean created = !file.exists() || file.length() == 0;
+
+            if (!created && file.length() != segmentSize) {
+                throw new IOException("The spill segment " + file + " has " + file.length() + " bytes instead of "
+                        + segmentSize + ", was sourceSpillSegmentSize changed?");
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+            try {
+                FileChannel channel = raf.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            } finally {
+                // The mapping stays valid once the file is closed
+                raf.close();
+            }
+
+            // Same for a header that was never written
+            if (created || buffer.getInt(0) == 0 && buffer.getInt(4) == 0 && buffer.getInt(8) == 0) {
+                readPosition = SEGMENT_HEADER_SIZE;
+                writePosition = SEGMENT_HEADER_SIZE;
+                updateHeader();
+            } else {
+                int storedSize = buffer.getInt(0);
+                readPosition = buffer.getInt(4);
+                writePosition = buffer.getInt(8);
+
+                if (storedSize != segmentSize || readPosition < SEGMENT_HEADER_SIZE || readPosition > writePosition
+                        || writePosition > segmentSize) {
+                    throw new IOException("Invalid spill segment header in " + file + ": size " + storedSize
+                            + ", read position " + readPosition + ", write position " + writePosition + ".");
+                }
+            }
+        }
+
+        private int room() {
+            return segmentSize - writePosition;
+        }
+
+        private boolean hasRoom(int length) {
+            return length <= room();
+        }
+
+        private void write(byte[] record) {
+            ByteBuffer target = buffer.duplicate();
+            target.position(writePosition);
+            target.put(record);
+
+            // The record only becomes visible once it is complete
+            writePosition += record.length;
+            updateHeader();
+        }
+
+        private void read(List<Event> events, int max) {
+            int position = readPosition;
+
+            while (position < writePosition && events.size() < max) {
+                int length = buffer.getInt(position);
+
+                ByteBuffer record = buffer.duplicate();
+                record.position(position + 4);
+                record.limit(position + length);
+                events.add(deserialize(record));
+
+                position += length;
+            }
+        }
+
+        private int skip(int count) {
+            int skipped = 0;
+
+            while (readPosition < writePosition && skipped < count) {
+                readPosition += buffer.getInt(readPosition);
+                skipped++;
+            }
+
+            // A drained tail segment is reused from its start
+            if (readPosition == writePosition && this == segments.peekLast()) {
+                readPosition = SEGMENT_HEADER_SIZE;
+                writePosition = SEGMENT_HEADER_SIZE;
+            }
+
+            updateHeader();
+
+            return skipped;
+        }
+
+        private boolean isDrained() {
+            return readPosition == writePosition;
+        }
+
+        private int countEvents() throws IOException {
+            int count = 0;
+            int position = readPosition;
+
+            while (position < writePosition) {
+                int length = writePosition - position >= 4 ? buffer.getInt(position) : 0;
+
+                if (length < MIN_RECORD_SIZE || length > writePosition - position) {
+                    throw new IOException("Invalid spill record in " + file + " at position " + position + ".");
+                }
+
+                position += length;
+                count++;
+            }
+
+            return count;
+        }
+
+        private void updateHeader() {
+            buffer.putInt(0, segmentSize);
+            buffer.putInt(4, readPosition);
+            buffer.putInt(8, writePosition);
+        }
+
+        private void close() {
+            buffer.force();
+        }
+
+        private void delete() {
+            if (!file.delete()) {
+                logger.warn("Unable to delete the spill segment: " + file);
+            }
+        }
+    }
+}
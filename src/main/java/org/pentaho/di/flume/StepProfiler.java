@@ -0,0 +1,365 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.pentaho.di.core.RowSet;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.di.trans.step.StepMetaDataCombi;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+
+/**
+ * Periodically samples the steps of the running transformations of a component to find where rows pile up.
+ * <p/>
+ * Each sample reads the line counters and the input and output row set sizes of every step copy, which only costs a
+ * few volatile reads per step, and derives the row rates since the previous sample and a state:
+ * <ul>
+ * <li>blocked: the output row sets are nearly full, the step waits for a slower step downstream</li>
+ * <li>busy: the input row sets are nearly full while the output ones are not, the step can't keep up</li>
+ * <li>starved: the input row sets are empty, the step waits for rows</li>
+ * <li>running: none of the above</li>
+ * </ul>
+ * The busy step with the fullest input is reported as the bottleneck. The samples are published over JMX and can also
+ * be logged as JSON.
+ */
+public class StepProfiler implements StepProfilerMXBean {
+
+    // The logger
+    private static final Logger logger = Logger.getLogger(StepProfiler.class);
+
+    // Constants for the operation
+    public static final String STATE_BLOCKED = "blocked";
+
+    public static final String STATE_BUSY = "busy";
+
+    public static final String STATE_STARVED = "starved";
+
+    public static final String STATE_RUNNING = "running";
+
+    // Fill ratio of the row sets above which they are considered full
+    private static final double FULL = 0.9;
+
+    // Name of the profiled component
+    private final String name;
+
+    // Time between two samples in milliseconds
+    private final long interval;
+
+    // Whether the samples are logged as JSON
+    private final boolean logJson;
+
+    // The profiled transformations, one per instance
+    private List<Trans> transformations = Collections.emptyList();
+
+    // Line counters of the previous sample, by step copy
+    private Map<String, long[]> previousLines = new HashMap<String, long[]>();
+
+    // Time of the previous sample
+    private long previousTime;
+
+    // Statistics of the last sample
+    private volatile List<StepSample> steps = Collections.emptyList();
+
+    // Bottleneck found by the last sample
+    private volatile String bottleneckStep;
+
+    // Timer taking the samples
+    private ScheduledExecutorService sampleTimer;
+
+    // Name registered in the platform MBean server, null if not registered
+    private ObjectName objectName;
+
+    /**
+     * @param name     the name of the profiled component
+     * @param interval the time between two samples in milliseconds
+     * @param logJson  true to log every sample as JSON
+     */
+    public StepProfiler(String name, long interval, boolean logJson) {
+        this.name = name;
+        this.interval = interval;
+        this.logJson = logJson;
+    }
+
+    /**
+     * Registers the MXBean and starts sampling.
+     */
+    public void start() {
+        try {
+            objectName = new ObjectName("org.pentaho.di.flume:type=StepProfiler,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            objectName = null;
+            logger.warn("Unable to register the step profiler MBean of " + name, e);
+        }
+
+        sampleTimer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat(name + "-profiler-%d").setDaemon(true).build());
+        sampleTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sample();
+                } catch (Throwable t) {
+                    logger.error("Unable to sample the transformation steps.", t);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops sampling and unregisters the MXBean.
+     */
+    public void stop() {
+        if (sampleTimer != null) {
+            sampleTimer.shutdownNow();
+            sampleTimer = null;
+        }
+
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.warn("Unable to unregister the step profiler MBean of " + name, e);
+            }
+
+            objectName = null;
+        }
+    }
+
+    /**
+     * Replaces the profiled transformations, after a start or a reload.
+     *
+     * @param transformations the running transformations, one per instance
+     */
+    public synchronized void setTransformations(List<Trans> transformations) {
+        this.transformations = new ArrayList<Trans>(transformations);
+        this.previousLines = new HashMap<String, long[]>();
+    }
+
+    @Override
+    public List<StepSample> getSteps() {
+        return steps;
+    }
+
+    @Override
+    public String getBottleneckStep() {
+        return bottleneckStep;
+    }
+
+    /**
+     * Samples every step of the profiled transformations.
+     */
+    synchronized void sample() {
+        long now = System.currentTimeMillis();
+        double seconds = previousTime > 0 ? (now - previousTime) / 1000.0 : 0;
+
+        List<StepSample> samples = new ArrayList<StepSample>();
+        Map<String, long[]> lines = new HashMap<String, long[]>();
+        StepSample bottleneck = null;
+
+        for (int instance = 0; instance < transformations.size(); instance++) {
+            Trans trans = transformations.get(instance);
+            List<StepMetaDataCombi> combis = trans.getSteps();
+
+            if (combis == null) {
+                continue;
+            }
+
+            int capacity = trans.getTransMeta().getSizeRowset();
+
+            for (StepMetaDataCombi combi : combis) {
+                StepSample sample = sample(instance, combi.step, capacity);
+                String key = instance + "/" + sample.step + "." + sample.copy;
+
+                long[] current = { sample.linesRead, sample.linesWritten };
+                long[] previous = previousLines.get(key);
+
+                if (previous != null && seconds > 0) {
+                    sample.readRate = Math.max(0, current[0] - previous[0]) / seconds;
+                    sample.writeRate = Math.max(0, current[1] - previous[1]) / seconds;
+                }
+
+                lines.put(key, current);
+                samples.add(sample);
+
+                if (STATE_BUSY.equals(sample.state)
+                        && (bottleneck == null || sample.inputFill > bottleneck.inputFill)) {
+                    bottleneck = sample;
+                }
+            }
+        }
+
+        previousLines = lines;
+        previousTime = now;
+
+        steps = Collections.unmodifiableList(samples);
+        bottleneckStep = bottleneck != null ? bottleneck.step : null;
+
+        if (logJson) {
+            logger.info(name + " steps " + new Gson().toJson(samples));
+        }
+    }
+
+    private static StepSample sample(int instance, StepInterface step, int capacity) {
+        StepSample sample = new StepSample();
+
+        sample.instance = instance;
+        sample.step = step.getStepname();
+        sample.copy = step.getCopy();
+        sample.linesRead = step.getLinesRead() + step.getLinesInput();
+        sample.linesWritten = step.getLinesWritten() + step.getLinesOutput();
+        sample.runtimeMs = step.getRuntime();
+        sample.inputRows = step.rowsetInputSize();
+        sample.outputRows = step.rowsetOutputSize();
+        sample.inputFill = fill(sample.inputRows, step.getInputRowSets(), capacity);
+        sample.outputFill = fill(sample.outputRows, step.getOutputRowSets(), capacity);
+
+        boolean hasInput = step.getInputRowSets() != null && !step.getInputRowSets().isEmpty();
+
+        if (sample.outputFill >= FULL) {
+            sample.state = STATE_BLOCKED;
+        } else if (sample.inputFill >= FULL) {
+            sample.state = STATE_BUSY;
+        } else if (hasInput && sample.inputRows == 0 && step.isRunning()) {
+            sample.state = STATE_STARVED;
+        } else {
+            sample.state = STATE_RUNNING;
+        }
+
+        return sample;
+    }
+
+    private static double fill(int rows, List<RowSet> rowSets, int capacity) {
+        int size = rowSets != null ? rowSets.size() : 0;
+        return size > 0 && capacity > 0 ? (double) rows / ((long) size * capacity) : 0;
+    }
+
+    /**
+     * The statistics of a step copy.
+     */
+    public static class StepSample {
+
+        // Index of the transformation instance
+        private int instance;
+
+        // Step name and copy
+        private String step;
+
+        private int copy;
+
+        // Rows read and written by the step
+        private long linesRead;
+
+        private long linesWritten;
+
+        // Rows read and written per second since the previous sample
+        private double readRate;
+
+        private double writeRate;
+
+        // Time the step has been running
+        private long runtimeMs;
+
+        // Rows waiting in the input and output row sets
+        private int inputRows;
+
+        private int outputRows;
+
+        // Fill ratio of the input and output row sets
+        private double inputFill;
+
+        private double outputFill;
+
+        // One of blocked, busy, starved or running
+        private String state;
+
+        public int getInstance() {
+            return instance;
+        }
+
+        public String getStep() {
+            return step;
+        }
+
+        public int getCopy() {
+            return copy;
+        }
+
+        public long getLinesRead() {
+            return linesRead;
+        }
+
+        public long getLinesWritten() {
+            return linesWritten;
+        }
+
+        public double getReadRate() {
+            return readRate;
+        }
+
+        public double getWriteRate() {
+            return writeRate;
+        }
+
+        public long getRuntimeMs() {
+            return runtimeMs;
+        }
+
+        public int getInputRows() {
+            return inputRows;
+        }
+
+        public int getOutputRows() {
+            return outputRows;
+        }
+
+        public double getInputFill() {
+            return inputFill;
+        }
+
+        public double getOutputFill() {
+            return outputFill;
+        }
+
+        public String getState() {
+            return state;
+        }
+    }
+}
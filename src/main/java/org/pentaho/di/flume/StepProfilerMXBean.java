@@ -0,0 +1,42 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.util.List;
+
+/**
+ * JMX view of the step profiler of a Kettle component.
+ */
+public interface StepProfilerMXBean {
+
+    /**
+     * @return the statistics of every step copy at the last sample
+     */
+    List<StepProfiler.StepSample> getSteps();
+
+    /**
+     * @return the step limiting the throughput at the last sample, null if none
+     */
+    String getBottleneckStep();
+}
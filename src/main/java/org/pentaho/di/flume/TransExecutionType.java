@@ -23,14 +23,16 @@
 package org.pentaho.di.flume;
 
 /**
- * Enum that defines if an execution will happen in block or nonblocking mode.
+ * Enum that defines if an execution will happen in block or nonblocking mode. The microbatch mode, sink only, runs a
+ * complete pass of the transformation per batch.
  * <p/>
  * Created Date: 02/12/2013
  * Created By: André Simões (andre.simoes@xpand-it.com)
  */
 public enum TransExecutionType {
     BLOCKING,
-    NONBLOCKING;
+    NONBLOCKING,
+    MICROBATCH;
 
     /**
      * Convert from string to the enum class value, null = BLOCKING
@@ -43,6 +45,8 @@ public enum TransExecutionType {
 
         if (executionType.equalsIgnoreCase("nonblocking")) {
             set = TransExecutionType.NONBLOCKING;
+        } else if (executionType.equalsIgnoreCase("microbatch")) {
+            set = TransExecutionType.MICROBATCH;
         }
 
         return set;
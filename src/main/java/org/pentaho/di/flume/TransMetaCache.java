@@ -0,0 +1,154 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+import org.apache.log4j.Logger;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleFileException;
+import org.pentaho.di.core.vfs.KettleVFS;
+import org.pentaho.di.repository.Repository;
+import org.pentaho.di.trans.TransMeta;
+
+/**
+ * Process wide cache of the parsed transformations, shared by all the sinks and sources of the agent.
+ * <p/>
+ * Entries are keyed by the resolved file URI and validated against the file modification time, so an edited
+ * transformation is parsed again. Every caller gets its own clone and is free to change it.
+ */
+public enum TransMetaCache {
+    INSTANCE;
+
+    // The logger
+    private static final Logger logger = Logger.getLogger(TransMetaCache.class);
+
+    // Lazy env init, the plugins must be registered before anything gets parsed
+    private final PentahoKettleEnvironment env = PentahoKettleEnvironment.INSTANCE;
+
+    // Parsed transformations by resolved file URI
+    private final Map<String, CachedTransMeta> entries = new HashMap<String, CachedTransMeta>();
+
+    // Lookups served from the cache
+    private final AtomicLong hits = new AtomicLong();
+
+    // Lookups that had to parse the transformation
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Returns a private copy of the transformation, parsing it only if it is not cached or was modified since.
+     *
+     * @param path the transformation file name or VFS URL
+     * @return a clone of the cached transformation
+     * @throws KettleException if the transformation can't be read or parsed
+     */
+    public synchronized TransMeta getTransMeta(String path) throws KettleException {
+        env.awaitInitialized();
+
+        FileObject file = KettleVFS.getFileObject(path);
+        String key = file.getName().getURI();
+        long lastModified = getLastModified(file, path);
+
+        CachedTransMeta cached = entries.get(key);
+
+        if (cached != null && cached.lastModified == lastModified) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+
+            cached = new CachedTransMeta(new TransMeta(path, (Repository) null), lastModified);
+            entries.put(key, cached);
+
+            logger.debug("Parsed transformation " + key + " (cache hits: " + hits.get() + ", misses: "
+                    + misses.get() + ")");
+        }
+
+        return (TransMeta) cached.transMeta.clone();
+    }
+
+    /**
+     * Reads the modification time of a transformation file without parsing it.
+     *
+     * @param path the transformation file name or VFS URL
+     * @return the modification time of the file
+     * @throws KettleException if the file can't be read
+     */
+    public long getLastModified(String path) throws KettleException {
+        return getLastModified(KettleVFS.getFileObject(path), path);
+    }
+
+    /**
+     * @return the number of lookups served from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that had to parse the transformation
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of cached transformations
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Drops all the cached transformations.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private static long getLastModified(FileObject file, String path) throws KettleFileException {
+        try {
+            return file.getContent().getLastModifiedTime();
+        } catch (FileSystemException e) {
+            throw new KettleFileException("Unable to read the modification time of " + path, e);
+        }
+    }
+
+    private static class CachedTransMeta {
+
+        // The parsed transformation, never handed out directly
+        private final TransMeta transMeta;
+
+        // Modification time of the file when it was parsed
+        private final long lastModified;
+
+        private CachedTransMeta(TransMeta transMeta, long lastModified) {
+            this.transMeta = transMeta;
+            this.lastModified = lastModified;
+        }
+    }
+}
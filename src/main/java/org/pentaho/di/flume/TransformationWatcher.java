@@ -0,0 +1,134 @@
+/*! ******************************************************************************
+ *
+ * Kettle Flume Driver
+ *
+ * Copyright (C) 2003-2013 by Xpand IT : http://www.xpand-it.com
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.flume;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.pentaho.di.core.exception.KettleException;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Periodically checks the modification time of a transformation file and notifies its listener, from the watcher
+ * thread, when the file changed.
+ * <p/>
+ * A change is only notified once, if the reload fails the file has to be changed again to retry.
+ */
+public class TransformationWatcher {
+
+    // The logger
+    private static final Logger logger = Logger.getLogger(TransformationWatcher.class);
+
+    /**
+     * Receives the transformation changes.
+     */
+    public interface Listener {
+
+        /**
+         * Called from the watcher thread when the transformation file was modified.
+         *
+         * @param path the transformation file name or VFS URL
+         * @throws KettleException if the new transformation can't be loaded
+         */
+        void transformationChanged(String path) throws KettleException;
+    }
+
+    // The watched transformation file name or VFS URL
+    private final String path;
+
+    // Time between two checks in milliseconds
+    private final long checkInterval;
+
+    // Notified when the file changed
+    private final Listener listener;
+
+    // Modification time of the file when it was last loaded
+    private long lastModified;
+
+    // Timer running the checks
+    private ScheduledExecutorService checkTimer;
+
+    public TransformationWatcher(String path, long checkInterval, Listener listener) {
+        this.path = path;
+        this.checkInterval = checkInterval;
+        this.listener = listener;
+    }
+
+    /**
+     * Records the current modification time and starts checking the file.
+     *
+     * @param name the name used for the watcher thread
+     * @throws KettleException if the file can't be read
+     */
+    public void start(String name) throws KettleException {
+        lastModified = TransMetaCache.INSTANCE.getLastModified(path);
+
+        checkTimer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat(name + "-reload-%d").setDaemon(true).build());
+
+        checkTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops checking the file, waiting for a reload in progress to complete.
+     */
+    public void stop() {
+        if (checkTimer != null) {
+            checkTimer.shutdown();
+
+            try {
+                if (!checkTimer.awaitTermination(checkInterval + 30000L, TimeUnit.MILLISECONDS)) {
+                    logger.warn("Timed out waiting for the transformation reload of " + path);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            checkTimer = null;
+        }
+    }
+
+    private void check() {
+        try {
+            long modified = TransMetaCache.INSTANCE.getLastModified(path);
+
+            if (modified != lastModified) {
+                lastModified = modified;
+
+                logger.info("Transformation changed, reloading: " + path);
+                listener.transformationChanged(path);
+            }
+        } catch (Throwable t) {
+            logger.error("Unable to reload the transformation " + path + ", keeping the running one.", t);
+        }
+    }
+}
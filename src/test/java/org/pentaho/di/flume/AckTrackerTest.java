@@ -0,0 +1,52 @@
+package org.pentaho.di.flume;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AckTrackerTest {
+
+    @Test
+    public void testCountedAcknowledgements() throws InterruptedException {
+        AckTracker tracker = new AckTracker();
+
+        for (int i = 0; i < 3; i++) {
+            tracker.nextSequence();
+        }
+
+        tracker.acknowledge();
+        tracker.acknowledge();
+        Assert.assertFalse("Batch is not complete", tracker.awaitAcknowledged(tracker.getInjected(), 10));
+
+        tracker.acknowledge();
+        Assert.assertTrue("Batch is complete", tracker.awaitAcknowledged(tracker.getInjected(), 10));
+    }
+
+    @Test
+    public void testSequenceAcknowledgements() throws InterruptedException {
+        final AckTracker tracker = new AckTracker();
+
+        for (int i = 0; i < 10; i++) {
+            tracker.nextSequence();
+        }
+
+        Thread acknowledger = new Thread() {
+            @Override
+            public void run() {
+                tracker.acknowledge(9L);
+            }
+        };
+        acknowledger.start();
+
+        Assert.assertTrue("Last sequence acknowledges all rows", tracker.awaitAcknowledged(10, 5000));
+        Assert.assertEquals("All rows are acknowledged", 10, tracker.getAcknowledged());
+    }
+
+    @Test
+    public void testFailure() throws InterruptedException {
+        AckTracker tracker = new AckTracker();
+        tracker.nextSequence();
+        tracker.fail();
+
+        Assert.assertFalse("Failed tracker doesn't acknowledge", tracker.awaitAcknowledged(1, 5000));
+    }
+}
@@ -0,0 +1,129 @@
+package org.pentaho.di.flume;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.flume.Context;
+import org.junit.Assert;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBoolean;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+public class BodyDecoderTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String SCHEMA = "{\"type\":\"record\",\"name\":\"Event\",\"fields\":["
+            + "{\"name\":\"host\",\"type\":\"string\"},{\"name\":\"size\",\"type\":\"int\"},"
+            + "{\"name\":\"load\",\"type\":\"double\"}]}";
+
+    private RowMetaInterface newRowMeta() {
+        RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString(EventRowDecoder.INJECTOR_BODY_FIELD_NAME));
+        rowMeta.addValueMeta(new ValueMetaString("host"));
+        rowMeta.addValueMeta(new ValueMetaInteger("size"));
+        rowMeta.addValueMeta(new ValueMetaNumber("load"));
+        return rowMeta;
+    }
+
+    @Test
+    public void testDelimitedBody() throws KettleException {
+        Context context = new Context();
+        context.put(AbstractBodyDecoder.FIELDS, "host,,size,load");
+        context.put(DelimitedBodyDecoder.DELIMITER, ";");
+
+        BodyDecoder decoder = BodyDecoderFactory.create(BodyDecoderFactory.DELIMITED, context, newRowMeta(), UTF8);
+
+        Object[] row = new Object[4];
+        decoder.decode("localhost;skipped;42".getBytes(UTF8), row);
+
+        Assert.assertEquals("String column is decoded", "localhost", row[1]);
+        Assert.assertEquals("Integer column is converted", Long.valueOf(42), row[2]);
+        Assert.assertNull("Missing column is left null", row[3]);
+    }
+
+    @Test
+    public void testJsonBody() throws KettleException {
+        Context context = new Context();
+        context.put(AbstractBodyDecoder.FIELDS, "host,size,load");
+
+        BodyDecoder decoder = BodyDecoderFactory.create(BodyDecoderFactory.JSON, context, newRowMeta(), UTF8);
+
+        Object[] row = new Object[4];
+        decoder.decode("{\"host\":\"localhost\",\"nested\":{\"a\":[1,2]},\"size\":42,\"load\":0.5}".getBytes(UTF8),
+                row);
+
+        Assert.assertEquals("String property is decoded", "localhost", row[1]);
+        Assert.assertEquals("Integer property is converted", Long.valueOf(42), row[2]);
+        Assert.assertEquals("Number property is converted", Double.valueOf(0.5), row[3]);
+    }
+
+    @Test
+    public void testAvroBody() throws KettleException, IOException {
+        Context context = new Context();
+        context.put(AbstractBodyDecoder.FIELDS, "host,size,load");
+        context.put(AvroBodyDecoder.SCHEMA, SCHEMA);
+
+        BodyDecoder decoder = BodyDecoderFactory.create(BodyDecoderFactory.AVRO, context, newRowMeta(), UTF8);
+
+        Schema schema = new Schema.Parser().parse(SCHEMA);
+        GenericRecord record = new GenericData.Record(schema);
+        record.put("host", "localhost");
+        record.put("size", 42);
+        record.put("load", 0.5);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+        new GenericDatumWriter<GenericRecord>(schema).write(record, encoder);
+        encoder.flush();
+
+        Object[] row = new Object[4];
+        decoder.decode(out.toByteArray(), row);
+
+        Assert.assertEquals("Avro string is converted", "localhost", row[1]);
+        Assert.assertEquals("Avro int is widened", Long.valueOf(42), row[2]);
+        Assert.assertEquals("Avro double is kept", Double.valueOf(0.5), row[3]);
+    }
+
+    @Test
+    public void testBooleanValues() throws KettleException {
+        RowMetaInterface rowMeta = newRowMeta();
+        rowMeta.addValueMeta(new ValueMetaBoolean("active"));
+
+        Context context = new Context();
+        context.put(AbstractBodyDecoder.FIELDS, "active");
+
+        BodyDecoder decoder = BodyDecoderFactory.create(BodyDecoderFactory.DELIMITED, context, rowMeta, UTF8);
+
+        Object[] row = new Object[5];
+        decoder.decode("Y".getBytes(UTF8), row);
+        Assert.assertEquals("Y is true", Boolean.TRUE, row[4]);
+
+        decoder.decode("0".getBytes(UTF8), row);
+        Assert.assertEquals("0 is false", Boolean.FALSE, row[4]);
+
+        try {
+            decoder.decode("maybe".getBytes(UTF8), row);
+            Assert.fail("Unknown boolean value is rejected");
+        } catch (KettleException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = KettleException.class)
+    public void testMissingFields() throws KettleException {
+        BodyDecoderFactory.create(BodyDecoderFactory.JSON, new Context(), newRowMeta(), UTF8);
+    }
+}
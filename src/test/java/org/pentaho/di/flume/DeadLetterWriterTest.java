@@ -0,0 +1,69 @@
+package org.pentaho.di.flume;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeadLetterWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testOnlyCommittedBatchesAreWritten() throws Exception {
+        DeadLetterWriter writer = new DeadLetterWriter(folder.newFolder("dead"), "sink", "avro_event",
+                new Context());
+        writer.open();
+
+        Event event = EventBuilder.withBody("event".getBytes(), Collections.singletonMap("host", "a"));
+
+        writer.write(event, "decoder", "malformed", 1);
+        Assert.assertEquals("Event headers are left unchanged", 1, event.getHeaders().size());
+
+        // The first delivery of batch 2 is rolled back, its redelivery is committed
+        writer.write(event, "decoder", "malformed", 2);
+        writer.discard(2);
+        writer.write(event, "decoder", "malformed", 2);
+        writer.write(event, "errors", null, DeadLetterWriter.UNBATCHED);
+
+        writer.commit(1);
+        writer.commit(2);
+        writer.write(event, "decoder", "malformed", 3);
+        writer.close();
+
+        List<GenericRecord> records = read(writer.getFile());
+        Assert.assertEquals("Committed and unbatched events are written once", 3, records.size());
+        Map<?, ?> headers = (Map<?, ?>) records.get(0).get("headers");
+        Assert.assertEquals("Error headers are added to the copy", "malformed",
+                headers.get(new Utf8(DeadLetterWriter.ERROR_REASON_HEADER)).toString());
+    }
+
+    private List<GenericRecord> read(File file) throws Exception {
+        List<GenericRecord> records = new ArrayList<GenericRecord>();
+        DataFileReader<GenericRecord> reader = new DataFileReader<GenericRecord>(file,
+                new GenericDatumReader<GenericRecord>());
+        try {
+            while (reader.hasNext()) {
+                records.add(reader.next());
+            }
+        } finally {
+            reader.close();
+        }
+
+        return records;
+    }
+}
@@ -0,0 +1,70 @@
+package org.pentaho.di.flume;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBinary;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+public class EventRowDecoderTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testStringBody() throws KettleException {
+        RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString(EventRowDecoder.INJECTOR_HEADERS_FIELD_NAME));
+        rowMeta.addValueMeta(new ValueMetaString(EventRowDecoder.INJECTOR_BODY_FIELD_NAME));
+
+        EventRowDecoder decoder = new EventRowDecoder(rowMeta, UTF8, Collections.<String, String>emptyMap());
+        Object[] row = decoder.decode(EventBuilder.withBody("café".getBytes(UTF8)));
+
+        Assert.assertEquals("Row has the injector size", 2, row.length);
+        Assert.assertEquals("Headers are injected as a string", "{}", row[0]);
+        Assert.assertEquals("Body is decoded with the charset", "café", row[1]);
+    }
+
+    @Test
+    public void testBinaryBodyAndHeaderFields() throws KettleException {
+        RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaBinary(EventRowDecoder.INJECTOR_BODY_FIELD_NAME));
+        rowMeta.addValueMeta(new ValueMetaString("host"));
+        rowMeta.addValueMeta(new ValueMetaInteger("size"));
+
+        Map<String, String> headerFields = new HashMap<String, String>();
+        headerFields.put("host", "host");
+        headerFields.put("size", "size");
+
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("host", "localhost");
+        headers.put("size", "42");
+
+        byte[] body = new byte[] { 1, 2, 3 };
+        Event event = EventBuilder.withBody(body, headers);
+
+        EventRowDecoder decoder = new EventRowDecoder(rowMeta, UTF8, headerFields);
+        Object[] row = decoder.decode(event);
+
+        Assert.assertSame("Binary body is not copied", body, row[0]);
+        Assert.assertEquals("String header is mapped", "localhost", row[1]);
+        Assert.assertEquals("Integer header is converted", Long.valueOf(42), row[2]);
+    }
+
+    @Test(expected = KettleException.class)
+    public void testUnknownHeaderField() throws KettleException {
+        RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString(EventRowDecoder.INJECTOR_BODY_FIELD_NAME));
+
+        new EventRowDecoder(rowMeta, UTF8, Collections.singletonMap("host", "host"));
+    }
+}
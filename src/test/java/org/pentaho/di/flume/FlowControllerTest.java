@@ -0,0 +1,38 @@
+package org.pentaho.di.flume;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.pentaho.di.core.BlockingRowSet;
+import org.pentaho.di.core.RowSet;
+
+public class FlowControllerTest {
+
+    @Test
+    public void testDownstreamSaturation() throws Exception {
+        BlockingRowSet injector = new BlockingRowSet(10);
+        BlockingRowSet downstream = new BlockingRowSet(10);
+        List<RowSet> injectorRowSets = Collections.<RowSet>singletonList(injector);
+
+        FlowController controller = new FlowController(injectorRowSets, Collections.<RowSet>singletonList(downstream),
+                10, 0.8, 1000, 100, 100);
+
+        Assert.assertEquals("Batch limited to the injector room, in rows", 10, controller.admit());
+
+        // The injector is empty but a step further down can't keep up
+        for (int i = 0; i < 9; i++) {
+            downstream.putRow(null, new Object[0]);
+        }
+
+        Assert.assertEquals("Saturated downstream row set stops the intake", 0, controller.admit());
+        Assert.assertFalse("No room while downstream is saturated", controller.awaitCapacity(20));
+
+        while (downstream.size() > 0) {
+            downstream.getRow();
+        }
+
+        Assert.assertTrue("Room once downstream drains", controller.awaitCapacity(20));
+    }
+}
@@ -0,0 +1,40 @@
+package org.pentaho.di.flume;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.flume.event.EventBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyTrackerTest {
+
+    @Test
+    public void testPercentiles() {
+        LatencyTracker tracker = new LatencyTracker("test");
+
+        long origin = LatencyTracker.now() - TimeUnit.MILLISECONDS.toNanos(5);
+
+        for (int i = 0; i < 100; i++) {
+            tracker.recordChannel(EventBuilder.withBody(new byte[0],
+                    Collections.singletonMap(LatencyTracker.ORIGIN_HEADER, Long.toString(origin))));
+            tracker.recordInjection(TimeUnit.MICROSECONDS.toNanos(i + 1));
+        }
+
+        // Events without an origin timestamp are ignored
+        tracker.recordChannel(EventBuilder.withBody(new byte[0]));
+
+        Assert.assertEquals("Nothing reported before the first interval", 0, tracker.getChannelLatencyP50Us(), 0);
+
+        tracker.roll();
+
+        Assert.assertTrue("Channel latency covers the origin delay", tracker.getChannelLatencyP50Us() >= 5000);
+        Assert.assertEquals(50, tracker.getInjectionLatencyP50Us(), 1);
+        Assert.assertEquals(100, tracker.getInjectionLatencyP999Us(), 1);
+        Assert.assertEquals("Nothing reached the terminal step", 0, tracker.getEndToEndLatencyP99Us(), 0);
+
+        tracker.roll();
+
+        Assert.assertEquals("Intervals are independent", 0, tracker.getInjectionLatencyP50Us(), 0);
+    }
+}
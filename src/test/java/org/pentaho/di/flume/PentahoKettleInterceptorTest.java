@@ -0,0 +1,147 @@
+package org.pentaho.di.flume;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.FlumeException;
+import org.apache.flume.event.EventBuilder;
+import org.apache.flume.interceptor.Interceptor;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PentahoKettleInterceptorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testInterceptBatch() {
+        Context context = new Context();
+        context.put(PentahoKettleInterceptor.TRANS_PATH, getClass().getResource("/flume_log_sink.ktr")
+                .toExternalForm());
+        context.put(PentahoKettleInterceptor.INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleInterceptor.OUTPUT_NAME, "output");
+
+        Interceptor.Builder builder = new PentahoKettleInterceptor.Builder();
+        builder.configure(context);
+
+        Interceptor interceptor = builder.build();
+        interceptor.initialize();
+
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 5; i++) {
+            events.add(EventBuilder.withBody(("Test " + i).getBytes()));
+        }
+
+        List<Event> intercepted = interceptor.intercept(events);
+
+        Assert.assertEquals("Every row came out", 5, intercepted.size());
+        Assert.assertEquals("Test 0", new String(intercepted.get(0).getBody()));
+
+        Event single = interceptor.intercept(EventBuilder.withBody("Single".getBytes()));
+
+        Assert.assertEquals("Single", new String(single.getBody()));
+
+        interceptor.close();
+    }
+
+    /**
+     * A single event split into several events by the transformation only keeps its first event.
+     */
+    @Test
+    public void testInterceptSplitSingleEvent() throws Exception {
+
+        // The injector copies every row to the log step and straight to the output step
+        File ktr = folder.newFile("flume_split_sink.ktr");
+        InputStream in = getClass().getResourceAsStream("/flume_log_sink.ktr");
+        try {
+            FileUtils.writeStringToFile(ktr, IOUtils.toString(in, "UTF-8")
+                    .replace("<name>inject event</name>\n    <type>Injector</type>\n    <description/>\n"
+                            + "    <distribute>Y</distribute>",
+                            "<name>inject event</name>\n    <type>Injector</type>\n    <description/>\n"
+                            + "    <distribute>N</distribute>")
+                    .replace("</order>", "<hop> <from>inject event</from><to>output</to><enabled>Y</enabled> </hop>"
+                            + "\n  </order>"), "UTF-8");
+        } finally {
+            in.close();
+        }
+
+        Context context = new Context();
+        context.put(PentahoKettleInterceptor.TRANS_PATH, ktr.getAbsolutePath());
+        context.put(PentahoKettleInterceptor.INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleInterceptor.OUTPUT_NAME, "output");
+
+        PentahoKettleInterceptor interceptor = new PentahoKettleInterceptor(context);
+        interceptor.initialize();
+
+        List<Event> events = new ArrayList<Event>();
+        events.add(EventBuilder.withBody("Batch".getBytes()));
+        Assert.assertEquals("Batches keep every event", 2, interceptor.intercept(events).size());
+
+        Event single = interceptor.intercept(EventBuilder.withBody("Single".getBytes()));
+
+        Assert.assertEquals("First event is kept", "Single", new String(single.getBody()));
+        Assert.assertEquals("Extra event is counted", 1L, interceptor.getDroppedCount());
+
+        interceptor.close();
+    }
+
+    /**
+     * A batch with an undecodable event fails as a whole, none of its rows come out with the next batch.
+     */
+    @Test
+    public void testInterceptBatchDecodeFailure() throws Exception {
+
+        // The header field of the injector is an integer decoded from the body
+        File ktr = folder.newFile("flume_decoded_sink.ktr");
+        InputStream in = getClass().getResourceAsStream("/flume_log_sink.ktr");
+        try {
+            FileUtils.writeStringToFile(ktr, IOUtils.toString(in, "UTF-8")
+                    .replace("<name>eventHeader</name>\n        <type>String</type>",
+                            "<name>eventHeader</name>\n        <type>Integer</type>"), "UTF-8");
+        } finally {
+            in.close();
+        }
+
+        Context context = new Context();
+        context.put(PentahoKettleInterceptor.TRANS_PATH, ktr.getAbsolutePath());
+        context.put(PentahoKettleInterceptor.INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleInterceptor.OUTPUT_NAME, "output");
+        context.put(PentahoKettleInterceptor.BODY_DECODER, BodyDecoderFactory.DELIMITED);
+        context.put(PentahoKettleInterceptor.BODY_DECODER + "." + AbstractBodyDecoder.FIELDS, "eventHeader,eventBody");
+
+        PentahoKettleInterceptor interceptor = new PentahoKettleInterceptor(context);
+        interceptor.initialize();
+
+        List<Event> events = new ArrayList<Event>();
+        events.add(EventBuilder.withBody("1,First".getBytes()));
+        events.add(EventBuilder.withBody("not a number,Second".getBytes()));
+        events.add(EventBuilder.withBody("3,Third".getBytes()));
+
+        try {
+            interceptor.intercept(events);
+            Assert.fail("The batch with an undecodable event fails");
+        } catch (FlumeException e) {
+            // expected
+        }
+
+        List<Event> next = new ArrayList<Event>();
+        next.add(EventBuilder.withBody("4,Next".getBytes()));
+
+        List<Event> intercepted = interceptor.intercept(next);
+
+        Assert.assertEquals("Only the next batch comes out", 1, intercepted.size());
+        Assert.assertEquals("Next", new String(intercepted.get(0).getBody()));
+
+        interceptor.close();
+    }
+}
@@ -0,0 +1,80 @@
+package org.pentaho.di.flume;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.flume.Channel;
+import org.apache.flume.ChannelSelector;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.EventDeliveryException;
+import org.apache.flume.PollableSource;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.channel.ReplicatingChannelSelector;
+import org.apache.flume.conf.Configurables;
+import org.apache.flume.lifecycle.LifecycleState;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PentahoKettlePollableSourceTest {
+
+    private PentahoKettlePollableSource source;
+    private Channel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        source = new PentahoKettlePollableSource();
+        channel = new MemoryChannel();
+
+        Configurables.configure(channel, new Context());
+
+        List<Channel> channels = new ArrayList<Channel>();
+        channels.add(channel);
+
+        ChannelSelector rcs = new ReplicatingChannelSelector();
+        rcs.setChannels(channels);
+
+        source.setChannelProcessor(new ChannelProcessor(rcs));
+    }
+
+    @Test
+    public void testPollingIterations() throws EventDeliveryException {
+
+        Context context = new Context();
+        context.put(PentahoKettlePollableSource.SOURCE_TRANS_PATH, getClass().getResource("/flume_bounded_source.ktr")
+                .toExternalForm());
+        context.put(PentahoKettlePollableSource.SOURCE_OUTPUT_NAME, "output");
+        context.put(PentahoKettlePollableSource.SOURCE_BATCH_SIZE, "4");
+
+        Configurables.configure(source, context);
+
+        source.start();
+        Assert.assertEquals("Source is started", LifecycleState.START, source.getLifecycleState());
+
+        // The row generator produces its ten rows within the first iteration
+        Assert.assertEquals("First iteration generated events", PollableSource.Status.READY, source.process());
+
+        int polls = 0;
+        while (source.process() == PollableSource.Status.READY && polls++ < 10) {
+            // keep polling until the transformation has nothing left
+        }
+        Assert.assertEquals("Finished transformation backs off", PollableSource.Status.BACKOFF, source.process());
+
+        int events = 0;
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+        for (Event event = channel.take(); event != null; event = channel.take()) {
+            events++;
+        }
+        txn.commit();
+        txn.close();
+
+        Assert.assertEquals("Every generated row reached the channel", 10, events);
+
+        source.stop();
+        Assert.assertEquals("Source is stopped", LifecycleState.STOP, source.getLifecycleState());
+    }
+}
@@ -1,9 +1,32 @@
 package org.pentaho.di.flume;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
 import org.apache.flume.Channel;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.EventDeliveryException;
+import org.apache.flume.Sink;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.MemoryChannel;
 import org.apache.flume.channel.PseudoTxnMemoryChannel;
 import org.apache.flume.conf.Configurables;
 import org.apache.flume.event.EventBuilder;
@@ -12,13 +35,20 @@ import org.apache.flume.lifecycle.LifecycleException;
 import org.apache.flume.lifecycle.LifecycleState;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.step.StepInterface;
 
 public class PentahoKettleSinkTest {
 
     private static String SINK_TRANS_NAME = "/flume_log_sink.ktr";
     private PentahoKettleSink sink;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Before
     public void setUp() throws Exception {
         sink = new PentahoKettleSink();
@@ -101,4 +131,881 @@ public class PentahoKettleSinkTest {
 
         sink.stop();
     }
+
+    /**
+     * A full batch is consumed in a single transaction.
+     */
+    @Test
+    public void testBlockingSinkBatch() throws InterruptedException, LifecycleException, EventDeliveryException {
+
+        Channel channel = new PseudoTxnMemoryChannel();
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, getClass().getResource(SINK_TRANS_NAME).toExternalForm());
+        context.put(PentahoKettleSink.SINK_EXECUTION_TYPE, "blocking");
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_BATCH_SIZE, "10");
+
+        Configurables.configure(channel, new Context());
+        Configurables.configure(sink, context);
+
+        sink.setChannel(channel);
+        sink.start();
+
+        for (int i = 0; i < 10; i++) {
+            channel.put(EventBuilder.withBody(("Test " + i).getBytes()));
+        }
+
+        Assert.assertEquals("Batch is processed", Sink.Status.READY, sink.process());
+        Assert.assertEquals("Channel is drained", Sink.Status.BACKOFF, sink.process());
+
+        sink.stop();
+    }
+
+    /**
+     * Every copy of the injector step receives rows, dispatched by the key header.
+     */
+    @Test
+    public void testInjectorCopies() throws Exception {
+
+        Channel channel = new PseudoTxnMemoryChannel();
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, injectorCopiesTransformation(2).getAbsolutePath());
+        context.put(PentahoKettleSink.SINK_EXECUTION_TYPE, "nonblocking");
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_BATCH_SIZE, "10");
+        context.put(PentahoKettleSink.SINK_WORKER_KEY_HEADER, "host");
+
+        Configurables.configure(channel, new Context());
+        Configurables.configure(sink, context);
+
+        sink.setChannel(channel);
+        sink.start();
+
+        // Consecutive host names hash to alternate copies
+        for (int i = 0; i < 10; i++) {
+            channel.put(EventBuilder.withBody(("Test " + i).getBytes(),
+                    Collections.singletonMap("host", "host" + (i % 3))));
+        }
+
+        Assert.assertEquals("Batch is processed", Sink.Status.READY, sink.process());
+        Assert.assertEquals("Channel is drained", Sink.Status.BACKOFF, sink.process());
+
+        Trans trans = sink.getSinkTransformation().getTrans();
+        Assert.assertEquals("Events of host0 and host2 go to the first copy", 7,
+                awaitLinesRead(trans, "inject event", 0, 7));
+        Assert.assertEquals("Events of host1 go to the second copy", 3, awaitLinesRead(trans, "inject event", 1, 3));
+
+        sink.stop();
+    }
+
+    /**
+     * Each worker dispatches its share between the copies of its injector step.
+     */
+    @Test
+    public void testWorkerInjectorCopies() throws Exception {
+
+        Channel channel = new PseudoTxnMemoryChannel();
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, injectorCopiesTransformation(2).getAbsolutePath());
+        context.put(PentahoKettleSink.SINK_EXECUTION_TYPE, "nonblocking");
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_BATCH_SIZE, "8");
+        context.put(PentahoKettleSink.SINK_WORKERS, "2");
+
+        Configurables.configure(channel, new Context());
+        Configurables.configure(sink, context);
+
+        sink.setChannel(channel);
+        sink.start();
+
+        // Round robin over every copy of every worker
+        for (int i = 0; i < 8; i++) {
+            channel.put(EventBuilder.withBody(("Test " + i).getBytes()));
+        }
+
+        Assert.assertEquals("Batch is processed", Sink.Status.READY, sink.process());
+
+        for (int worker = 0; worker < 2; worker++) {
+            for (int copy = 0; copy < 2; copy++) {
+                Assert.assertEquals("Copy " + copy + " of worker " + worker + " got its rows", 2,
+                        awaitLinesRead(sink.getSinkWorkerPool().getTrans(worker), "inject event", copy, 2));
+            }
+        }
+
+        sink.stop();
+    }
+
+    /**
+     * Acknowledging a sequence acknowledges the lower ones, so sequences can't be tracked across injector copies.
+     */
+    @Test
+    public void testAckSequenceRejectsInjectorCopies() throws Exception {
+
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, injectorCopiesTransformation(2).getAbsolutePath());
+        context.put(PentahoKettleSink.SINK_EXECUTION_TYPE, "nonblocking");
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_ACK_STEP_NAME, "output");
+        context.put(PentahoKettleSink.SINK_ACK_SEQUENCE_FIELD, "eventBody");
+
+        Configurables.configure(sink, context);
+
+        sink.setChannel(new PseudoTxnMemoryChannel());
+        sink.start();
+
+        Assert.assertFalse("Sink doesn't start", sink.getLifecycleState() == LifecycleState.START);
+    }
+
+    /**
+     * Every batch runs a complete pass of the transformation, the next pass is ready for the following batch.
+     */
+    @Test
+    public void testMicroBatchSink() throws InterruptedException, LifecycleException, EventDeliveryException {
+
+        Channel channel = new PseudoTxnMemoryChannel();
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, getClass().getResource(SINK_TRANS_NAME).toExternalForm());
+        context.put(PentahoKettleSink.SINK_EXECUTION_TYPE, "microbatch");
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_BATCH_SIZE, "10");
+
+        Configurables.configure(channel, new Context());
+        Configurables.configure(sink, context);
+
+        sink.setChannel(channel);
+        sink.start();
+
+        List<SinkTransformation> passes = new ArrayList<SinkTransformation>();
+
+        for (int batch = 0; batch < 3; batch++) {
+            for (int i = 0; i < 10; i++) {
+                channel.put(EventBuilder.withBody(("Test " + batch + "-" + i).getBytes()));
+            }
+
+            Assert.assertEquals("Batch is processed", Sink.Status.READY, sink.process());
+
+            SinkTransformation pass = sink.getSinkTransformation();
+            Assert.assertFalse("Every batch gets a new pass", passes.contains(pass));
+            passes.add(pass);
+
+            Assert.assertTrue("Pass reached the end of its input", pass.getTrans().isFinished());
+            Assert.assertEquals("Pass has no errors", 0, pass.getTrans().getErrors());
+            Assert.assertEquals("Output step received the batch", 10,
+                    pass.getTrans().findRunThread("output").getLinesRead());
+        }
+
+        Assert.assertEquals("Channel is drained", Sink.Status.BACKOFF, sink.process());
+
+        sink.stop();
+    }
+
+    /**
+     * Events arriving with gaps inside the batch timeout all land in the same pass.
+     */
+    @Test
+    public void testMicroBatchWindow() throws Exception {
+
+        final Channel channel = new PseudoTxnMemoryChannel();
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, getClass().getResource(SINK_TRANS_NAME).toExternalForm());
+        context.put(PentahoKettleSink.SINK_EXECUTION_TYPE, "microbatch");
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_BATCH_SIZE, "5");
+        context.put(PentahoKettleSink.SINK_BATCH_TIMEOUT, "10000");
+
+        Configurables.configure(channel, new Context());
+        Configurables.configure(sink, context);
+
+        sink.setChannel(channel);
+        sink.start();
+
+        channel.put(EventBuilder.withBody("Test 0".getBytes()));
+
+        // The rest of the batch trickles in while the window is open
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 1; i < 5; i++) {
+                        Thread.sleep(100);
+                        channel.put(EventBuilder.withBody(("Test " + i).getBytes()));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        producer.start();
+
+        Assert.assertEquals("Batch is processed", Sink.Status.READY, sink.process());
+        producer.join();
+
+        SinkTransformation pass = sink.getSinkTransformation();
+        Assert.assertEquals("Every event landed in one pass", 5,
+                pass.getTrans().findRunThread("output").getLinesRead());
+
+        Assert.assertEquals("Channel is drained", Sink.Status.BACKOFF, sink.process());
+
+        sink.stop();
+    }
+
+    /**
+     * An event that can't be decoded goes to the dead letter file, the rest of the batch is committed.
+     */
+    @Test
+    public void testDeadLetter() throws Exception {
+        File deadLetters = folder.newFolder("dead");
+
+        Channel channel = new PseudoTxnMemoryChannel();
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, getClass().getResource(SINK_TRANS_NAME).toExternalForm());
+        context.put(PentahoKettleSink.SINK_EXECUTION_TYPE, "blocking");
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_BATCH_SIZE, "3");
+        context.put(PentahoKettleSink.SINK_BODY_DECODER, "json");
+        context.put(PentahoKettleSink.SINK_BODY_DECODER + "." + AbstractBodyDecoder.FIELDS, "eventHeader");
+        context.put(PentahoKettleSink.SINK_DEAD_LETTER_DIRECTORY, deadLetters.getAbsolutePath());
+
+        Configurables.configure(channel, new Context());
+        Configurables.configure(sink, context);
+
+        sink.setChannel(channel);
+        sink.start();
+
+        channel.put(EventBuilder.withBody("{\"eventHeader\":\"a\"}".getBytes()));
+        channel.put(EventBuilder.withBody("{\"eventHeader\":".getBytes()));
+        channel.put(EventBuilder.withBody("{\"eventHeader\":\"c\"}".getBytes()));
+
+        Assert.assertEquals("Batch is processed", Sink.Status.READY, sink.process());
+        Assert.assertEquals("Channel is drained", Sink.Status.BACKOFF, sink.process());
+
+        sink.stop();
+
+        List<GenericRecord> records = readDeadLetters(deadLetters);
+        Assert.assertEquals("Only the malformed event is diverted", 1, records.size());
+        Assert.assertEquals("Diverted by the decoder", "decoder",
+                headerOf(records.get(0), DeadLetterWriter.ERROR_STEP_HEADER));
+        Assert.assertEquals("Original body is kept", "{\"eventHeader\":", bodyOf(records.get(0)));
+    }
+
+    /**
+     * The rows routed to the error step of the transformation go to the dead letter file with their error
+     * description, the rest of the batch reaches the output step.
+     */
+    @Test
+    public void testErrorStepDeadLetter() throws Exception {
+        File deadLetters = folder.newFolder("dead");
+
+        Channel channel = new PseudoTxnMemoryChannel();
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, getClass().getResource("/flume_error_sink.ktr")
+                .toExternalForm());
+        context.put(PentahoKettleSink.SINK_EXECUTION_TYPE, "blocking");
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_BATCH_SIZE, "3");
+        context.put(PentahoKettleSink.SINK_ERROR_STEP_NAME, "errors");
+        context.put(PentahoKettleSink.SINK_ERROR_REASON_FIELD, "errorDescription");
+        context.put(PentahoKettleSink.SINK_DEAD_LETTER_DIRECTORY, deadLetters.getAbsolutePath());
+
+        Configurables.configure(channel, new Context());
+        Configurables.configure(sink, context);
+
+        sink.setChannel(channel);
+        sink.start();
+
+        channel.put(EventBuilder.withBody("1".getBytes()));
+        channel.put(EventBuilder.withBody("not a number".getBytes()));
+        channel.put(EventBuilder.withBody("3".getBytes()));
+
+        Assert.assertEquals("Batch is processed", Sink.Status.READY, sink.process());
+        Assert.assertEquals("Channel is drained", Sink.Status.BACKOFF, sink.process());
+
+        sink.stop();
+
+        List<GenericRecord> records = readDeadLetters(deadLetters);
+        Assert.assertEquals("Only the failing row is diverted", 1, records.size());
+        Assert.assertEquals("Diverted by the error step", "errors",
+                headerOf(records.get(0), DeadLetterWriter.ERROR_STEP_HEADER));
+        Assert.assertNotNull("Error description is kept",
+                headerOf(records.get(0), DeadLetterWriter.ERROR_REASON_HEADER));
+        Assert.assertEquals("Body is restored from the row", "not a number", bodyOf(records.get(0)));
+    }
+
+    /**
+     * With flow control the nonblocking sink backs off while a slow step keeps the small injector row set full, and
+     * limits the next batches to the room left in it, while still draining the channel.
+     */
+    @Test
+    public void testNonBlockingFlowControl() throws Exception {
+
+        // Rows sets of 10 rows, drained by a step delaying every row
+        File ktr = rewriteTransformation("flume_log_sink_slow.ktr",
+                "<size_rowset>10000</size_rowset>", "<size_rowset>10</size_rowset>",
+                "<type>WriteToLog</type>", "<type>Delay</type><timeout>20</timeout><scaletime>0</scaletime>");
+
+        Channel channel = new PseudoTxnMemoryChannel();
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, ktr.getAbsolutePath());
+        context.put(PentahoKettleSink.SINK_EXECUTION_TYPE, "nonblocking");
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_BATCH_SIZE, "10");
+        context.put(PentahoKettleSink.SINK_FLOW_CONTROL, "true");
+
+        sink.setName("flowSink");
+        Configurables.configure(channel, new Context());
+        Configurables.configure(sink, context);
+
+        sink.setChannel(channel);
+        sink.start();
+
+        for (int i = 0; i < 50; i++) {
+            channel.put(EventBuilder.withBody(("Test " + i).getBytes()));
+        }
+
+        long deadline = System.currentTimeMillis() + 30000L;
+        long smallestLimit = Long.MAX_VALUE;
+
+        while ((Long) getAttribute("org.apache.flume.sink:type=flowSink", "EventDrainSuccessCount") < 50
+                && System.currentTimeMillis() < deadline) {
+            sink.process();
+
+            long limit = (Long) getAttribute("org.apache.flume.other:type=flowSink", "FlowBatchLimit");
+            if (limit > 0) {
+                smallestLimit = Math.min(smallestLimit, limit);
+            }
+        }
+
+        Assert.assertEquals("Channel is drained", 50L,
+                getAttribute("org.apache.flume.sink:type=flowSink", "EventDrainSuccessCount"));
+        Assert.assertTrue("Sink backed off", (Long) getAttribute("org.apache.flume.other:type=flowSink",
+                "FlowBackoffCount") > 0);
+        Assert.assertTrue("Batches were limited to the free room", smallestLimit < 10);
+
+        sink.stop();
+    }
+
+    /**
+     * Events delivered again with the id header of a committed event are taken from the channel without being injected
+     * again, the keys of a pipelined batch are remembered once its rows are acknowledged.
+     */
+    @Test
+    public void testReplayDeduplication() throws Exception {
+
+        Channel channel = new MemoryChannel();
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, getClass().getResource(SINK_TRANS_NAME).toExternalForm());
+        context.put(PentahoKettleSink.SINK_EXECUTION_TYPE, "nonblocking");
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_ACK_STEP_NAME, "output");
+        context.put(PentahoKettleSink.SINK_BATCH_SIZE, "20");
+        context.put(PentahoKettleSink.SINK_DEDUP_CAPACITY, "100");
+        context.put(PentahoKettleSink.SINK_DEDUP_HEADER, "eventId");
+
+        sink.setName("dedupSink");
+        Configurables.configure(channel, new Context());
+        Configurables.configure(sink, context);
+
+        sink.setChannel(channel);
+        sink.start();
+
+        // The last event of the batch repeats the first one
+        putIdentifiedEvents(channel, 0, 5);
+        putIdentifiedEvents(channel, 0, 1);
+        putEvents(channel, 1);
+
+        Assert.assertEquals("Batch is injected", Sink.Status.READY, sink.process());
+        awaitCount("org.apache.flume.sink:type=dedupSink", "EventDrainSuccessCount", 7L);
+
+        // The committed events are delivered again with new ones, events without id are never skipped
+        putIdentifiedEvents(channel, 0, 10);
+        putEvents(channel, 1);
+
+        Assert.assertEquals("Batch is injected", Sink.Status.READY, sink.process());
+        awaitCount("org.apache.flume.sink:type=dedupSink", "EventDrainSuccessCount", 18L);
+
+        Assert.assertEquals("Events with an id are looked up", 16L,
+                getAttribute("org.apache.flume.other:type=dedupSink", "DedupLookupCount"));
+        Assert.assertEquals("Repeated and committed events are skipped", 6L,
+                getAttribute("org.apache.flume.other:type=dedupSink", "DedupHitCount"));
+        Assert.assertEquals("New events and events without id are injected", 12L,
+                getAttribute("org.apache.flume.other:type=dedupSink", "RowsInjectedCount"));
+
+        sink.stop();
+    }
+
+    /**
+     * The keys of a pipelined batch rolled back unacknowledged are not remembered, its redelivered events are injected
+     * again.
+     */
+    @Test
+    public void testReplayDeduplicationRollback() throws Exception {
+
+        // The acknowledgement step is no longer connected, every batch times out and rolls back
+        File ktr = rewriteTransformation("flume_log_sink_no_ack.ktr",
+                "<hop> <from>log event</from><to>output</to><enabled>Y</enabled> </hop>", "");
+
+        Channel channel = new MemoryChannel();
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, ktr.getAbsolutePath());
+        context.put(PentahoKettleSink.SINK_EXECUTION_TYPE, "nonblocking");
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_ACK_STEP_NAME, "output");
+        context.put(PentahoKettleSink.SINK_ACK_TIMEOUT, "200");
+        context.put(PentahoKettleSink.SINK_MAX_IN_FLIGHT_BATCHES, "1");
+        context.put(PentahoKettleSink.SINK_BATCH_SIZE, "5");
+        context.put(PentahoKettleSink.SINK_DEDUP_CAPACITY, "100");
+        context.put(PentahoKettleSink.SINK_DEDUP_HEADER, "eventId");
+
+        sink.setName("dedupRollbackSink");
+        Configurables.configure(channel, new Context());
+        Configurables.configure(sink, context);
+
+        sink.setChannel(channel);
+        sink.start();
+
+        putIdentifiedEvents(channel, 0, 5);
+
+        Assert.assertEquals("Batch is injected", Sink.Status.READY, sink.process());
+        awaitCount("org.apache.flume.other:type=dedupRollbackSink", "BatchRollbackCount", 1L);
+
+        Assert.assertEquals("Rolled back batch is redelivered", Sink.Status.READY, sink.process());
+        Assert.assertEquals("Redelivered events are not skipped", 0L,
+                getAttribute("org.apache.flume.other:type=dedupRollbackSink", "DedupHitCount"));
+        Assert.assertEquals("Redelivered events are injected again", 10L,
+                getAttribute("org.apache.flume.other:type=dedupRollbackSink", "RowsInjectedCount"));
+
+        sink.stop();
+
+        Assert.assertEquals("Unacknowledged events stay in the channel", 5, drain(channel));
+    }
+
+    /**
+     * A single nonblocking transformation already received the events injected before a batch rolled back, they are
+     * skipped when the batch is redelivered.
+     */
+    @Test
+    public void testReplayDeduplicationNonBlockingRollback() throws Exception {
+
+        Channel channel = new MemoryChannel();
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, getClass().getResource(SINK_TRANS_NAME).toExternalForm());
+        context.put(PentahoKettleSink.SINK_EXECUTION_TYPE, "nonblocking");
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_BATCH_SIZE, "5");
+        context.put(PentahoKettleSink.SINK_BODY_DECODER, "json");
+        context.put(PentahoKettleSink.SINK_BODY_DECODER + "." + AbstractBodyDecoder.FIELDS, "eventHeader");
+        context.put(PentahoKettleSink.SINK_DEDUP_CAPACITY, "100");
+        context.put(PentahoKettleSink.SINK_DEDUP_HEADER, "eventId");
+
+        sink.setName("dedupNonBlockingSink");
+        Configurables.configure(channel, new Context());
+        Configurables.configure(sink, context);
+
+        sink.setChannel(channel);
+        sink.start();
+
+        // The third event can't be decoded and rolls the batch back after the first two were injected
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+        channel.put(EventBuilder.withBody("{\"eventHeader\":\"a\"}".getBytes(),
+                Collections.singletonMap("eventId", "0")));
+        channel.put(EventBuilder.withBody("{\"eventHeader\":\"b\"}".getBytes(),
+                Collections.singletonMap("eventId", "1")));
+        channel.put(EventBuilder.withBody("{\"eventHeader\":".getBytes(),
+                Collections.singletonMap("eventId", "2")));
+        txn.commit();
+        txn.close();
+
+        Assert.assertEquals("Batch is rolled back", Sink.Status.BACKOFF, sink.process());
+        Assert.assertEquals("Batch is redelivered and rolled back", Sink.Status.BACKOFF, sink.process());
+
+        Assert.assertEquals("Injected events are skipped when redelivered", 2L,
+                getAttribute("org.apache.flume.other:type=dedupNonBlockingSink", "DedupHitCount"));
+        Assert.assertEquals("Injected events are not injected again", 2L,
+                getAttribute("org.apache.flume.other:type=dedupNonBlockingSink", "RowsInjectedCount"));
+
+        sink.stop();
+
+        Assert.assertEquals("Rolled back events stay in the channel", 3, drain(channel));
+    }
+
+    /**
+     * A sinkDedupCapacity without sinkDedupHeader is rejected, events are only de-duplicated by their id.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testDeduplicationRequiresHeader() {
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, getClass().getResource(SINK_TRANS_NAME).toExternalForm());
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_DEDUP_CAPACITY, "100");
+
+        Configurables.configure(sink, context);
+    }
+
+    /**
+     * The steps of the running transformation are sampled and published over JMX.
+     */
+    @Test
+    public void testStepProfiler() throws Exception {
+
+        Channel channel = new PseudoTxnMemoryChannel();
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, getClass().getResource(SINK_TRANS_NAME).toExternalForm());
+        context.put(PentahoKettleSink.SINK_EXECUTION_TYPE, "nonblocking");
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_PROFILE_INTERVAL, "50");
+
+        sink.setName("profiledSink");
+        Configurables.configure(channel, new Context());
+        Configurables.configure(sink, context);
+
+        sink.setChannel(channel);
+        sink.start();
+
+        for (int i = 0; i < 10; i++) {
+            channel.put(EventBuilder.withBody(("Test " + i).getBytes()));
+            sink.process();
+        }
+
+        Thread.sleep(200);
+
+        ObjectName name = new ObjectName("org.pentaho.di.flume:type=StepProfiler,name="
+                + ObjectName.quote("profiledSink"));
+        CompositeData[] steps = (CompositeData[]) ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(name, "Steps");
+
+        Assert.assertEquals("Every step is sampled", 3, steps.length);
+
+        sink.stop();
+
+        Assert.assertFalse("Profiler is unregistered", ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    /**
+     * Batches are committed once acknowledged by the output step.
+     */
+    @Test
+    public void testPipelinedSink() throws Exception {
+
+        Channel channel = new MemoryChannel();
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, getClass().getResource(SINK_TRANS_NAME).toExternalForm());
+        context.put(PentahoKettleSink.SINK_EXECUTION_TYPE, "nonblocking");
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_ACK_STEP_NAME, "output");
+        context.put(PentahoKettleSink.SINK_BATCH_SIZE, "5");
+
+        sink.setName("pipelinedSink");
+        Configurables.configure(channel, new Context());
+        Configurables.configure(sink, context);
+
+        sink.setChannel(channel);
+        sink.start();
+
+        putEvents(channel, 5);
+
+        Assert.assertEquals("Batch is injected", Sink.Status.READY, sink.process());
+        awaitCount("org.apache.flume.sink:type=pipelinedSink", "EventDrainSuccessCount", 5L);
+
+        sink.stop();
+
+        Assert.assertEquals("Batch was committed", 0, drain(channel));
+    }
+
+    /**
+     * A batch that isn't acknowledged in time is rolled back and redelivered.
+     */
+    @Test
+    public void testPipelinedSinkAckTimeout() throws Exception {
+
+        // The acknowledgement step is no longer connected, it never receives the rows
+        File ktr = rewriteTransformation("flume_log_sink_no_ack.ktr",
+                "<hop> <from>log event</from><to>output</to><enabled>Y</enabled> </hop>", "");
+
+        Channel channel = new MemoryChannel();
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, ktr.getAbsolutePath());
+        context.put(PentahoKettleSink.SINK_EXECUTION_TYPE, "nonblocking");
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_ACK_STEP_NAME, "output");
+        context.put(PentahoKettleSink.SINK_ACK_TIMEOUT, "200");
+        context.put(PentahoKettleSink.SINK_MAX_IN_FLIGHT_BATCHES, "1");
+        context.put(PentahoKettleSink.SINK_BATCH_SIZE, "5");
+
+        sink.setName("ackTimeoutSink");
+        Configurables.configure(channel, new Context());
+        Configurables.configure(sink, context);
+
+        sink.setChannel(channel);
+        sink.start();
+
+        putEvents(channel, 5);
+
+        Assert.assertEquals("Batch is injected", Sink.Status.READY, sink.process());
+        awaitCount("org.apache.flume.other:type=ackTimeoutSink", "BatchRollbackCount", 1L);
+
+        Assert.assertEquals("Rolled back batch is redelivered", Sink.Status.READY, sink.process());
+        Assert.assertEquals("Every event is taken twice", 10L, getAttribute(
+                "org.apache.flume.sink:type=ackTimeoutSink", "EventDrainAttemptCount"));
+        Assert.assertEquals("No event was committed", 0L, getAttribute(
+                "org.apache.flume.sink:type=ackTimeoutSink", "EventDrainSuccessCount"));
+
+        sink.stop();
+
+        Assert.assertEquals("Unacknowledged events stay in the channel", 5, drain(channel));
+    }
+
+    /**
+     * Every worker processes its share of the batch.
+     */
+    @Test
+    public void testBlockingSinkWorkers() throws InterruptedException, LifecycleException, EventDeliveryException {
+
+        Channel channel = new PseudoTxnMemoryChannel();
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, getClass().getResource(SINK_TRANS_NAME).toExternalForm());
+        context.put(PentahoKettleSink.SINK_EXECUTION_TYPE, "blocking");
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_BATCH_SIZE, "10");
+        context.put(PentahoKettleSink.SINK_WORKERS, "3");
+        context.put(PentahoKettleSink.SINK_WORKER_KEY_HEADER, "key");
+
+        Configurables.configure(channel, new Context());
+        Configurables.configure(sink, context);
+
+        sink.setChannel(channel);
+        sink.start();
+
+        for (int i = 0; i < 10; i++) {
+            channel.put(EventBuilder.withBody(("Test " + i).getBytes(),
+                    Collections.singletonMap("key", "key" + (i % 4))));
+        }
+
+        Assert.assertEquals("Batch is processed", Sink.Status.READY, sink.process());
+        Assert.assertEquals("Channel is drained", Sink.Status.BACKOFF, sink.process());
+
+        sink.stop();
+    }
+
+    /**
+     * A changed transformation replaces the running one between two batches, the next rows are processed by it.
+     */
+    @Test
+    public void testHotReload() throws Exception {
+
+        File ktr = folder.newFile("flume_log_sink.ktr");
+        InputStream in = getClass().getResourceAsStream(SINK_TRANS_NAME);
+        String definition;
+        try {
+            definition = IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+        FileUtils.writeStringToFile(ktr, definition, "UTF-8");
+
+        Channel channel = new PseudoTxnMemoryChannel();
+        Context context = new Context();
+        context.put(PentahoKettleSink.SINK_TRANS_PATH, ktr.getAbsolutePath());
+        context.put(PentahoKettleSink.SINK_EXECUTION_TYPE, "blocking");
+        context.put(PentahoKettleSink.SINK_INJECTOR_NAME, "inject event");
+        context.put(PentahoKettleSink.SINK_RELOAD_CHECK, "50");
+        context.put(PentahoKettleSink.SINK_PROFILE_INTERVAL, "50");
+
+        sink.setName("reloadedSink");
+        Configurables.configure(channel, new Context());
+        Configurables.configure(sink, context);
+
+        sink.setChannel(channel);
+        sink.start();
+
+        channel.put(EventBuilder.withBody("Before reload".getBytes()));
+        Assert.assertEquals("Batch is processed", Sink.Status.READY, sink.process());
+
+        // The changed transformation has a renamed output step
+        long misses = TransMetaCache.INSTANCE.getMissCount();
+        FileUtils.writeStringToFile(ktr, definition.replace("<name>output</name>", "<name>reloaded output</name>")
+                .replace("<to>output</to>", "<to>reloaded output</to>"), "UTF-8");
+        Assert.assertTrue("Modification time updated", ktr.setLastModified(ktr.lastModified() - 60000L));
+        Thread.sleep(500);
+
+        Assert.assertEquals("Changed transformation was parsed", misses + 1, TransMetaCache.INSTANCE.getMissCount());
+
+        channel.put(EventBuilder.withBody("After reload".getBytes()));
+        Assert.assertEquals("Batch is processed", Sink.Status.READY, sink.process());
+
+        Thread.sleep(200);
+
+        ObjectName name = new ObjectName("org.pentaho.di.flume:type=StepProfiler,name="
+                + ObjectName.quote("reloadedSink"));
+        CompositeData[] steps = (CompositeData[]) ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(name, "Steps");
+
+        CompositeData reloadedOutput = null;
+        for (CompositeData step : steps) {
+            Assert.assertFalse("Replaced transformation is no longer used", "output".equals(step.get("step")));
+
+            if ("reloaded output".equals(step.get("step"))) {
+                reloadedOutput = step;
+            }
+        }
+
+        Assert.assertNotNull("Reloaded transformation is used", reloadedOutput);
+        Assert.assertEquals("Row after the change is processed by the reloaded transformation", 1L,
+                reloadedOutput.get("linesRead"));
+
+        sink.stop();
+    }
+
+    /**
+     * Writes a copy of the test transformation with parts of its definition replaced.
+     *
+     * @param replacements the replaced parts, each followed by its replacement
+     */
+    private File rewriteTransformation(String fileName, String... replacements) throws Exception {
+        File ktr = folder.newFile(fileName);
+        InputStream in = getClass().getResourceAsStream(SINK_TRANS_NAME);
+        try {
+            String definition = IOUtils.toString(in, "UTF-8");
+
+            for (int i = 0; i < replacements.length; i += 2) {
+                Assert.assertTrue("Transformation contains " + replacements[i], definition.contains(replacements[i]));
+                definition = definition.replace(replacements[i], replacements[i + 1]);
+            }
+
+            FileUtils.writeStringToFile(ktr, definition, "UTF-8");
+        } finally {
+            in.close();
+        }
+
+        return ktr;
+    }
+
+    /**
+     * Writes a copy of the test transformation running several copies of its injector step.
+     */
+    private File injectorCopiesTransformation(int copies) throws Exception {
+        return rewriteTransformation("flume_log_sink_copies.ktr",
+                "<name>inject event</name>\n    <type>Injector</type>\n    <description/>\n    <distribute>Y</distribute>\n"
+                        + "    <custom_distribution/>\n    <copies>1</copies>",
+                "<name>inject event</name>\n    <type>Injector</type>\n    <description/>\n    <distribute>Y</distribute>\n"
+                        + "    <custom_distribution/>\n    <copies>" + copies + "</copies>");
+    }
+
+    /**
+     * Waits until a copy of a step read the expected number of rows.
+     *
+     * @return the number of rows read by the copy
+     */
+    private long awaitLinesRead(Trans trans, String stepName, int copy, long expected) throws InterruptedException {
+        StepInterface step = trans.getStepInterface(stepName, copy);
+        Assert.assertNotNull("Copy " + copy + " of " + stepName + " is running", step);
+
+        long deadline = System.currentTimeMillis() + 10000L;
+
+        while (step.getLinesRead() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        return step.getLinesRead();
+    }
+
+    /**
+     * Puts numbered events into a transactional channel.
+     */
+    private void putEvents(Channel channel, int count) {
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+
+        for (int i = 0; i < count; i++) {
+            channel.put(EventBuilder.withBody(("Test " + i).getBytes()));
+        }
+
+        txn.commit();
+        txn.close();
+    }
+
+    /**
+     * Puts events carrying consecutive eventId headers into a transactional channel.
+     */
+    private void putIdentifiedEvents(Channel channel, int first, int count) {
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+
+        for (int i = first; i < first + count; i++) {
+            channel.put(EventBuilder.withBody(("Test " + i).getBytes(), Collections.singletonMap("eventId", "" + i)));
+        }
+
+        txn.commit();
+        txn.close();
+    }
+
+    /**
+     * Takes all the remaining events from a transactional channel.
+     *
+     * @return the number of remaining events
+     */
+    private int drain(Channel channel) {
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+
+        int count = 0;
+        while (channel.take() != null) {
+            count++;
+        }
+
+        txn.commit();
+        txn.close();
+
+        return count;
+    }
+
+    /**
+     * Reads the events of the single dead letter file written by the avro_event serializer.
+     */
+    private List<GenericRecord> readDeadLetters(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        Assert.assertEquals("Dead letter file created", 1, files.length);
+
+        List<GenericRecord> records = new ArrayList<GenericRecord>();
+        DataFileReader<GenericRecord> reader = new DataFileReader<GenericRecord>(files[0],
+                new GenericDatumReader<GenericRecord>());
+        try {
+            while (reader.hasNext()) {
+                records.add(reader.next());
+            }
+        } finally {
+            reader.close();
+        }
+
+        return records;
+    }
+
+    private String headerOf(GenericRecord record, String header) {
+        Object value = ((Map<?, ?>) record.get("headers")).get(new Utf8(header));
+        return value != null ? value.toString() : null;
+    }
+
+    private String bodyOf(GenericRecord record) {
+        ByteBuffer body = (ByteBuffer) record.get("body");
+        byte[] bytes = new byte[body.remaining()];
+        body.get(bytes);
+        return new String(bytes);
+    }
+
+    private Object getAttribute(String objectName, String attribute) throws Exception {
+        return ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(objectName), attribute);
+    }
+
+    /**
+     * Waits until a counter published over JMX reaches a value.
+     */
+    private void awaitCount(String objectName, String attribute, long expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000L;
+
+        while (((Long) getAttribute(objectName, attribute)) < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        Assert.assertEquals(attribute + " reached", expected, getAttribute(objectName, attribute));
+    }
 }
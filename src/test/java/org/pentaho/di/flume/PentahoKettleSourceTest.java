@@ -1,11 +1,23 @@
 package org.pentaho.di.flume;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
+import javax.management.ObjectName;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
 import org.apache.flume.Channel;
 import org.apache.flume.ChannelSelector;
 import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Transaction;
 import org.apache.flume.channel.ChannelProcessor;
 import org.apache.flume.channel.MemoryChannel;
 import org.apache.flume.channel.ReplicatingChannelSelector;
@@ -14,13 +26,18 @@ import org.apache.flume.lifecycle.LifecycleController;
 import org.apache.flume.lifecycle.LifecycleState;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class PentahoKettleSourceTest {
 
     private PentahoKettleSource source;
     private Channel channel;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Before
     public void setUp() throws Exception {
         source = new PentahoKettleSource();
@@ -59,4 +76,228 @@ public class PentahoKettleSourceTest {
         Assert.assertEquals("Source is stopped", LifecycleState.STOP, source.getLifecycleState());
     }
 
+    @Test
+    public void testBatchedSource() throws InterruptedException {
+
+        Context context = new Context();
+        context.put(PentahoKettleSource.SOURCE_TRANS_PATH, getClass().getResource("/flume_sequence_source.ktr")
+                .toExternalForm());
+        context.put(PentahoKettleSource.SOURCE_EXECUTION_TYPE, "nonblocking");
+        context.put(PentahoKettleSource.SOURCE_OUTPUT_NAME, "output");
+        context.put(PentahoKettleSource.SOURCE_BATCH_SIZE, "10");
+        context.put(PentahoKettleSource.SOURCE_BATCH_TIMEOUT, "100");
+
+        Configurables.configure(source, context);
+
+        source.start();
+        Thread.sleep(500);
+        source.stop();
+
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+        Event event = channel.take();
+        txn.commit();
+        txn.close();
+
+        Assert.assertNotNull("Batched events reached the channel", event);
+    }
+
+    /**
+     * The delivery threads retry the batches refused by a tiny channel, without losing or duplicating events.
+     */
+    @Test
+    public void testAsyncDeliverySource() throws Exception {
+
+        Context channelContext = new Context();
+        channelContext.put("capacity", "20");
+        channelContext.put("transactionCapacity", "10");
+        channelContext.put("keep-alive", "0");
+        Configurables.configure(channel, channelContext);
+
+        Context context = new Context();
+        context.put(PentahoKettleSource.SOURCE_TRANS_PATH, boundedTransformation(200).getAbsolutePath());
+        context.put(PentahoKettleSource.SOURCE_EXECUTION_TYPE, "nonblocking");
+        context.put(PentahoKettleSource.SOURCE_OUTPUT_NAME, "output");
+        context.put(PentahoKettleSource.SOURCE_BATCH_SIZE, "10");
+        context.put(PentahoKettleSource.SOURCE_BATCH_TIMEOUT, "100");
+        context.put(PentahoKettleSource.SOURCE_DELIVERY_QUEUE_SIZE, "50");
+        context.put(PentahoKettleSource.SOURCE_DELIVERY_RETRY, "10");
+        context.put(PentahoKettleSource.SOURCE_DELIVERY_MAX_RETRY, "50");
+
+        source.setName("asyncSource");
+        Configurables.configure(source, context);
+
+        source.start();
+        Thread.sleep(500);
+
+        // The channel is full by now, the transformation keeps running and only waits for room in the queue
+        Assert.assertEquals("Source is started", LifecycleState.START, source.getLifecycleState());
+        Assert.assertTrue("Refused batches are retried", (Long) ManagementFactory.getPlatformMBeanServer()
+                .getAttribute(new ObjectName("org.apache.flume.other:type=asyncSource"), "DeliveryRetryCount") > 0);
+
+        List<String> bodies = drain(200);
+
+        source.stop();
+
+        Assert.assertEquals("Every event reached the channel", 200, bodies.size());
+        Assert.assertEquals("No event was delivered twice", 200, new HashSet<String>(bodies).size());
+
+        ObjectName sourceCounter = new ObjectName("org.apache.flume.source:type=asyncSource");
+        Assert.assertEquals("Retried batches are received once", getCount(sourceCounter, "AppendBatchAcceptedCount"),
+                getCount(sourceCounter, "AppendBatchReceivedCount"));
+    }
+
+    /**
+     * The batches a tiny channel refuses are spilled to disk and replayed in order, new batches queue behind the
+     * spilled ones, and the events still spilled when the source stops are replayed after the restart.
+     */
+    @Test
+    public void testSpillSource() throws Exception {
+
+        Context channelContext = new Context();
+        channelContext.put("capacity", "20");
+        channelContext.put("transactionCapacity", "10");
+        channelContext.put("keep-alive", "0");
+        Configurables.configure(channel, channelContext);
+
+        Context context = new Context();
+        context.put(PentahoKettleSource.SOURCE_TRANS_PATH, pacedTransformation(10).getAbsolutePath());
+        context.put(PentahoKettleSource.SOURCE_EXECUTION_TYPE, "nonblocking");
+        context.put(PentahoKettleSource.SOURCE_OUTPUT_NAME, "output");
+        context.put(PentahoKettleSource.SOURCE_BATCH_SIZE, "10");
+        context.put(PentahoKettleSource.SOURCE_BATCH_TIMEOUT, "100");
+        context.put(PentahoKettleSource.SOURCE_SPILL_DIRECTORY, folder.newFolder("spill").getAbsolutePath());
+        context.put(PentahoKettleSource.SOURCE_SPILL_SEGMENT_SIZE, "4096");
+        context.put(PentahoKettleSource.SOURCE_SPILL_REPLAY_BATCH_SIZE, "10");
+        context.put(PentahoKettleSource.SOURCE_SPILL_REPLAY_INTERVAL, "50");
+
+        ObjectName counter = new ObjectName("org.apache.flume.other:type=spillSource");
+
+        source.setName("spillSource");
+        Configurables.configure(source, context);
+        source.start();
+
+        awaitCount(counter, "SpilledCount", 1);
+        Assert.assertEquals("Source is started", LifecycleState.START, source.getLifecycleState());
+
+        // Drain until the spilled events were replayed, the events produced meanwhile are spilled behind them
+        long spilled = getCount(counter, "SpilledCount");
+        List<String> bodies = new ArrayList<String>();
+        long deadline = System.currentTimeMillis() + 30000L;
+        while (System.currentTimeMillis() < deadline && (getCount(counter, "SpillReplayedCount") == 0
+                || getCount(counter, "SpillPendingCount") > 0)) {
+            bodies.addAll(drain(10));
+        }
+
+        Assert.assertEquals("Spill is replayed", 0, getCount(counter, "SpillPendingCount"));
+        Assert.assertTrue("New events queued behind the spilled ones", getCount(counter, "SpilledCount") > spilled);
+
+        // Fill the channel again and stop with spilled events left
+        awaitCount(counter, "SpillPendingCount", 1);
+        source.stop();
+
+        PentahoKettleSource restarted = new PentahoKettleSource();
+        restarted.setChannelProcessor(source.getChannelProcessor());
+        restarted.setName("spillSource");
+        Configurables.configure(restarted, context);
+        restarted.start();
+
+        // The restarted transformation counts from 1 again, after the replayed events
+        while (System.currentTimeMillis() < deadline && bodies.lastIndexOf("1") <= 0) {
+            bodies.addAll(drain(10));
+        }
+
+        restarted.stop();
+
+        int firstRun = bodies.lastIndexOf("1");
+        Assert.assertTrue("Restarted transformation reached the channel", firstRun > 0);
+        Assert.assertTrue("Spilled events were replayed after the restart",
+                getCount(counter, "SpillReplayedCount") > 0);
+
+        for (int i = 0; i < firstRun; i++) {
+            Assert.assertEquals("Events of the first run arrive in order, without loss", "" + (i + 1),
+                    bodies.get(i));
+        }
+    }
+
+    /**
+     * Writes a copy of the bounded source transformation generating the given number of rows.
+     */
+    private File boundedTransformation(int rows) throws IOException {
+        File ktr = folder.newFile("flume_bounded_source_" + rows + ".ktr");
+        InputStream in = getClass().getResourceAsStream("/flume_bounded_source.ktr");
+        try {
+            FileUtils.writeStringToFile(ktr, IOUtils.toString(in, "UTF-8")
+                    .replace("<limit>10</limit>", "<limit>" + rows + "</limit>"), "UTF-8");
+        } finally {
+            in.close();
+        }
+
+        return ktr;
+    }
+
+    /**
+     * Writes a copy of the never ending sequence source transformation generating a row every interval.
+     */
+    private File pacedTransformation(int interval) throws IOException {
+        File ktr = folder.newFile("flume_paced_source_" + interval + ".ktr");
+        InputStream in = getClass().getResourceAsStream("/flume_sequence_source.ktr");
+        try {
+            FileUtils.writeStringToFile(ktr, IOUtils.toString(in, "UTF-8")
+                    .replace("<interval_in_ms>1000</interval_in_ms>", "<interval_in_ms>" + interval
+                            + "</interval_in_ms>"), "UTF-8");
+        } finally {
+            in.close();
+        }
+
+        return ktr;
+    }
+
+    private long getCount(ObjectName objectName, String attribute) throws Exception {
+        return (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, attribute);
+    }
+
+    /**
+     * Waits up to 10 seconds for a counter to reach the expected value.
+     */
+    private void awaitCount(ObjectName objectName, String attribute, long expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000L;
+
+        while (getCount(objectName, attribute) < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        Assert.assertTrue(attribute + " reached " + expected, getCount(objectName, attribute) >= expected);
+    }
+
+    /**
+     * Takes events from the channel until the expected number of events arrived or nothing arrives any more.
+     *
+     * @return the bodies of the events, in channel order
+     */
+    private List<String> drain(int expected) throws InterruptedException {
+        List<String> bodies = new ArrayList<String>();
+        long deadline = System.currentTimeMillis() + 30000L;
+
+        while (bodies.size() < expected && System.currentTimeMillis() < deadline) {
+            Transaction txn = channel.getTransaction();
+            txn.begin();
+
+            int taken = 0;
+            Event event;
+            while (taken < 10 && (event = channel.take()) != null) {
+                bodies.add(new String(event.getBody()));
+                taken++;
+            }
+
+            txn.commit();
+            txn.close();
+
+            if (taken == 0) {
+                Thread.sleep(20);
+            }
+        }
+
+        return bodies;
+    }
 }
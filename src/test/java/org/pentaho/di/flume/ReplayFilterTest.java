@@ -0,0 +1,38 @@
+package org.pentaho.di.flume;
+
+import java.util.Collections;
+
+import org.apache.flume.event.EventBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReplayFilterTest {
+
+    @Test
+    public void testOldestKeysAreForgotten() {
+        ReplayFilter filter = new ReplayFilter(100, "eventId");
+
+        for (long key = 1; key <= 250; key++) {
+            filter.add(key);
+        }
+
+        Assert.assertEquals("Size is bounded", 100, filter.size());
+        Assert.assertFalse("Oldest key is forgotten", filter.contains(150));
+        Assert.assertTrue("Recent keys are remembered", filter.contains(151));
+        Assert.assertTrue("Recent keys are remembered", filter.contains(250));
+    }
+
+    @Test
+    public void testEventKeys() {
+        ReplayFilter filter = new ReplayFilter(10, "eventId");
+
+        long byId = filter.keyOf(EventBuilder.withBody("a".getBytes(), Collections.singletonMap("eventId", "1")));
+        long sameId = filter.keyOf(EventBuilder.withBody("b".getBytes(), Collections.singletonMap("eventId", "1")));
+        long otherId = filter.keyOf(EventBuilder.withBody("a".getBytes(), Collections.singletonMap("eventId", "2")));
+        long withoutId = filter.keyOf(EventBuilder.withBody("a".getBytes()));
+
+        Assert.assertEquals("Id header is the key", byId, sameId);
+        Assert.assertNotEquals("Same body with another id is another event", byId, otherId);
+        Assert.assertEquals("Event without id has no key", ReplayFilter.NO_KEY, withoutId);
+    }
+}
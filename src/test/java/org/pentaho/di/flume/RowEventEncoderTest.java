@@ -0,0 +1,63 @@
+package org.pentaho.di.flume;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.flume.Event;
+import org.junit.Assert;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBinary;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+public class RowEventEncoderTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testStringBodyAndHeaders() throws KettleException {
+        RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaInteger("id"));
+        rowMeta.addValueMeta(new ValueMetaString(RowEventEncoder.OUTPUT_BODY_FIELD_NAME));
+
+        Map<String, String> headerFields = new HashMap<String, String>();
+        headerFields.put("key", "id");
+
+        RowEventEncoder encoder = new RowEventEncoder(rowMeta, RowEventEncoder.OUTPUT_BODY_FIELD_NAME, UTF8,
+                headerFields, "timestamp");
+        Event event = encoder.encode(new Object[] { 7L, "café" });
+
+        Assert.assertArrayEquals("Body is encoded with the charset", "café".getBytes(UTF8), event.getBody());
+        Assert.assertEquals("Field is mapped to a header", "7", event.getHeaders().get("key"));
+        Assert.assertNotNull("Timestamp header is set", event.getHeaders().get("timestamp"));
+    }
+
+    @Test
+    public void testBinaryBody() throws KettleException {
+        RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaBinary("payload"));
+
+        RowEventEncoder encoder = new RowEventEncoder(rowMeta, "payload", UTF8,
+                Collections.<String, String>emptyMap(), null);
+
+        byte[] body = new byte[] { 1, 2, 3 };
+        Event event = encoder.encode(new Object[] { body });
+
+        Assert.assertSame("Binary body is passed through", body, event.getBody());
+        Assert.assertTrue("No headers are added", event.getHeaders().isEmpty());
+    }
+
+    @Test(expected = KettleException.class)
+    public void testMissingBodyField() throws KettleException {
+        RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString("payload"));
+
+        new RowEventEncoder(rowMeta, RowEventEncoder.OUTPUT_BODY_FIELD_NAME, UTF8,
+                Collections.<String, String>emptyMap(), null);
+    }
+}
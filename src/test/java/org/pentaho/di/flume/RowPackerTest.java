@@ -0,0 +1,79 @@
+package org.pentaho.di.flume;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.flume.Event;
+import org.junit.Assert;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+public class RowPackerTest {
+
+    private List<Event> pack(String codec) throws KettleException {
+        RowMetaInterface outputRowMeta = new RowMeta();
+        outputRowMeta.addValueMeta(new ValueMetaString("host"));
+        outputRowMeta.addValueMeta(new ValueMetaInteger("size"));
+
+        final List<Event> events = new ArrayList<Event>();
+
+        RowPacker packer = new RowPacker(outputRowMeta, 2, codec, null, 0L, new RowPacker.PackHandler() {
+            @Override
+            public void packed(Event event) {
+                events.add(event);
+            }
+        });
+
+        packer.add(new Object[] { "a", 1L });
+        packer.add(new Object[] { "b", 2L });
+        packer.add(new Object[] { "c", null });
+        packer.stop();
+
+        return events;
+    }
+
+    private RowMetaInterface newInjectorRowMeta() {
+        RowMetaInterface rowMeta = new RowMeta();
+        rowMeta.addValueMeta(new ValueMetaString(EventRowDecoder.INJECTOR_BODY_FIELD_NAME));
+        rowMeta.addValueMeta(new ValueMetaInteger("size"));
+        rowMeta.addValueMeta(new ValueMetaString("host"));
+        return rowMeta;
+    }
+
+    @Test
+    public void testRoundTrip() throws KettleException {
+        List<Event> events = pack(RowPacker.CODEC_NONE);
+
+        Assert.assertEquals("Two packs", 2, events.size());
+        Assert.assertTrue("Packed event", RowUnpacker.isPacked(events.get(0)));
+
+        RowUnpacker unpacker = new RowUnpacker(newInjectorRowMeta());
+
+        List<Object[]> rows = unpacker.unpack(events.get(0));
+        Assert.assertEquals(2, rows.size());
+        Assert.assertNull(rows.get(0)[0]);
+        Assert.assertEquals(1L, rows.get(0)[1]);
+        Assert.assertEquals("a", rows.get(0)[2]);
+        Assert.assertEquals("b", rows.get(1)[2]);
+
+        rows = unpacker.unpack(events.get(1));
+        Assert.assertEquals(1, rows.size());
+        Assert.assertEquals("c", rows.get(0)[2]);
+        Assert.assertNull(rows.get(0)[1]);
+    }
+
+    @Test
+    public void testDeflate() throws KettleException {
+        List<Event> events = pack(RowPacker.CODEC_DEFLATE);
+
+        Assert.assertEquals(RowPacker.CODEC_DEFLATE, events.get(0).getHeaders().get(RowPacker.PACKED_CODEC_HEADER));
+
+        List<Object[]> rows = new RowUnpacker(newInjectorRowMeta()).unpack(events.get(0));
+        Assert.assertEquals(2L, rows.get(1)[1]);
+        Assert.assertEquals("b", rows.get(1)[2]);
+    }
+}
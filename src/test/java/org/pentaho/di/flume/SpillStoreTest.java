@@ -0,0 +1,162 @@
+package org.pentaho.di.flume;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEventsReadInOrderAcrossSegments() throws Exception {
+        File directory = folder.newFolder("spill");
+        SpillStore store = new SpillStore(directory, 256, 4096);
+        store.open();
+
+        for (int i = 0; i < 20; i++) {
+            Assert.assertTrue("Event is spilled", store.append(Collections.singletonList(
+                    EventBuilder.withBody(("Event " + i).getBytes(), Collections.singletonMap("index", "" + i)))));
+        }
+
+        Assert.assertEquals("All events are stored", 20, store.size());
+        Assert.assertTrue("Events span several segments", directory.list().length > 1);
+
+        List<Event> events = store.peek(15);
+        Assert.assertEquals("Peek is limited", 15, events.size());
+        Assert.assertEquals("Oldest event first", "Event 0", new String(events.get(0).getBody()));
+        Assert.assertEquals("Headers are kept", "14", events.get(14).getHeaders().get("index"));
+
+        store.remove(events.size());
+        Assert.assertEquals("Events are removed", "Event 15", new String(store.peek(1).get(0).getBody()));
+
+        store.remove(5);
+        Assert.assertTrue("Store is drained", store.isEmpty());
+        Assert.assertEquals("Drained segments are deleted", 1, directory.list().length);
+
+        store.close();
+    }
+
+    @Test
+    public void testEventsSurviveReopen() throws Exception {
+        File directory = folder.newFolder("spill");
+        SpillStore store = new SpillStore(directory, 256, 4096);
+        store.open();
+
+        for (int i = 0; i < 10; i++) {
+            store.append(Collections.singletonList(EventBuilder.withBody(("Event " + i).getBytes())));
+        }
+
+        store.remove(4);
+        store.close();
+
+        SpillStore reopened = new SpillStore(directory, 256, 4096);
+        reopened.open();
+
+        Assert.assertEquals("Remaining events are found", 6, reopened.size());
+        Assert.assertEquals("Removed events are not replayed", "Event 4",
+                new String(reopened.peek(1).get(0).getBody()));
+
+        reopened.close();
+    }
+
+    @Test
+    public void testUnwrittenSegmentIsReused() throws Exception {
+        File directory = folder.newFolder("spill");
+
+        // Left by a crash between the creation of the segment file and its header
+        Assert.assertTrue("Empty segment is created", new File(directory, "spill-0.log").createNewFile());
+        RandomAccessFile raf = new RandomAccessFile(new File(directory, "spill-1.log"), "rw");
+        raf.setLength(256);
+        raf.close();
+
+        SpillStore store = new SpillStore(directory, 256, 4096);
+        store.open();
+
+        Assert.assertTrue("Segments hold no event", store.isEmpty());
+        Assert.assertTrue("Event is spilled", store.append(Collections.singletonList(
+                EventBuilder.withBody("Event".getBytes()))));
+        Assert.assertEquals("Event is read back", "Event", new String(store.peek(1).get(0).getBody()));
+
+        store.close();
+    }
+
+    @Test
+    public void testInvalidSegmentIsRejected() throws Exception {
+        File directory = folder.newFolder("spill");
+        SpillStore store = new SpillStore(directory, 256, 4096);
+        store.open();
+        store.append(Collections.singletonList(EventBuilder.withBody("Event".getBytes())));
+        store.close();
+
+        try {
+            new SpillStore(directory, 512, 4096).open();
+            Assert.fail("Segment of another size is rejected");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // Write position past the end of the segment
+        RandomAccessFile raf = new RandomAccessFile(new File(directory, "spill-0.log"), "rw");
+        raf.seek(8);
+        raf.writeInt(1024);
+        raf.close();
+
+        try {
+            new SpillStore(directory, 256, 4096).open();
+            Assert.fail("Segment with an invalid position is rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDiskLimit() throws Exception {
+        SpillStore store = new SpillStore(folder.newFolder("spill"), 256, 512);
+        store.open();
+
+        List<Event> batch = new ArrayList<Event>();
+
+        for (int i = 0; i < 6; i++) {
+            batch.add(EventBuilder.withBody(new byte[40]));
+        }
+
+        Assert.assertTrue("First batch fits", store.append(batch));
+        Assert.assertFalse("Second batch exceeds the limit", store.append(batch));
+        Assert.assertEquals("Rejected batch is not partially stored", 6, store.size());
+
+        store.close();
+    }
+
+    @Test
+    public void testEventLargerThanSegment() throws Exception {
+        SpillStore store = new SpillStore(folder.newFolder("spill"), 256, 512);
+        store.open();
+
+        List<Event> batch = new ArrayList<Event>();
+        batch.add(EventBuilder.withBody(new byte[40]));
+        batch.add(EventBuilder.withBody(new byte[300]));
+
+        try {
+            store.append(batch);
+            Assert.fail("Oversized event is rejected");
+        } catch (IOException e) {
+            // expected
+        }
+
+        Assert.assertEquals("Rejected batch is not partially stored", 0, store.size());
+
+        store.close();
+    }
+}
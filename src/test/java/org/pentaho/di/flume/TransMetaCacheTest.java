@@ -0,0 +1,60 @@
+package org.pentaho.di.flume;
+
+import java.io.File;
+import java.io.InputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.pentaho.di.trans.TransMeta;
+
+public class TransMetaCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCachedClones() throws Exception {
+        File ktr = copyTransformation();
+        TransMetaCache cache = TransMetaCache.INSTANCE;
+
+        long misses = cache.getMissCount();
+        long hits = cache.getHitCount();
+
+        TransMeta first = cache.getTransMeta(ktr.getAbsolutePath());
+        TransMeta second = cache.getTransMeta(ktr.getAbsolutePath());
+
+        Assert.assertEquals("First lookup parses the file", misses + 1, cache.getMissCount());
+        Assert.assertEquals("Second lookup is served from the cache", hits + 1, cache.getHitCount());
+        Assert.assertNotSame("Every lookup gets its own copy", first, second);
+        Assert.assertNotNull("The copy holds the steps", second.findStep("inject event"));
+    }
+
+    @Test
+    public void testModifiedFileIsParsedAgain() throws Exception {
+        File ktr = copyTransformation();
+        TransMetaCache cache = TransMetaCache.INSTANCE;
+
+        cache.getTransMeta(ktr.getAbsolutePath());
+        long misses = cache.getMissCount();
+
+        Assert.assertTrue("Modification time updated", ktr.setLastModified(ktr.lastModified() - 60000L));
+
+        cache.getTransMeta(ktr.getAbsolutePath());
+
+        Assert.assertEquals("Modified file is parsed again", misses + 1, cache.getMissCount());
+    }
+
+    private File copyTransformation() throws Exception {
+        File ktr = folder.newFile("flume_log_sink.ktr");
+        InputStream in = getClass().getResourceAsStream("/flume_log_sink.ktr");
+        try {
+            FileUtils.copyInputStreamToFile(in, ktr);
+        } finally {
+            in.close();
+        }
+        return ktr;
+    }
+}